@@ -0,0 +1,159 @@
+/*
+ * Taco Java allocation budget check.
+ * Copyright (C) 2015 Graham Bell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.grahambell.taco.benchmarks;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Check that the steady-state message path stays within its
+ * allocation budget.
+ *
+ * Runs the single-target server action benchmarks and the small
+ * message transport benchmarks with the JMH GC profiler, and compares
+ * the normalized allocation rate (bytes per operation) of each with
+ * its budget.  The program exits with a non-zero status if any
+ * benchmark exceeds its budget, so that it can be used as a
+ * regression check.
+ */
+public class AllocationBudget {
+    /**
+     * Suffix of the GC profiler's bytes-per-operation result label.
+     */
+    private static final String ALLOC_RATE_NORM = "gc.alloc.rate.norm";
+
+    /**
+     * Budgets in bytes per operation, by benchmark method name.
+     *
+     * The server actions should only allocate the response map and
+     * any result objects.  Transport operations also include parsing
+     * or generating JSON text, which allocates in org.json.
+     *
+     * Each budget allows about 30% over the allocation measured with
+     * JDK 17.0.9 and org.json 20141113, which is noted beside it.
+     */
+    private static final Map<String, Double> BUDGETS;
+
+    static {
+        String server = ServerBenchmark.class.getName();
+        String transport = TransportBenchmark.class.getName();
+
+        BUDGETS = new LinkedHashMap<String, Double>();
+        BUDGETS.put(server + ".callClassMethod", 320.0);      // 240
+        BUDGETS.put(server + ".callMethod", 288.0);           // 216
+        BUDGETS.put(server + ".constructObject", 400.0);      // 304
+        BUDGETS.put(server + ".getAttribute", 288.0);         // 216
+        BUDGETS.put(server + ".setAttribute", 288.0);         // 216
+        BUDGETS.put(server + ".callOverloadedMethod", 320.0); // 240
+        BUDGETS.put(transport + ".read", 3072.0);             // 2352
+        BUDGETS.put(transport + ".write", 4288.0);            // 3256
+    }
+
+    /**
+     * Constructor not used: this class only has static methods.
+     */
+    private AllocationBudget() {
+    }
+
+    /**
+     * Main program method.
+     *
+     * @param args command line arguments (not used)
+     * @throws RunnerException on error running the benchmarks
+     */
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(ServerBenchmark.class.getName()
+                        + "\\.(callClassMethod|callMethod|constructObject"
+                        + "|getAttribute|setAttribute|callOverloadedMethod)$")
+                .include(TransportBenchmark.class.getName()
+                        + "\\.(read|write)$")
+                .param("mix", "mono")
+                .param("shape", Messages.SMALL)
+                .addProfiler(GCProfiler.class)
+                .forks(1)
+                .warmupIterations(3)
+                .measurementIterations(3)
+                .build();
+
+        Collection<RunResult> results = new Runner(options).run();
+        int failures = 0;
+
+        for (RunResult result: results) {
+            String benchmark = result.getParams().getBenchmark();
+            Double budget = BUDGETS.get(benchmark);
+
+            if (budget == null) {
+                continue;
+            }
+
+            Double allocated = allocationRate(result);
+
+            if (allocated == null) {
+                System.out.println(
+                        benchmark + ": no allocation rate measured");
+                failures ++;
+            }
+            else if (allocated > budget) {
+                System.out.println(String.format(
+                        "%s: %.0f B/op exceeds budget of %.0f B/op",
+                        benchmark, allocated, budget));
+                failures ++;
+            }
+            else {
+                System.out.println(String.format(
+                        "%s: %.0f B/op within budget of %.0f B/op",
+                        benchmark, allocated, budget));
+            }
+        }
+
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Find the normalized allocation rate in the secondary results
+     * of a benchmark run.
+     *
+     * @return the allocation in bytes per operation, or null if
+     *     the GC profiler did not report it
+     */
+    private static Double allocationRate(RunResult result) {
+        // The map is declared by JMH with the raw Result type.
+        Map<String, ?> secondary = result.getSecondaryResults();
+
+        for (Map.Entry<String, ?> entry: secondary.entrySet()) {
+            if (entry.getKey().endsWith(ALLOC_RATE_NORM)) {
+                return ((Result<?>) entry.getValue()).getScore();
+            }
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Taco Java benchmark baseline comparison.
+ * Copyright (C) 2015 Graham Bell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.grahambell.taco.benchmarks;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Compare JMH results with a baseline.
+ *
+ * Reads two files written by JMH with <code>-rf json</code>: the
+ * baseline and the results to check.  Each benchmark present in both,
+ * identified by its name and parameters, is compared.  A benchmark
+ * has regressed if its score is worse than the baseline by more than
+ * the tolerance, or if it allocates more bytes per operation, as
+ * reported by the GC profiler, by more than the tolerance.  The
+ * program exits with a non-zero status if any benchmark has regressed.
+ */
+public class BaselineComparison {
+    /**
+     * Default tolerance, in percent.
+     */
+    private static final double DEFAULT_TOLERANCE = 10.0;
+
+    /**
+     * Name of the GC profiler's bytes-per-operation result.
+     */
+    private static final String ALLOC_RATE_NORM = "gc.alloc.rate.norm";
+
+    /**
+     * Constructor not used: this class only has static methods.
+     */
+    private BaselineComparison() {
+    }
+
+    /**
+     * Main program method.
+     *
+     * Usage: <code>BaselineComparison BASELINE RESULTS
+     * [TOLERANCE_PERCENT]</code>
+     *
+     * @param args command line arguments
+     * @throws IOException on error reading the result files
+     */
+    public static void main(String[] args) throws IOException {
+        double tolerance = DEFAULT_TOLERANCE;
+
+        try {
+            if (args.length < 2 || args.length > 3) {
+                throw new IllegalArgumentException("wrong number of files");
+            }
+
+            if (args.length == 3) {
+                tolerance = Double.parseDouble(args[2]);
+            }
+
+            if (tolerance < 0) {
+                throw new IllegalArgumentException("negative tolerance");
+            }
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println("Usage: BaselineComparison BASELINE RESULTS"
+                    + " [TOLERANCE_PERCENT]");
+            System.exit(2);
+        }
+
+        Map<String, JSONObject> baseline = readResults(args[0]);
+        Map<String, JSONObject> results = readResults(args[1]);
+        int regressions = 0;
+
+        for (Map.Entry<String, JSONObject> entry: results.entrySet()) {
+            String benchmark = entry.getKey();
+            JSONObject result = entry.getValue();
+            JSONObject base = baseline.get(benchmark);
+
+            if (base == null) {
+                System.out.println(benchmark + ": not in baseline");
+                continue;
+            }
+
+            // Only throughput improves as the score increases.
+            boolean higherIsBetter = "thrpt".equals(result.getString("mode"));
+            double change = percentChange(
+                    base.getJSONObject("primaryMetric").getDouble("score"),
+                    result.getJSONObject("primaryMetric").getDouble("score"));
+            boolean regressed = higherIsBetter
+                    ? change < - tolerance : change > tolerance;
+
+            StringBuilder line = new StringBuilder(String.format(
+                    "%s: score %+.1f%%", benchmark, change));
+
+            Double baseAllocated = allocationRate(base);
+            Double allocated = allocationRate(result);
+
+            if (baseAllocated != null && allocated != null) {
+                double allocChange = percentChange(baseAllocated, allocated);
+                line.append(String.format(", allocation %+.1f%%",
+                        allocChange));
+
+                if (allocChange > tolerance) {
+                    regressed = true;
+                }
+            }
+
+            if (regressed) {
+                line.append(" REGRESSED");
+                regressions ++;
+            }
+
+            System.out.println(line);
+        }
+
+        if (regressions > 0) {
+            System.out.println(String.format(
+                    "%d benchmarks regressed by more than %.1f%%",
+                    regressions, tolerance));
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Read a JMH result file.
+     *
+     * @return map of results by benchmark name and parameters
+     */
+    private static Map<String, JSONObject> readResults(String filename)
+            throws IOException {
+        JSONArray array = new JSONArray(new String(
+                Files.readAllBytes(Paths.get(filename)),
+                StandardCharsets.UTF_8));
+        Map<String, JSONObject> results =
+                new LinkedHashMap<String, JSONObject>();
+
+        for (int i = 0; i < array.length(); i ++) {
+            JSONObject result = array.getJSONObject(i);
+            Map<String, Object> params = new TreeMap<String, Object>();
+            JSONObject resultParams = result.optJSONObject("params");
+
+            if (resultParams != null) {
+                Iterator<String> keys = resultParams.keys();
+
+                while (keys.hasNext()) {
+                    String key = keys.next();
+                    params.put(key, resultParams.get(key));
+                }
+            }
+
+            String benchmark = result.getString("benchmark");
+            results.put(params.isEmpty()
+                    ? benchmark : benchmark + " " + params, result);
+        }
+
+        return results;
+    }
+
+    /**
+     * Find the normalized allocation rate in a result.
+     *
+     * @return the allocation in bytes per operation, or null if
+     *     the GC profiler was not used
+     */
+    private static Double allocationRate(JSONObject result) {
+        JSONObject secondary = result.optJSONObject("secondaryMetrics");
+
+        if (secondary == null || ! secondary.has(ALLOC_RATE_NORM)) {
+            return null;
+        }
+
+        return secondary.getJSONObject(ALLOC_RATE_NORM).getDouble("score");
+    }
+
+    /**
+     * Compute the change from a baseline value, in percent.  A zero
+     * baseline is only considered to have changed if the value is
+     * not also zero.
+     */
+    private static double percentChange(double base, double value) {
+        if (base == 0.0) {
+            return (value == 0.0) ? 0.0 : 100.0;
+        }
+
+        return 100.0 * (value - base) / base;
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Taco Java benchmark messages.
+ * Copyright (C) 2015 Graham Bell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.grahambell.taco.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.github.grahambell.taco.HashMapC;
+import io.github.grahambell.taco.TacoException;
+import io.github.grahambell.taco.TacoTransport;
+
+/**
+ * Representative Taco messages for use in benchmarks.
+ */
+public class Messages {
+    /**
+     * Names of the available message shapes.
+     */
+    public static final String SMALL = "small";
+    public static final String WIDE = "wide";
+    public static final String DEEP = "deep";
+    public static final String NUMERIC = "numeric";
+    public static final String STRING = "string";
+    public static final String OBJECTS = "objects";
+
+    /**
+     * Constructor not used: this class only has static methods.
+     */
+    private Messages() {
+    }
+
+    /**
+     * Construct a message of the given shape.
+     *
+     * <ul>
+     * <li>small: a typical method call request</li>
+     * <li>wide: a result map with 256 entries</li>
+     * <li>deep: a result nested 32 levels deep</li>
+     * <li>numeric: a result list of 4096 floating point numbers</li>
+     * <li>string: a result string of 64 KiB needing some escaping</li>
+     * <li>objects: a result list of 256 object references</li>
+     * </ul>
+     *
+     * @param shape the name of the shape
+     * @return a new message
+     * @throws IllegalArgumentException if the shape is not recognized
+     */
+    public static Map<String, Object> create(String shape) {
+        switch (shape) {
+            case SMALL:
+                return new HashMapC<String, Object>()
+                        .putc("action", "call_method")
+                        .putc("id", 42)
+                        .putc("number", 3)
+                        .putc("name", "append")
+                        .putc("args", Arrays.asList("some text", 12))
+                        .putc("kwargs", null)
+                        .putc("context", "scalar");
+
+            case WIDE:
+                Map<String, Object> wide = new HashMap<String, Object>();
+
+                for (int i = 0; i < 256; i ++) {
+                    wide.put("key" + i, (i % 2 == 0) ? i : "value" + i);
+                }
+
+                return result(wide);
+
+            case DEEP:
+                Object deep = "leaf";
+
+                for (int i = 0; i < 32; i ++) {
+                    deep = new HashMapC<String, Object>()
+                            .putc("level", i)
+                            .putc("children", Arrays.asList(deep));
+                }
+
+                return result(deep);
+
+            case NUMERIC:
+                List<Double> numbers = new ArrayList<Double>(4096);
+
+                for (int i = 0; i < 4096; i ++) {
+                    numbers.add(i * 0.125 - 100.0);
+                }
+
+                return result(numbers);
+
+            case STRING:
+                StringBuilder text = new StringBuilder(65536);
+
+                while (text.length() < 65536) {
+                    text.append("Line of \"quoted\" text\tin a long string"
+                            + " \u00e9\u00e8\n");
+                }
+
+                return result(text.toString());
+
+            case OBJECTS:
+                List<Handle> handles = new ArrayList<Handle>(256);
+
+                for (int i = 1; i <= 256; i ++) {
+                    handles.add(new Handle(i));
+                }
+
+                return result(handles);
+
+            default:
+                throw new IllegalArgumentException(
+                        "unknown message shape: " + shape);
+        }
+    }
+
+    /**
+     * Construct the text of a message of the given shape, including the
+     * end-of-message marker, as written by <code>TacoTransport</code>.
+     *
+     * @param shape the name of the shape
+     * @return the encoded message
+     * @throws TacoException on error encoding the message
+     */
+    public static byte[] encode(String shape) throws TacoException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TacoTransport xp = new TacoTransport(
+                new ByteArrayInputStream(new byte[0]), out, new Filter());
+
+        xp.write(create(shape));
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Construct a "result" action.
+     */
+    private static Map<String, Object> result(Object value) {
+        return new HashMapC<String, Object>()
+                .putc("action", "result")
+                .putc("id", 42)
+                .putc("result", value);
+    }
+
+    /**
+     * Stand-in for an object held in a Taco server's cache.
+     */
+    public static class Handle {
+        private final int number;
+
+        /**
+         * Constructor.
+         *
+         * @param number the object number
+         */
+        public Handle(int number) {
+            this.number = number;
+        }
+
+        /**
+         * Get the object number.
+         *
+         * @return the object number
+         */
+        public int getNumber() {
+            return number;
+        }
+    }
+
+    /**
+     * Filter which converts {@link Handle} objects to and from
+     * object references.
+     */
+    public static class Filter implements TacoTransport.Filter {
+        @Override
+        public Map<String, Object> objectToMap(Object value)
+                throws TacoException {
+            if (! (value instanceof Handle)) {
+                throw new TacoException("unknown object type");
+            }
+
+            return new HashMapC<String, Object>()
+                    .putc("_Taco_Object_", ((Handle) value).getNumber());
+        }
+
+        @Override
+        public Object mapToObject(Map<String, Object> map) {
+            Object number = map.get("_Taco_Object_");
+
+            if (number instanceof Number) {
+                return new Handle(((Number) number).intValue());
+            }
+
+            return map;
+        }
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ * Taco Java server dispatch benchmarks.
+ * Copyright (C) 2015 Graham Bell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.grahambell.taco.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.github.grahambell.taco.HashMapC;
+import io.github.grahambell.taco.TacoException;
+import io.github.grahambell.taco.TacoServer;
+import io.github.grahambell.taco.TacoTransport;
+
+/**
+ * Benchmarks of action dispatch by <code>TacoServer</code>.
+ *
+ * Each action benchmark passes a prepared message directly to the
+ * server's <code>handle</code> method, so measures finding and invoking
+ * the handler and then the target class, method, constructor or field
+ * by reflection.  In the "mono" mix the same target is used every time,
+ * whereas the "mega" mix cycles through several targets (or, for the
+ * overloaded method, several argument types) so that the reflective
+ * call sites see many receivers.
+ *
+ * The {@link #serve} benchmark instead runs the server's main loop over
+ * a batch of mixed requests read from an in-memory transport, so also
+ * includes the handoff of each request to the worker thread.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class ServerBenchmark {
+    /**
+     * Number of requests in the batch used by {@link #serve}.
+     */
+    private static final int BATCH_SIZE = 64;
+
+    /**
+     * Whether to use one target ("mono") or several ("mega").
+     */
+    @Param({"mono", "mega"})
+    public String mix;
+
+    private Server server;
+
+    private List<Map<String, Object>> classMethodMessages;
+    private List<Map<String, Object>> methodMessages;
+    private List<Map<String, Object>> constructMessages;
+    private List<Map<String, Object>> getAttributeMessages;
+    private List<Map<String, Object>> setAttributeMessages;
+    private List<Map<String, Object>> overloadedMessages;
+    private List<Map<String, Object>> batch;
+
+    private int index = 0;
+
+    @Setup
+    public void setup() throws TacoException {
+        boolean mega = mix.equals("mega");
+        server = new Server();
+
+        // Objects on which to call methods and access attributes.
+        server.store(1, new StringBuilder("text"));
+        server.store(2, new ArrayList<Object>(Arrays.asList(1, 2, 3)));
+        server.store(3, new HashMap<String, Object>());
+        server.store(4, new Date(0));
+        server.store(5, new Point());
+        server.store(6, new Range());
+        server.store(7, new Label());
+        server.store(8, new Formatter());
+
+        classMethodMessages = new ArrayList<Map<String, Object>>();
+        classMethodMessages.add(classMethod(
+                "java.lang.Integer", "parseInt", "42"));
+
+        if (mega) {
+            classMethodMessages.add(classMethod(
+                    "java.lang.String", "valueOf", true));
+            classMethodMessages.add(classMethod(
+                    "java.lang.Math", "max", 3, 4));
+            classMethodMessages.add(classMethod(
+                    "java.lang.Long", "toHexString", 255L));
+            classMethodMessages.add(classMethod(
+                    "java.util.Collections", "singletonList", "a"));
+        }
+
+        methodMessages = new ArrayList<Map<String, Object>>();
+        methodMessages.add(method(1, "length"));
+
+        if (mega) {
+            methodMessages.add(method(2, "size"));
+            methodMessages.add(method(3, "isEmpty"));
+            methodMessages.add(method(4, "getTime"));
+            methodMessages.add(method(1, "charAt", 0));
+        }
+
+        constructMessages = new ArrayList<Map<String, Object>>();
+        constructMessages.add(construct("java.lang.StringBuilder", "x"));
+
+        if (mega) {
+            constructMessages.add(construct("java.util.ArrayList", 4));
+            constructMessages.add(construct("java.util.HashMap", 4));
+            constructMessages.add(construct("java.util.Date", 0L));
+            constructMessages.add(construct(Point.class.getName()));
+        }
+
+        getAttributeMessages = new ArrayList<Map<String, Object>>();
+        setAttributeMessages = new ArrayList<Map<String, Object>>();
+        getAttributeMessages.add(getAttribute(5, "x"));
+        setAttributeMessages.add(setAttribute(5, "x", 1));
+
+        if (mega) {
+            getAttributeMessages.add(getAttribute(5, "y"));
+            getAttributeMessages.add(getAttribute(6, "start"));
+            getAttributeMessages.add(getAttribute(6, "end"));
+            getAttributeMessages.add(getAttribute(7, "text"));
+            setAttributeMessages.add(setAttribute(5, "y", 2));
+            setAttributeMessages.add(setAttribute(6, "start", 3));
+            setAttributeMessages.add(setAttribute(6, "end", 4L));
+            setAttributeMessages.add(setAttribute(7, "text", "label"));
+        }
+
+        overloadedMessages = new ArrayList<Map<String, Object>>();
+        overloadedMessages.add(method(8, "format", "text"));
+
+        if (mega) {
+            overloadedMessages.add(method(8, "format", 42));
+            overloadedMessages.add(method(8, "format", 1.5));
+            overloadedMessages.add(method(8, "format", true));
+            overloadedMessages.add(method(8, "format", Arrays.asList(1)));
+        }
+
+        List<List<Map<String, Object>>> all = Arrays.asList(
+                classMethodMessages, methodMessages, constructMessages,
+                getAttributeMessages, setAttributeMessages,
+                overloadedMessages);
+
+        batch = new ArrayList<Map<String, Object>>();
+
+        for (int i = 0; batch.size() < BATCH_SIZE; i ++) {
+            List<Map<String, Object>> messages = all.get(i % all.size());
+            batch.add(messages.get((i / all.size()) % messages.size()));
+        }
+
+        // Check that every message succeeds, so that the benchmarks do
+        // not measure error handling.
+        for (Map<String, Object> message: batch) {
+            Map<String, Object> response = server.dispatch(message);
+
+            if (! "result".equals(response.get("action"))) {
+                throw new TacoException("benchmark message failed: "
+                        + message + ": " + response.get("message"));
+            }
+        }
+    }
+
+    @Benchmark
+    public Map<String, Object> callClassMethod() {
+        return server.dispatch(next(classMethodMessages));
+    }
+
+    @Benchmark
+    public Map<String, Object> callMethod() {
+        return server.dispatch(next(methodMessages));
+    }
+
+    @Benchmark
+    public Map<String, Object> constructObject() {
+        return server.dispatch(next(constructMessages));
+    }
+
+    @Benchmark
+    public Map<String, Object> getAttribute() {
+        return server.dispatch(next(getAttributeMessages));
+    }
+
+    @Benchmark
+    public Map<String, Object> setAttribute() {
+        return server.dispatch(next(setAttributeMessages));
+    }
+
+    @Benchmark
+    public Map<String, Object> callOverloadedMethod() {
+        return server.dispatch(next(overloadedMessages));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void serve() throws TacoException {
+        server.serve(batch);
+    }
+
+    /**
+     * Select the next message from a list in turn.
+     */
+    private Map<String, Object> next(List<Map<String, Object>> messages) {
+        return messages.get((index ++ & Integer.MAX_VALUE) % messages.size());
+    }
+
+    private static Map<String, Object> classMethod(String className,
+            String name, Object... args) {
+        return new HashMapC<String, Object>()
+                .putc("action", "call_class_method")
+                .putc("class", className)
+                .putc("name", name)
+                .putc("args", Arrays.asList(args))
+                .putc("kwargs", null)
+                .putc("context", "scalar");
+    }
+
+    private static Map<String, Object> method(int number, String name,
+            Object... args) {
+        return new HashMapC<String, Object>()
+                .putc("action", "call_method")
+                .putc("number", number)
+                .putc("name", name)
+                .putc("args", Arrays.asList(args))
+                .putc("kwargs", null)
+                .putc("context", "scalar");
+    }
+
+    private static Map<String, Object> construct(String className,
+            Object... args) {
+        return new HashMapC<String, Object>()
+                .putc("action", "construct_object")
+                .putc("class", className)
+                .putc("args", (args.length == 0) ? null : Arrays.asList(args))
+                .putc("kwargs", null);
+    }
+
+    private static Map<String, Object> getAttribute(int number,
+            String name) {
+        return new HashMapC<String, Object>()
+                .putc("action", "get_attribute")
+                .putc("number", number)
+                .putc("name", name);
+    }
+
+    private static Map<String, Object> setAttribute(int number,
+            String name, Object value) {
+        return new HashMapC<String, Object>()
+                .putc("action", "set_attribute")
+                .putc("number", number)
+                .putc("name", name)
+                .putc("value", value);
+    }
+
+    /**
+     * Server with access to its dispatch method and object cache.
+     */
+    private static class Server extends TacoServer {
+        private final BatchTransport batchXp;
+
+        private Server() {
+            super((TacoTransport) null);
+            xp = batchXp = new BatchTransport(this);
+        }
+
+        private void store(int number, Object object) {
+            objects.put(number, object);
+            objectNum = Math.max(objectNum, number);
+        }
+
+        private Map<String, Object> dispatch(Map<String, Object> message) {
+            return handle(message);
+        }
+
+        private void serve(List<Map<String, Object>> messages)
+                throws TacoException {
+            batchXp.remaining = messages.iterator();
+            run();
+        }
+    }
+
+    /**
+     * Transport which reads messages from a list and discards
+     * its output.
+     */
+    private static class BatchTransport extends TacoTransport {
+        private Iterator<Map<String, Object>> remaining = null;
+
+        private BatchTransport(Filter filter) {
+            super(filter);
+        }
+
+        @Override
+        public Map<String, Object> read() {
+            if (remaining == null || ! remaining.hasNext()) {
+                return null;
+            }
+
+            return remaining.next();
+        }
+
+        @Override
+        public void write(Map<String, Object> message) {
+        }
+    }
+
+    /**
+     * Classes with public fields for attribute benchmarks.
+     */
+    public static class Point {
+        public int x = 0;
+        public int y = 0;
+    }
+
+    public static class Range {
+        public long start = 0;
+        public long end = 0;
+    }
+
+    public static class Label {
+        public String text = "";
+    }
+
+    /**
+     * Class with an overloaded method.
+     */
+    public static class Formatter {
+        public String format(String value) {
+            return value;
+        }
+
+        public String format(Integer value) {
+            return "int " + value;
+        }
+
+        public String format(Double value) {
+            return "double " + value;
+        }
+
+        public String format(Boolean value) {
+            return "boolean " + value;
+        }
+
+        public String format(List<?> value) {
+            return "list of " + value.size();
+        }
+    }
+}
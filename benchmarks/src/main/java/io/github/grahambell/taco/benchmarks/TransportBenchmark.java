@@ -0,0 +1,120 @@
+/*
+ * Taco Java transport benchmarks.
+ * Copyright (C) 2015 Graham Bell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.grahambell.taco.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.github.grahambell.taco.TacoException;
+import io.github.grahambell.taco.TacoTransport;
+
+/**
+ * Benchmarks of reading and writing messages with
+ * <code>TacoTransport</code>.
+ *
+ * Messages are read from an input stream which repeats the same message
+ * indefinitely, and written to a stream which discards its output, so
+ * that only the transport's own work (conversion between maps and JSON
+ * text and the character encoding) is measured.  Run with
+ * "-prof gc" to include the allocation rate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class TransportBenchmark {
+    /**
+     * The message shape, as understood by {@link Messages#create}.
+     */
+    @Param({Messages.SMALL, Messages.WIDE, Messages.DEEP, Messages.NUMERIC,
+            Messages.STRING, Messages.OBJECTS})
+    public String shape;
+
+    private Map<String, Object> message;
+
+    private TacoTransport reader;
+
+    private TacoTransport writer;
+
+    @Setup
+    public void setup() throws TacoException {
+        message = Messages.create(shape);
+
+        reader = new TacoTransport(new RepeatingInputStream(
+                Messages.encode(shape)), OutputStream.nullOutputStream(),
+                new Messages.Filter());
+
+        writer = new TacoTransport(new ByteArrayInputStream(new byte[0]),
+                OutputStream.nullOutputStream(), new Messages.Filter());
+    }
+
+    @Benchmark
+    public Map<String, Object> read() throws TacoException {
+        return reader.read();
+    }
+
+    @Benchmark
+    public void write() throws TacoException {
+        writer.write(message);
+    }
+
+    /**
+     * Input stream which returns the same data repeatedly.
+     */
+    private static class RepeatingInputStream extends InputStream {
+        private final byte[] data;
+        private int position = 0;
+
+        private RepeatingInputStream(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public int read() {
+            int b = data[position] & 0xff;
+            position = (position + 1) % data.length;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            int n = Math.min(length, data.length - position);
+            System.arraycopy(data, position, buffer, offset, n);
+            position = (position + n) % data.length;
+            return n;
+        }
+    }
+}
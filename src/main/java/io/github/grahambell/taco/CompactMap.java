@@ -0,0 +1,313 @@
+/*
+ * Taco Java compact map.
+ * Copyright (C) 2014-2015 Graham Bell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.grahambell.taco;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Map for decoded JSON objects with few entries.
+ *
+ * Keys and values are stored alternately in a single array, in
+ * insertion order, and looked up by linear search.  Keys are compared
+ * by identity before equality, so lookups of interned keys such as
+ * the protocol keys produced by <code>TacoTransport</code> usually
+ * avoid calling <code>equals</code>.  This uses much less memory than
+ * a <code>HashMap</code> for the small maps which make up most
+ * messages.
+ *
+ * If more than {@link #MAX_COMPACT_SIZE} entries are added, the
+ * entries are moved to a <code>HashMap</code> so that lookups in
+ * larger maps do not become slow.
+ */
+class CompactMap extends AbstractMap<String, Object> {
+    /**
+     * Maximum number of entries stored in the array.
+     */
+    static final int MAX_COMPACT_SIZE = 8;
+
+    /**
+     * Keys and values, alternately, while the map is compact.
+     */
+    private Object[] table;
+
+    /**
+     * Number of entries in the table.
+     */
+    private int size = 0;
+
+    /**
+     * Map holding the entries once the map is no longer compact.
+     */
+    private HashMap<String, Object> large = null;
+
+    /**
+     * Construct an empty map.
+     *
+     * @param capacity the expected number of entries
+     */
+    CompactMap(int capacity) {
+        table = new Object[2 * Math.max(1, Math.min(
+                capacity, MAX_COMPACT_SIZE))];
+    }
+
+    @Override
+    public int size() {
+        return (large == null) ? size : large.size();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        if (large != null) {
+            return large.containsKey(key);
+        }
+
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public Object get(Object key) {
+        if (large != null) {
+            return large.get(key);
+        }
+
+        int i = indexOf(key);
+        return (i < 0) ? null : table[i + 1];
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        if (large != null) {
+            return large.put(key, value);
+        }
+
+        int i = indexOf(key);
+
+        if (i >= 0) {
+            Object previous = table[i + 1];
+            table[i + 1] = value;
+            return previous;
+        }
+
+        if (size == MAX_COMPACT_SIZE) {
+            large = new HashMap<String, Object>();
+
+            for (int j = 0; j < 2 * size; j += 2) {
+                large.put((String) table[j], table[j + 1]);
+            }
+
+            table = null;
+            size = 0;
+
+            return large.put(key, value);
+        }
+
+        if (2 * size == table.length) {
+            table = Arrays.copyOf(table, Math.min(
+                    2 * table.length, 2 * MAX_COMPACT_SIZE));
+        }
+
+        table[2 * size] = key;
+        table[2 * size + 1] = value;
+        size ++;
+
+        return null;
+    }
+
+    @Override
+    public Object remove(Object key) {
+        if (large != null) {
+            return large.remove(key);
+        }
+
+        int i = indexOf(key);
+
+        if (i < 0) {
+            return null;
+        }
+
+        Object previous = table[i + 1];
+        removeAt(i / 2);
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        if (large != null) {
+            large.clear();
+        }
+        else {
+            Arrays.fill(table, 0, 2 * size, null);
+            size = 0;
+        }
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+        if (large != null) {
+            return large.entrySet();
+        }
+
+        return new AbstractSet<Map.Entry<String, Object>>() {
+            @Override
+            public int size() {
+                return CompactMap.this.size();
+            }
+
+            @Override
+            public Iterator<Map.Entry<String, Object>> iterator() {
+                if (large != null) {
+                    return large.entrySet().iterator();
+                }
+
+                return new EntryIterator();
+            }
+
+            @Override
+            public void clear() {
+                CompactMap.this.clear();
+            }
+        };
+    }
+
+    /**
+     * Find a key in the table.
+     *
+     * @return the index of the key in the table, or -1 if not present
+     */
+    private int indexOf(Object key) {
+        for (int i = 0; i < 2 * size; i += 2) {
+            if (table[i] == key) {
+                return i;
+            }
+        }
+
+        if (key != null) {
+            for (int i = 0; i < 2 * size; i += 2) {
+                if (key.equals(table[i])) {
+                    return i;
+                }
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Remove an entry from the table, moving later entries down.
+     */
+    private void removeAt(int entry) {
+        int i = 2 * entry;
+        System.arraycopy(table, i + 2, table, i, 2 * size - i - 2);
+        size --;
+        table[2 * size] = null;
+        table[2 * size + 1] = null;
+    }
+
+    /**
+     * Iterator over the entries in the table.
+     */
+    private class EntryIterator
+            implements Iterator<Map.Entry<String, Object>> {
+        private int next = 0;
+        private int last = -1;
+
+        @Override
+        public boolean hasNext() {
+            return next < size;
+        }
+
+        @Override
+        public Map.Entry<String, Object> next() {
+            if (next >= size) {
+                throw new NoSuchElementException();
+            }
+
+            last = next ++;
+            return new Entry(last);
+        }
+
+        @Override
+        public void remove() {
+            if (last < 0) {
+                throw new IllegalStateException();
+            }
+
+            removeAt(last);
+            next = last;
+            last = -1;
+        }
+    }
+
+    /**
+     * Entry referring to a position in the table.
+     */
+    private class Entry implements Map.Entry<String, Object> {
+        private final int index;
+
+        private Entry(int entry) {
+            this.index = 2 * entry;
+        }
+
+        @Override
+        public String getKey() {
+            return (String) table[index];
+        }
+
+        @Override
+        public Object getValue() {
+            return table[index + 1];
+        }
+
+        @Override
+        public Object setValue(Object value) {
+            Object previous = table[index + 1];
+            table[index + 1] = value;
+            return previous;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (! (other instanceof Map.Entry)) {
+                return false;
+            }
+
+            Map.Entry<?, ?> entry = (Map.Entry<?, ?>) other;
+            return Objects.equals(getKey(), entry.getKey())
+                    && Objects.equals(getValue(), entry.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(getKey()) ^ Objects.hashCode(getValue());
+        }
+
+        @Override
+        public String toString() {
+            return getKey() + "=" + getValue();
+        }
+    }
+}
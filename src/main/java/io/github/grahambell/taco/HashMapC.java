@@ -19,6 +19,7 @@
 package io.github.grahambell.taco;
 
 import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Chainable HashMap class.
@@ -27,6 +28,22 @@ import java.util.HashMap;
  * <code>put</code> method called <code>putc</code>.
  */
 public class HashMapC<K, V> extends HashMap<K, V> {
+    /**
+     * Construct an empty map.
+     */
+    public HashMapC() {
+        super();
+    }
+
+    /**
+     * Construct a map containing the entries of the given map.
+     *
+     * @param map the map whose entries are to be copied
+     */
+    public HashMapC(Map<? extends K, ? extends V> map) {
+        super(map);
+    }
+
     /**
      * Put an entry into the <code>Map</code> and return a reference
      * to the map itself.
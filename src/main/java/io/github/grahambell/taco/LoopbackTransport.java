@@ -0,0 +1,357 @@
+/*
+ * Taco Java loopback transport class.
+ * Copyright (C) 2014-2015 Graham Bell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.grahambell.taco;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.json.JSONException;
+
+/**
+ * Transport which connects a Taco client and server within the same JVM.
+ *
+ * A pair of transports is connected by two bounded queues, one for each
+ * direction.  Writing a message blocks while the queue is full.
+ *
+ * By default messages are passed as JSON text, exactly as they would
+ * be written to a stream.  In pass-by-reference mode, JSON encoding is
+ * skipped: each message is copied as a tree of maps, lists and plain
+ * values, with other objects converted by the writer's filter
+ * <code>objectToMap</code> method and maps converted by the reader's
+ * filter <code>mapToObject</code> method, as for JSON.  Numbers are
+ * passed without conversion, so may be of different types than would
+ * be obtained by parsing JSON.
+ */
+public class LoopbackTransport extends TacoTransport {
+    /**
+     * Default capacity of each queue, in messages.
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * Interval in milliseconds at which a waiting reader checks whether
+     * the other end has been closed.
+     */
+    private static final long CLOSE_CHECK_INTERVAL = 100;
+
+    /**
+     * Queue of messages to be read.
+     */
+    private final BlockingQueue<Object> input;
+
+    /**
+     * Queue of messages written.
+     */
+    private final BlockingQueue<Object> output;
+
+    /**
+     * Whether messages are passed by reference rather than as JSON.
+     */
+    private final boolean byReference;
+
+    /**
+     * The transport at the other end of the queues.
+     */
+    private volatile LoopbackTransport peer = null;
+
+    /**
+     * Whether this end has been closed.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Construct a new transport, to which another can be connected using
+     * the {@link #LoopbackTransport(Filter, LoopbackTransport)}
+     * constructor.
+     *
+     * @param filter object filter, or null if not required
+     * @param capacity the maximum number of messages in each queue
+     * @param byReference true to pass messages by reference
+     */
+    public LoopbackTransport(Filter filter, int capacity,
+            boolean byReference) {
+        super(filter);
+
+        input = new ArrayBlockingQueue<Object>(capacity);
+        output = new ArrayBlockingQueue<Object>(capacity);
+        this.byReference = byReference;
+    }
+
+    /**
+     * Construct a new transport connected to the given transport.
+     *
+     * @param filter object filter, or null if not required
+     * @param peer the transport to which to connect
+     */
+    public LoopbackTransport(Filter filter, LoopbackTransport peer) {
+        super(filter);
+
+        input = peer.output;
+        output = peer.input;
+        byReference = peer.byReference;
+
+        this.peer = peer;
+        peer.peer = this;
+    }
+
+    /**
+     * Start a Taco server in a background thread and connect a
+     * client to it.
+     *
+     * The server runs until the client is closed.
+     *
+     * @param byReference true to pass messages by reference
+     * @return the Taco client
+     */
+    public static Taco startServer(boolean byReference) {
+        Taco taco = new Taco((TacoTransport) null);
+        LoopbackTransport clientXp = new LoopbackTransport(
+                taco, DEFAULT_CAPACITY, byReference);
+        taco.xp = clientXp;
+
+        final TacoServer server = new TacoServer((TacoTransport) null);
+        server.xp = new LoopbackTransport(server, clientXp);
+
+        Thread thread = new Thread("Taco loopback server") {
+            public void run() {
+                try {
+                    server.run();
+                }
+                catch (TacoException e) {
+                    // The client has gone away: nothing to report to.
+                }
+            }
+        };
+
+        thread.setDaemon(true);
+        thread.start();
+
+        return taco;
+    }
+
+    /**
+     * Close this end of the connection.
+     *
+     * Once any messages already written have been read, the other end
+     * reaches the end of input.  Further writes at either end fail.
+     */
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    /**
+     * Read one message from the queue.
+     *
+     * @return the message as a <code>Map</code> object, or null if the
+     *     other end has been closed and all of its messages read
+     * @throws TacoException on error converting the message, or if
+     *     interrupted
+     */
+    @Override
+    public Map<String, Object> read() throws TacoException {
+        Object message;
+
+        try {
+            while ((message = input.poll(
+                    CLOSE_CHECK_INTERVAL, TimeUnit.MILLISECONDS)) == null) {
+                LoopbackTransport peer = this.peer;
+
+                if (closed || (peer != null && peer.closed)) {
+                    if (input.isEmpty()) {
+                        return null;
+                    }
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TacoException("read interrupted", e);
+        }
+
+        TacoEvents.MessageRead event = new TacoEvents.MessageRead();
+        event.begin();
+        long start = System.nanoTime();
+        Map<String, Object> map;
+        int characters = 0;
+
+        if (byReference) {
+            map = (Map<String, Object>) message;
+
+            for (Map.Entry<String, Object> entry: map.entrySet()) {
+                entry.setValue(importObject(entry.getValue()));
+            }
+        }
+        else {
+            try {
+                characters = ((String) message).length();
+                map = jsonToMap(new JSONObject((String) message));
+            }
+            catch (JSONException e) {
+                throw new TacoException("read error: " + e.getMessage(), e);
+            }
+        }
+
+        recordRead(event, map, characters, start);
+        return map;
+    }
+
+    /**
+     * Write a message to the queue.
+     *
+     * @param message the message to be written
+     * @throws TacoException on error converting the message, if either
+     *     end has been closed, or if interrupted
+     */
+    @Override
+    public void write(Map<String, Object> message) throws TacoException {
+        LoopbackTransport peer = this.peer;
+
+        if (closed || peer == null || peer.closed) {
+            throw new TacoException("i/o write error: transport closed",
+                    new IOException("transport closed"));
+        }
+
+        TacoEvents.MessageWrite event = new TacoEvents.MessageWrite();
+        event.begin();
+        long start = System.nanoTime();
+        Object converted;
+        int characters = 0;
+
+        if (byReference) {
+            converted = exportMap(message);
+        }
+        else {
+            try {
+                String text = mapToJson(message).toString();
+                characters = text.length();
+                converted = text;
+            }
+            catch (JSONException e) {
+                throw new TacoException(
+                        "json write error: " + e.getMessage(), e);
+            }
+        }
+
+        recordWrite(event, message, characters, start);
+
+        try {
+            output.put(converted);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TacoException("write interrupted", e);
+        }
+    }
+
+    /**
+     * Copy a map for passing by reference.
+     *
+     * Entries are converted using the {@link #exportObject} method.
+     */
+    private Map<String, Object> exportMap(Map<String, Object> map)
+            throws TacoException {
+        Map<String, Object> copy = new HashMap<String, Object>();
+
+        for (Map.Entry<String, Object> entry: map.entrySet()) {
+            copy.put(entry.getKey(), exportObject(entry.getValue()));
+        }
+
+        return copy;
+    }
+
+    /**
+     * Copy an individual object for passing by reference.
+     *
+     * This follows the same rules as {@link #objectToJson}, but
+     * returns maps and lists instead of JSON objects and arrays.
+     */
+    private Object exportObject(Object value) throws TacoException {
+        if (value == null) {
+            return null;
+        }
+        else if (value instanceof Map) {
+            return exportMap((Map<String, Object>) value);
+        }
+        else if (value instanceof Collection) {
+            Collection<Object> collection = (Collection<Object>) value;
+            List<Object> copy = new ArrayList<Object>(collection.size());
+
+            for (Object entry: collection) {
+                copy.add(exportObject(entry));
+            }
+
+            return copy;
+        }
+        else if ((value instanceof Boolean)
+                || (value instanceof Number)
+                || (value instanceof String)) {
+            return value;
+        }
+        else {
+            if (filter == null) {
+                throw new TacoException("unknown object type to pass");
+            }
+            else {
+                return exportMap(filter.objectToMap(value));
+            }
+        }
+    }
+
+    /**
+     * Process an individual object passed by reference.
+     *
+     * This follows the same rules as {@link #jsonToObject}: the filter's
+     * <code>mapToObject</code> method is applied to each map.  Maps and
+     * lists are updated in place since they were copied by the writer.
+     */
+    private Object importObject(Object value) throws TacoException {
+        if (value instanceof Map) {
+            Map<String, Object> map = (Map<String, Object>) value;
+
+            for (Map.Entry<String, Object> entry: map.entrySet()) {
+                entry.setValue(importObject(entry.getValue()));
+            }
+
+            if (filter == null) {
+                return map;
+            }
+            else {
+                return filter.mapToObject(map);
+            }
+        }
+        else if (value instanceof List) {
+            for (ListIterator<Object> i = ((List<Object>) value).listIterator();
+                    i.hasNext(); ) {
+                i.set(importObject(i.next()));
+            }
+        }
+
+        return value;
+    }
+}
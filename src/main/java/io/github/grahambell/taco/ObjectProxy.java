@@ -0,0 +1,416 @@
+/*
+ * Taco Java object proxy class.
+ * Copyright (C) 2014-2015 Graham Bell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.grahambell.taco;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Invocation handler which implements a Java interface by calling
+ * methods of an object in a Taco server's cache.
+ *
+ * Instances are created by {@link Taco#proxy}.  Each interface method
+ * invokes the server object's method of the same name, or the name given
+ * by the {@link Remote} annotation.  Unless specified by the annotation,
+ * the context is determined by the method's return type: void methods
+ * are called in void context, methods returning an array or
+ * <code>Collection</code> in list context, methods returning a
+ * <code>Map</code> in map context and other methods in scalar context.
+ *
+ * Numeric results are converted to the method's (possibly primitive)
+ * numeric return type.  If the method returns an interface type and the
+ * result is an object reference, a proxy for that interface is returned.
+ * List results are copied into a new array, converting each element to
+ * the component type, if the method returns an array, or into a
+ * <code>LinkedHashSet</code> if it returns a <code>Set</code>.  Other
+ * collection return types, which can hold neither an
+ * <code>ArrayList</code> nor a <code>LinkedHashSet</code>, are not
+ * supported.
+ * Methods returning <code>CompletableFuture</code> are invoked
+ * asynchronously, without conversion of the result.
+ *
+ * Interface methods should declare <code>TacoException</code>, otherwise
+ * errors are thrown as <code>UndeclaredThrowableException</code>.
+ * The <code>equals</code>, <code>hashCode</code> and
+ * <code>toString</code> methods are handled locally.
+ */
+public class ObjectProxy implements InvocationHandler {
+    /**
+     * Annotation specifying how an interface method is invoked.
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target(ElementType.METHOD)
+    public @interface Remote {
+        /**
+         * The name of the server object's method, if different from
+         * the name of the interface method.
+         */
+        String name() default "";
+
+        /**
+         * The context in which to invoke the method.  At most one
+         * context may be given: if none is given, it is determined from
+         * the return type.
+         */
+        Taco.Context[] context() default {};
+    }
+
+    /**
+     * Information about each interface method, by declaring interface.
+     *
+     * A <code>ClassValue</code> is used so that the cache does not
+     * prevent the interfaces' class loaders from being unloaded.
+     */
+    private static final ClassValue<Map<Method, MethodInfo>> methods =
+            new ClassValue<Map<Method, MethodInfo>>() {
+                @Override
+                protected Map<Method, MethodInfo> computeValue(
+                        Class<?> type) {
+                    return new ConcurrentHashMap<Method, MethodInfo>();
+                }
+            };
+
+    /**
+     * The Taco client.
+     */
+    private final Taco taco;
+
+    /**
+     * The object on which to invoke methods.
+     */
+    private final Taco.Object object;
+
+    /**
+     * Constructor.
+     *
+     * @param taco the Taco client
+     * @param object the object on which to invoke methods
+     */
+    ObjectProxy(Taco taco, Taco.Object object) {
+        this.taco = taco;
+        this.object = object;
+    }
+
+    /**
+     * Check that the methods of an interface can be proxied.
+     *
+     * The information about each method is computed and cached.
+     *
+     * @param iface the interface to check
+     * @throws IllegalArgumentException if a method has an unsupported
+     *     return type
+     */
+    static void checkInterface(Class<?> iface) {
+        for (Method method: iface.getMethods()) {
+            if (method.getDeclaringClass() != java.lang.Object.class
+                    && ! Modifier.isStatic(method.getModifiers())) {
+                getMethodInfo(method);
+            }
+        }
+    }
+
+    /**
+     * Get the information about a method, computing it if necessary.
+     */
+    private static MethodInfo getMethodInfo(Method method) {
+        Map<Method, MethodInfo> classMethods =
+                methods.get(method.getDeclaringClass());
+        MethodInfo info = classMethods.get(method);
+
+        if (info == null) {
+            info = new MethodInfo(method);
+            classMethods.put(method, info);
+        }
+
+        return info;
+    }
+
+    /**
+     * Get the object on which methods are invoked.
+     *
+     * @return the object reference
+     */
+    public Taco.Object getObject() {
+        return object;
+    }
+
+    /**
+     * Handle the invocation of a method of a proxy instance.
+     */
+    @Override
+    public java.lang.Object invoke(java.lang.Object proxy, Method method,
+            java.lang.Object[] args)
+            throws TacoException {
+        if (method.getDeclaringClass() == java.lang.Object.class) {
+            return invokeLocal(proxy, method, args);
+        }
+
+        MethodInfo info = getMethodInfo(method);
+
+        HashMapC<String, java.lang.Object> message =
+                new HashMapC<String, java.lang.Object>(info.template);
+        message.put("number", object.getNumber());
+        message.put("args", args == null ? null : Arrays.asList(args));
+
+        if (info.async) {
+            return taco.interactAsync(message);
+        }
+
+        return info.convert(taco, taco.interact(message));
+    }
+
+    /**
+     * Handle <code>java.lang.Object</code> methods.
+     */
+    private java.lang.Object invokeLocal(java.lang.Object proxy,
+            Method method, java.lang.Object[] args) {
+        String name = method.getName();
+
+        if (name.equals("equals")) {
+            java.lang.Object other = args[0];
+
+            return other != null
+                    && Proxy.isProxyClass(other.getClass())
+                    && Proxy.getInvocationHandler(other)
+                        instanceof ObjectProxy
+                    && ((ObjectProxy) Proxy.getInvocationHandler(other))
+                        .object == object
+                    && other.getClass() == proxy.getClass();
+        }
+        else if (name.equals("hashCode")) {
+            return object.hashCode();
+        }
+        else {
+            return object.toString();
+        }
+    }
+
+    /**
+     * Information about an interface method.
+     */
+    private static class MethodInfo {
+        /**
+         * Message entries which are the same for every call.
+         */
+        private final Map<String, java.lang.Object> template;
+
+        /**
+         * Whether the method returns a future.
+         */
+        private final boolean async;
+
+        /**
+         * The return type.
+         */
+        private final Class<?> returnType;
+
+        /**
+         * Constructor.
+         *
+         * @throws IllegalArgumentException if the return type is
+         *     a collection type which is not supported
+         */
+        private MethodInfo(Method method) {
+            Remote remote = method.getAnnotation(Remote.class);
+            Class<?> type = method.getReturnType();
+
+            String name = method.getName();
+            Taco.Context context = null;
+
+            if (remote != null) {
+                if (! remote.name().isEmpty()) {
+                    name = remote.name();
+                }
+
+                if (remote.context().length > 0) {
+                    context = remote.context()[0];
+                }
+            }
+
+            if (context == null) {
+                if (type == void.class) {
+                    context = Taco.Context.VOID;
+                }
+                else if (type.isArray()
+                        || Collection.class.isAssignableFrom(type)) {
+                    context = Taco.Context.LIST;
+                }
+                else if (Map.class.isAssignableFrom(type)) {
+                    context = Taco.Context.MAP;
+                }
+                else {
+                    context = Taco.Context.SCALAR;
+                }
+            }
+
+            template = new HashMapC<String, java.lang.Object>()
+                    .putc("action", "call_method")
+                    .putc("name", name)
+                    .putc("kwargs", null)
+                    .putc("context", context.getName());
+
+            async = type == CompletableFuture.class;
+            returnType = type;
+
+            if (Collection.class.isAssignableFrom(type)
+                    && ! type.isAssignableFrom(ArrayList.class)
+                    && ! type.isAssignableFrom(LinkedHashSet.class)) {
+                throw new IllegalArgumentException("method "
+                        + method.getName() + " has unsupported return type "
+                        + type.getName());
+            }
+        }
+
+        /**
+         * Convert a result to the method's return type.
+         */
+        private java.lang.Object convert(Taco taco, java.lang.Object value)
+                throws TacoException {
+            return convertValue(taco, value, returnType);
+        }
+
+        /**
+         * Convert a value to the given (possibly primitive) type.
+         */
+        private static java.lang.Object convertValue(Taco taco,
+                java.lang.Object value, Class<?> type)
+                throws TacoException {
+            if (type == void.class || type == Void.class) {
+                return null;
+            }
+
+            if (value == null) {
+                if (type.isPrimitive()) {
+                    throw new TacoException(
+                            "null result for primitive type "
+                            + type.getName());
+                }
+
+                return null;
+            }
+
+            Class<?> targetType = type.isPrimitive()
+                    ? wrapperClass(type) : type;
+
+            if (targetType.isInstance(value)) {
+                return value;
+            }
+
+            if (value instanceof Number) {
+                Number number = (Number) value;
+
+                if (targetType == Integer.class) {
+                    return number.intValue();
+                }
+                else if (targetType == Long.class) {
+                    return number.longValue();
+                }
+                else if (targetType == Double.class) {
+                    return number.doubleValue();
+                }
+                else if (targetType == Float.class) {
+                    return number.floatValue();
+                }
+                else if (targetType == Short.class) {
+                    return number.shortValue();
+                }
+                else if (targetType == Byte.class) {
+                    return number.byteValue();
+                }
+            }
+            else if (value instanceof Collection) {
+                Collection<?> collection = (Collection<?>) value;
+
+                if (targetType.isArray()) {
+                    Class<?> componentType = targetType.getComponentType();
+                    java.lang.Object array = Array.newInstance(
+                            componentType, collection.size());
+                    int i = 0;
+
+                    for (java.lang.Object element: collection) {
+                        Array.set(array, i ++, convertValue(
+                                taco, element, componentType));
+                    }
+
+                    return array;
+                }
+                else if (targetType.isAssignableFrom(ArrayList.class)) {
+                    return new ArrayList<java.lang.Object>(collection);
+                }
+                else if (targetType.isAssignableFrom(LinkedHashSet.class)) {
+                    return new LinkedHashSet<java.lang.Object>(collection);
+                }
+            }
+            else if (value instanceof Taco.Object && targetType.isInterface()) {
+                return taco.proxy((Taco.Object) value, targetType);
+            }
+
+            throw new TacoException("result of type "
+                    + value.getClass().getName()
+                    + " cannot be converted to " + targetType.getName());
+        }
+
+        /**
+         * Get the wrapper class for a primitive type.
+         */
+        private static Class<?> wrapperClass(Class<?> type) {
+            if (type == int.class) {
+                return Integer.class;
+            }
+            else if (type == long.class) {
+                return Long.class;
+            }
+            else if (type == double.class) {
+                return Double.class;
+            }
+            else if (type == float.class) {
+                return Float.class;
+            }
+            else if (type == short.class) {
+                return Short.class;
+            }
+            else if (type == byte.class) {
+                return Byte.class;
+            }
+            else if (type == boolean.class) {
+                return Boolean.class;
+            }
+            else if (type == char.class) {
+                return Character.class;
+            }
+            else {
+                return Void.class;
+            }
+        }
+    }
+}
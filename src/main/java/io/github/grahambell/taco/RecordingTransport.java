@@ -0,0 +1,293 @@
+/*
+ * Taco Java recording transport class.
+ * Copyright (C) 2014-2015 Graham Bell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.grahambell.taco;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Transport which records every message read and written to a log.
+ *
+ * This class takes over the streams of an existing stream-based
+ * transport, and behaves in the same way except that the text of each
+ * message is also written to the log along with the time at which it
+ * was read or written.  The log can be read with {@link #readLog}, for
+ * example by {@link TacoReplay}.
+ *
+ * The log is a binary file starting with the bytes "TACOLOG1",
+ * followed by one entry per message consisting of: the direction
+ * ('R' for read or 'W' for written) as a byte, the time in nanoseconds
+ * since recording started as a long, and the message text in UTF-8,
+ * preceded by its length in bytes as an int.  The log is buffered and
+ * flushed at most once a second, and when the transport is closed.
+ */
+public class RecordingTransport extends TacoTransport {
+    /**
+     * Bytes at the start of every log.
+     */
+    private static final byte[] MAGIC =
+            "TACOLOG1".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Interval in nanoseconds between flushes of the log.
+     */
+    private static final long FLUSH_INTERVAL = 1000000000L;
+
+    /**
+     * Stream to which the log is written.
+     */
+    private final DataOutputStream log;
+
+    /**
+     * Time at which recording started, from <code>System.nanoTime</code>.
+     */
+    private final long startTime;
+
+    /**
+     * Time at which the log was last flushed.
+     */
+    private long lastFlush;
+
+    /**
+     * Whether the log has been closed.
+     */
+    private boolean logClosed = false;
+
+    /**
+     * Construct a recording transport using the streams, filter,
+     * metrics and decoding mode of the given transport.
+     *
+     * The original transport should not be used afterwards.
+     *
+     * @param xp the transport whose streams are to be used
+     * @param log the stream to which to write the log
+     * @throws TacoException on error writing to the log
+     */
+    public RecordingTransport(TacoTransport xp, OutputStream log)
+            throws TacoException {
+        super(xp.filter);
+
+        if (xp.in == null || xp.out == null) {
+            throw new TacoException("transport does not use streams");
+        }
+
+        this.in = xp.in;
+        this.out = xp.out;
+        this.metrics = xp.metrics;
+        this.lazyDecoding = xp.lazyDecoding;
+        this.log = new DataOutputStream(new BufferedOutputStream(log));
+
+        try {
+            this.log.write(MAGIC);
+        }
+        catch (IOException e) {
+            throw new TacoException("log write error: " + e.getMessage(), e);
+        }
+
+        startTime = lastFlush = System.nanoTime();
+    }
+
+    /**
+     * Close the log.
+     */
+    @Override
+    public void close() {
+        synchronized (log) {
+            if (! logClosed) {
+                logClosed = true;
+
+                try {
+                    log.close();
+                }
+                catch (IOException e) {
+                    // Nothing more can be recorded anyway.
+                }
+            }
+        }
+    }
+
+    /**
+     * Read one message from the input stream, recording its text.
+     */
+    @Override
+    public Map<String, Object> read() throws TacoException {
+        String text = readText();
+
+        if (text == null) {
+            return null;
+        }
+
+        record('R', text);
+        return decode(text);
+    }
+
+    /**
+     * Write a message to the output stream, recording its text.
+     */
+    @Override
+    public void write(Map<String, Object> message) throws TacoException {
+        String text = encode(message);
+        record('W', text);
+        writeText(text);
+    }
+
+    /**
+     * Write an entry to the log.
+     *
+     * Errors writing the log are not reported, so that they do not
+     * interrupt the session being recorded, but stop further recording.
+     */
+    private void record(char direction, String text) {
+        long time = System.nanoTime();
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+
+        synchronized (log) {
+            if (logClosed) {
+                return;
+            }
+
+            try {
+                log.writeByte(direction);
+                log.writeLong(time - startTime);
+                log.writeInt(bytes.length);
+                log.write(bytes);
+
+                if (time - lastFlush > FLUSH_INTERVAL) {
+                    log.flush();
+                    lastFlush = time;
+                }
+            }
+            catch (IOException e) {
+                close();
+            }
+        }
+    }
+
+    /**
+     * Read a log written by this class.
+     *
+     * @param in stream from which to read the log
+     * @return list of log entries, in the order in which they were written
+     * @throws TacoException on error reading the log, or if it is not in
+     *     the expected format
+     */
+    public static List<Entry> readLog(InputStream in) throws TacoException {
+        List<Entry> entries = new ArrayList<Entry>();
+        DataInputStream data = new DataInputStream(
+                new BufferedInputStream(in));
+
+        try {
+            byte[] magic = new byte[MAGIC.length];
+
+            try {
+                data.readFully(magic);
+            }
+            catch (EOFException e) {
+                throw new TacoException("not a Taco log", e);
+            }
+
+            if (! Arrays.equals(magic, MAGIC)) {
+                throw new TacoException("not a Taco log");
+            }
+
+            while (true) {
+                int direction = data.read();
+
+                if (direction == -1) {
+                    break;
+                }
+
+                try {
+                    long time = data.readLong();
+                    byte[] bytes = new byte[data.readInt()];
+                    data.readFully(bytes);
+
+                    entries.add(new Entry((char) direction, time,
+                            new String(bytes, StandardCharsets.UTF_8)));
+                }
+                catch (EOFException e) {
+                    // Ignore a truncated final entry: the recording
+                    // process may not have exited cleanly.
+                    break;
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new TacoException("log read error: " + e.getMessage(), e);
+        }
+
+        return entries;
+    }
+
+    /**
+     * Entry in a log.
+     */
+    public static class Entry {
+        private final char direction;
+        private final long time;
+        private final String text;
+
+        /**
+         * Constructor.
+         */
+        private Entry(char direction, long time, String text) {
+            this.direction = direction;
+            this.time = time;
+            this.text = text;
+        }
+
+        /**
+         * Get the direction of the message.
+         *
+         * @return 'R' if the message was read or 'W' if it was written
+         */
+        public char getDirection() {
+            return direction;
+        }
+
+        /**
+         * Get the time at which the message was read or written.
+         *
+         * @return time in nanoseconds since recording started
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * Get the message text.
+         *
+         * @return JSON text of the message
+         */
+        public String getText() {
+            return text;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Taco Java remote iterator class.
+ * Copyright (C) 2014-2015 Graham Bell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.grahambell.taco;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Iterator over the items of an iterable object in a Taco server's cache.
+ *
+ * Instances are created by {@link Taco.Object#iterate}.  Items are
+ * fetched from the server in batches using the "next_items" action,
+ * and the next batch is requested in the background while the current
+ * one is consumed.  The batch size starts small, so that the first items
+ * arrive quickly, and is doubled (up to a limit) whenever the consumer
+ * has to wait for a batch to arrive.
+ *
+ * Since the <code>Iterator</code> methods cannot throw checked exceptions,
+ * errors are thrown as <code>CompletionException</code> with the
+ * <code>TacoException</code> as the cause.
+ *
+ * The server's iterator is released once all of the items have been
+ * read, or when this iterator is closed.
+ */
+public class RemoteIterator implements Iterator<java.lang.Object>,
+        AutoCloseable {
+    /**
+     * Number of items requested in the first batch.
+     */
+    public static final int INITIAL_BATCH_SIZE = 16;
+
+    /**
+     * Maximum number of items requested in one batch.
+     */
+    public static final int MAXIMUM_BATCH_SIZE = 1024;
+
+    /**
+     * The Taco client.
+     */
+    private final Taco taco;
+
+    /**
+     * The server's iterator.
+     */
+    private final Taco.Object iterator;
+
+    /**
+     * The number of items requested in the next batch.
+     */
+    private int batchSize = INITIAL_BATCH_SIZE;
+
+    /**
+     * Items of the current batch not yet returned.
+     */
+    private Iterator<java.lang.Object> items = Collections.emptyIterator();
+
+    /**
+     * Request for the next batch, or null if there are no more batches.
+     */
+    private CompletableFuture<java.lang.Object> next;
+
+    /**
+     * The number of items requested by {@link #next}.
+     */
+    private int nextSize;
+
+    /**
+     * Constructor.
+     *
+     * The request for the first batch is sent immediately.
+     *
+     * @param taco the Taco client
+     * @param iterator reference to the server's iterator
+     */
+    RemoteIterator(Taco taco, Taco.Object iterator) {
+        this.taco = taco;
+        this.iterator = iterator;
+        fetch();
+    }
+
+    /**
+     * Check whether there are more items.
+     *
+     * @return true if there is another item
+     * @throws CompletionException on error fetching items
+     */
+    @Override
+    public boolean hasNext() {
+        while (! items.hasNext()) {
+            if (next == null) {
+                return false;
+            }
+
+            if (! next.isDone() && batchSize < MAXIMUM_BATCH_SIZE) {
+                batchSize *= 2;
+            }
+
+            List<java.lang.Object> batch;
+            int size = nextSize;
+
+            try {
+                batch = (List<java.lang.Object>) Taco.getResult(next);
+            }
+            catch (TacoException e) {
+                next = null;
+                close();
+                throw new CompletionException(e);
+            }
+
+            if (batch.size() < size) {
+                next = null;
+                close();
+            }
+            else {
+                fetch();
+            }
+
+            items = batch.iterator();
+        }
+
+        return true;
+    }
+
+    /**
+     * Get the next item.
+     *
+     * @return the next item
+     * @throws NoSuchElementException if there are no more items
+     * @throws CompletionException on error fetching items
+     */
+    @Override
+    public java.lang.Object next() {
+        if (! hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        return items.next();
+    }
+
+    /**
+     * Release the server's iterator.
+     *
+     * No further batches are requested, but items which have already
+     * been received can still be read.  This happens automatically once
+     * the iterator is exhausted, or when it becomes unreachable.
+     */
+    @Override
+    public void close() {
+        CompletableFuture<java.lang.Object> pending = next;
+        next = null;
+
+        if (pending == null) {
+            iterator.close();
+        }
+        else {
+            // Wait for the outstanding batch so that the iterator
+            // is not released while it is being read.
+            pending.whenComplete((result, error) -> iterator.close());
+        }
+    }
+
+    /**
+     * Get a sequential stream of the remaining items.
+     *
+     * Closing the stream closes this iterator.
+     *
+     * @return stream of items
+     */
+    public Stream<java.lang.Object> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(
+                this, Spliterator.ORDERED), false).onClose(this::close);
+    }
+
+    /**
+     * Request the next batch of items.
+     */
+    private void fetch() {
+        nextSize = batchSize;
+        next = taco.interactAsync(new HashMapC<String, java.lang.Object>()
+                .putc("action", "next_items")
+                .putc("number", iterator.getNumber())
+                .putc("count", nextSize));
+    }
+}
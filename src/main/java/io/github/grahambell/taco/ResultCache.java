@@ -0,0 +1,377 @@
+/*
+ * Taco Java result cache class.
+ * Copyright (C) 2014-2015 Graham Bell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.grahambell.taco;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bounded cache of results of deterministic calls.
+ *
+ * Entries are evicted in least-recently-used order once the maximum
+ * size is reached, and are discarded when older than the maximum age
+ * (if one is given).  A different maximum age can be given for
+ * individual entries.  Only values which can be represented as plain JSON
+ * (see {@link #isPlain}) should be stored, so that cached results never
+ * refer to objects held in a Taco server's object cache.
+ */
+public class ResultCache {
+    /**
+     * Value returned by {@link #get} when no entry is present.
+     */
+    public static final Object MISSING = new Object();
+
+    /**
+     * Annotation marking a class or static method as suitable for
+     * having its results cached.
+     *
+     * When applied to a class, all of its static methods are considered
+     * cacheable.  Such methods should return the same result every time
+     * they are called with the same arguments.
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({ElementType.METHOD, ElementType.TYPE})
+    public @interface Cacheable {
+    }
+
+    /**
+     * Cache entries, in access order.
+     */
+    private final LinkedHashMap<Object, Entry> entries;
+
+    /**
+     * Maximum age of entries in nanoseconds, or 0 for no limit.
+     */
+    private final long maxAge;
+
+    /**
+     * Names of classes and methods ("class.method") which are cacheable.
+     */
+    private final Set<String> allowed = new HashSet<String>();
+
+    /**
+     * Previous decisions made by {@link #isCacheable}.
+     */
+    private final Map<String, Boolean> decisions =
+            new HashMap<String, Boolean>();
+
+    /**
+     * Number of successful lookups.
+     */
+    private long hits = 0;
+
+    /**
+     * Number of unsuccessful lookups.
+     */
+    private long misses = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param maxSize the maximum number of entries
+     * @param maxAge the maximum age of entries in milliseconds,
+     *     or 0 for no limit
+     */
+    public ResultCache(final int maxSize, long maxAge) {
+        this.maxAge = maxAge * 1000000;
+
+        entries = new LinkedHashMap<Object, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<Object, ResultCache.Entry> e) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Allow caching of the results of a class's static methods, or of
+     * a particular static method.
+     *
+     * @param name the name of a class, or of a method in the form
+     *     "class.method"
+     */
+    public synchronized void allow(String name) {
+        allowed.add(name);
+        decisions.clear();
+    }
+
+    /**
+     * Determine whether calls to the given static method may be cached.
+     *
+     * This is the case if the class or method has been allowed (see
+     * {@link #allow}), if the class has the {@link Cacheable}
+     * annotation, or if all public static methods of the given name
+     * have the {@link Cacheable} annotation.
+     *
+     * @param cls the class
+     * @param name the method name
+     * @return true if results may be cached
+     */
+    public synchronized boolean isCacheable(Class cls, String name) {
+        String fullName = cls.getName() + "." + name;
+        Boolean decision = decisions.get(fullName);
+
+        if (decision == null) {
+            decision = allowed.contains(cls.getName())
+                    || allowed.contains(fullName)
+                    || cls.isAnnotationPresent(Cacheable.class)
+                    || allMethodsCacheable(cls, name);
+            decisions.put(fullName, decision);
+        }
+
+        return decision;
+    }
+
+    /**
+     * Check whether all static methods of the given name are annotated
+     * as cacheable.
+     */
+    private static boolean allMethodsCacheable(Class cls, String name) {
+        boolean found = false;
+
+        for (Method m: cls.getMethods()) {
+            if (m.getName().equals(name)) {
+                if (! (Modifier.isStatic(m.getModifiers())
+                        && m.isAnnotationPresent(Cacheable.class))) {
+                    return false;
+                }
+
+                found = true;
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * Look up an entry in the cache.
+     *
+     * @param key the key
+     * @return the cached value, or {@link #MISSING} if there is
+     *     no valid entry
+     */
+    public synchronized Object get(Object key) {
+        Entry entry = entries.get(key);
+
+        if (entry != null && entry.maxAge != 0
+                && System.nanoTime() - entry.time > entry.maxAge) {
+            entries.remove(key);
+            entry = null;
+        }
+
+        if (entry == null) {
+            misses ++;
+            return MISSING;
+        }
+
+        hits ++;
+        return entry.value;
+    }
+
+    /**
+     * Store an entry in the cache.
+     *
+     * @param key the key, which must have structural
+     *     <code>equals</code> and <code>hashCode</code> methods
+     * @param value the value
+     */
+    public synchronized void put(Object key, Object value) {
+        entries.put(key, new Entry(value, System.nanoTime(), maxAge));
+    }
+
+    /**
+     * Store an entry in the cache with its own maximum age.
+     *
+     * @param key the key, which must have structural
+     *     <code>equals</code> and <code>hashCode</code> methods
+     * @param value the value
+     * @param maxAge the maximum age of the entry in milliseconds,
+     *     or 0 if it should not expire
+     */
+    public synchronized void put(Object key, Object value, long maxAge) {
+        entries.put(key, new Entry(value, System.nanoTime(),
+                maxAge * 1000000));
+    }
+
+    /**
+     * Remove an entry from the cache.
+     *
+     * @param key the key
+     */
+    public synchronized void remove(Object key) {
+        entries.remove(key);
+    }
+
+    /**
+     * Remove all entries from the cache.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Get the number of entries in the cache.
+     *
+     * @return number of entries
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Get the number of successful lookups.
+     *
+     * @return number of hits
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Get the number of unsuccessful lookups.
+     *
+     * @return number of misses
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Determine whether a value can be represented as plain JSON.
+     *
+     * This is the case for <code>null</code>, <code>Boolean</code>,
+     * <code>Number</code> and <code>String</code> instances, and for
+     * <code>Map</code> (with <code>String</code> keys) and
+     * <code>Collection</code> instances which contain only such values.
+     *
+     * @param value the value to check
+     * @return true if the value is plain JSON
+     */
+    public static boolean isPlain(Object value) {
+        if (value == null
+                || (value instanceof Boolean)
+                || (value instanceof Number)
+                || (value instanceof String)) {
+            return true;
+        }
+        else if (value instanceof Map) {
+            for (Map.Entry<?, ?> e: ((Map<?, ?>) value).entrySet()) {
+                if (! ((e.getKey() instanceof String)
+                        && isPlain(e.getValue()))) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+        else if (value instanceof Collection) {
+            for (Object item: (Collection<?>) value) {
+                if (! isPlain(item)) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+        else {
+            return false;
+        }
+    }
+
+    /**
+     * Make a deep copy of a plain JSON value.
+     *
+     * <code>Map</code> and <code>Collection</code> instances are copied,
+     * as a <code>HashMap</code> and <code>ArrayList</code> respectively,
+     * so that changes to the copy do not affect the original.  Other
+     * plain values are immutable and are returned as they are.
+     *
+     * @param value the value, which should be plain JSON
+     *     (see {@link #isPlain})
+     * @return a copy of the value
+     */
+    public static Object copyPlain(Object value) {
+        if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            Map<Object, Object> copy = new HashMap<Object, Object>();
+
+            for (Map.Entry<?, ?> e: map.entrySet()) {
+                copy.put(e.getKey(), copyPlain(e.getValue()));
+            }
+
+            return copy;
+        }
+        else if (value instanceof Collection) {
+            Collection<?> collection = (Collection<?>) value;
+            List<Object> copy = new ArrayList<Object>(collection.size());
+
+            for (Object item: collection) {
+                copy.add(copyPlain(item));
+            }
+
+            return copy;
+        }
+        else {
+            return value;
+        }
+    }
+
+    /**
+     * Cache entry.
+     */
+    private static class Entry {
+        /**
+         * The cached value.
+         */
+        private final Object value;
+
+        /**
+         * The time (from <code>System.nanoTime</code>) at which the
+         * entry was stored.
+         */
+        private final long time;
+
+        /**
+         * Maximum age of the entry in nanoseconds, or 0 for no limit.
+         */
+        private final long maxAge;
+
+        /**
+         * Constructor.
+         */
+        private Entry(Object value, long time, long maxAge) {
+            this.value = value;
+            this.time = time;
+            this.maxAge = maxAge;
+        }
+    }
+}
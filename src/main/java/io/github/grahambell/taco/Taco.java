@@ -19,19 +19,205 @@
 package io.github.grahambell.taco;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.Cleaner;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
 
 /**
  * Taco client class.
  */
 public class Taco implements TacoTransport.Filter {
+    /**
+     * Cleaner used to detect unreachable object references.
+     */
+    private static final Cleaner cleaner = Cleaner.create();
+
+    /**
+     * Number of cancelled request identifiers to remember.
+     */
+    private static final int MAX_CANCELLED_REQUESTS = 1024;
+
+    /**
+     * Number of times to attempt to prepare each prepared call.
+     */
+    private static final int MAX_PREPARE_ATTEMPTS = 3;
+
     /**
      * TacoTransport object used for communication.
      */
     protected TacoTransport xp;
 
+    /**
+     * The server subprocess, if this client launched one.
+     */
+    private Process process = null;
+
+    /**
+     * Whether calls in void context should be sent without waiting
+     * for a response.
+     */
+    private volatile boolean voidNoResponse = false;
+
+    /**
+     * Identifier of the most recent call sent without waiting for
+     * a response.
+     */
+    private volatile int lastUnansweredRequest = 0;
+
+    /**
+     * Identifier of the most recent request for which a response
+     * has been received.
+     */
+    private volatile int lastAnsweredRequest = 0;
+
+    /**
+     * Timeout in milliseconds to be requested for each call, or 0 for none.
+     */
+    private volatile long timeout = 0;
+
+    /**
+     * Identifier of the most recent request.
+     */
+    private int requestNum = 0;
+
+    /**
+     * Lock held while writing messages.
+     */
+    private final java.lang.Object writeLock = new java.lang.Object();
+
+    /**
+     * Lock held by the thread which is reading responses.
+     */
+    private final ReentrantLock readLock = new ReentrantLock();
+
+    /**
+     * Requests awaiting a response, in the order in which they were sent.
+     * This object's monitor is notified whenever a request is completed
+     * or the read lock is released.
+     */
+    private final Map<Integer, Request> pendingRequests =
+            new LinkedHashMap<Integer, Request>();
+
+    /**
+     * Thread which reads all responses once an asynchronous request
+     * has been made.
+     */
+    private volatile Thread reader = null;
+
+    /**
+     * Whether the server has been seen to copy request identifiers to
+     * its responses.  Until it has, requests are not cancelled in the
+     * server, since a server which does not support identifiers
+     * answers a "cancel" action with an untagged exception which would
+     * be matched to the wrong request.
+     */
+    private volatile boolean serverUsesIds = false;
+
+    /**
+     * Identifiers of requests for which a "cancel" action has been sent,
+     * limited to the most recent.  A server which copies identifiers
+     * but does not support cancellation answers the "cancel" action
+     * with an exception tagged with the identifier of the request being
+     * cancelled, in addition to its response to that request.  The
+     * second of these responses is discarded rather than ending the
+     * session.  Guarded by the monitor of {@link #pendingRequests}.
+     */
+    private final Map<Integer, Boolean> cancelledRequests =
+            new LinkedHashMap<Integer, Boolean>() {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<Integer, Boolean> eldest) {
+                    return size() > MAX_CANCELLED_REQUESTS;
+                }
+            };
+
+    /**
+     * Error which ended the session, if any.
+     */
+    private volatile TacoException readerError = null;
+
+    /**
+     * Weak references to the object proxy for each object number, so that
+     * each server object is represented by a single
+     * <code>Taco.Object</code>.  This map's monitor also guards the
+     * queueing and sending of object releases.
+     */
+    private final Map<Integer, WeakReference<Object>> objectProxies =
+            new HashMap<Integer, WeakReference<Object>>();
+
+    /**
+     * Numbers of objects which have been released but not yet
+     * destroyed in the server.
+     */
+    private final Queue<Integer> releasedObjects =
+            new ConcurrentLinkedQueue<Integer>();
+
+    /**
+     * Whether released objects can be destroyed with a single
+     * "destroy_objects" action.
+     */
+    private volatile boolean bulkRelease = true;
+
+    /**
+     * Handles of prepared calls which have been released but not yet
+     * released in the server.
+     */
+    private final Queue<Integer> releasedCalls =
+            new ConcurrentLinkedQueue<Integer>();
+
+    /**
+     * Whether the server supports the "release_prepared" action.
+     */
+    private volatile boolean preparedRelease = true;
+
+    /**
+     * Maximum ages in milliseconds (or 0 for no limit) of the class
+     * attributes and variables whose values may be cached, by cache key.
+     */
+    private final Map<List<String>, Long> cacheableValues =
+            new ConcurrentHashMap<List<String>, Long>();
+
+    /**
+     * Cache of class attribute and variable values.
+     */
+    private final ResultCache valueCache =
+            new ResultCache(Integer.MAX_VALUE, 0);
+
+    /**
+     * Number of times each cacheable value has been invalidated, so
+     * that a value fetched before it was set is not stored afterwards.
+     * Guarded by the monitor of {@link #valueCache}.
+     */
+    private final Map<List<String>, Long> valueGenerations =
+            new HashMap<List<String>, Long>();
+
+    /**
+     * Metrics to which to report each interaction, or null.
+     */
+    private volatile TacoMetrics metrics = null;
+
+    /**
+     * Listener to which to report timings of each interaction, or null.
+     */
+    private volatile TraceListener traceListener = null;
+
     /**
      * Construct Taco client by launching the Taco server script for
      * the given language in a subprocess.
@@ -61,14 +247,21 @@ public class Taco implements TacoTransport.Filter {
         pb.redirectError(ProcessBuilder.Redirect.INHERIT);
 
         try {
-            Process p = pb.start();
+            process = pb.start();
 
-            xp = new TacoTransport(p.getInputStream(), p.getOutputStream(),
-                                   this);
+            xp = new TacoTransport(process.getInputStream(),
+                                   process.getOutputStream(), this);
         }
         catch (IOException e) {
             throw new TacoException("start error: " + e.getMessage(), e);
         }
+
+        // Fail outstanding requests as soon as the server exits, rather
+        // than waiting for a read or write to fail.
+        process.onExit().thenAccept(p -> failPendingRequests(
+                new TacoSessionLostException(
+                        "server process exited with status "
+                        + p.exitValue())));
     }
 
     /**
@@ -81,19 +274,536 @@ public class Taco implements TacoTransport.Filter {
         this.xp = xp;
     }
 
+    /**
+     * Determine whether the server subprocess is still running.
+     *
+     * @return false if this client launched a subprocess which has since
+     *     exited, true otherwise
+     */
+    public boolean isAlive() {
+        return process == null || process.isAlive();
+    }
+
+    /**
+     * Perform a round trip to the server to check that it is ready.
+     *
+     * Any response, even an exception, shows that the server is
+     * running, so only loss of the session is reported.
+     *
+     * @throws TacoSessionLostException if the server is not running
+     */
+    void handshake() throws TacoSessionLostException {
+        try {
+            interact(new HashMapC().putc("action", "flush_errors"));
+        }
+        catch (TacoSessionLostException e) {
+            throw e;
+        }
+        catch (TacoException e) {
+            // The server responded.
+        }
+    }
+
+    /**
+     * Terminate the server subprocess, if this client launched one,
+     * and close the transport.
+     *
+     * Any requests still awaiting a response will fail.
+     */
+    public void close() {
+        if (process != null) {
+            process.destroy();
+        }
+
+        xp.close();
+    }
+
+    /**
+     * Specify whether calls in void context should be sent without
+     * waiting for a response.
+     *
+     * When enabled, function and method calls made with
+     * {@link Context#VOID} are sent with a "no_response" parameter and
+     * return null immediately.  The server does not reply to such calls.
+     * If one fails, the exception is reported by the server with the
+     * response to the next interaction, or can be checked for using
+     * {@link #flushErrors}.  This requires a server which supports the
+     * "no_response" parameter.
+     *
+     * @param enable true to send void context calls without waiting
+     */
+    public void setVoidNoResponse(boolean enable) {
+        voidNoResponse = enable;
+    }
+
+    /**
+     * Specify a timeout to be requested for each interaction.
+     *
+     * If the server does not complete handling a request within this
+     * time, it abandons the request and a {@link TacoTimeoutException}
+     * is thrown.  This requires a server which supports the "timeout"
+     * parameter.
+     *
+     * @param milliseconds the timeout, or 0 for no timeout
+     */
+    public void setTimeout(long milliseconds) {
+        timeout = milliseconds;
+    }
+
+    /**
+     * Cancel all requests which are currently awaiting a response.
+     *
+     * This method is intended to be called from a different thread than
+     * those waiting for responses, which will receive a
+     * <code>TacoException</code>.  If the server has been seen to tag
+     * its responses with request identifiers, a "cancel" action is sent
+     * for each request, so that a server which supports that action can
+     * stop work on it.  Otherwise the requests are only cancelled
+     * locally, and their responses discarded when they arrive.
+     * This method does nothing if no request is in progress.
+     */
+    public void cancel() {
+        List<Request> requests;
+
+        synchronized (pendingRequests) {
+            requests = new ArrayList<Request>(pendingRequests.values());
+        }
+
+        for (Request request: requests) {
+            request.cancel(true);
+        }
+    }
+
+    /**
+     * Check for exceptions from calls sent without waiting for a response.
+     *
+     * If any such calls have been made since the last response was
+     * received, a "flush_errors" action is sent to the server so that
+     * any deferred exceptions are reported.
+     *
+     * @throws TacoException if any deferred exception was reported, or
+     *     on error communicating with the server
+     */
+    public void flushErrors() throws TacoException {
+        if (lastUnansweredRequest > lastAnsweredRequest) {
+            interact(new HashMapC().putc("action", "flush_errors"));
+        }
+    }
+
+    /**
+     * Record all messages sent and received to a log, using a
+     * {@link RecordingTransport}.
+     *
+     * This must be done before the first request is sent.  The log
+     * is closed when this client is closed.
+     *
+     * @param log the stream to which to write the log
+     * @throws TacoException if a request has already been sent, if the
+     *     transport does not use streams, or on error writing the log
+     */
+    public void record(OutputStream log) throws TacoException {
+        synchronized (writeLock) {
+            if (requestNum > 0) {
+                throw new TacoException(
+                        "recording must start before the first request");
+            }
+
+            xp = new RecordingTransport(xp, log);
+        }
+    }
+
+    /**
+     * Specify whether to decode the contents of responses lazily.
+     *
+     * When enabled, maps and lists in results are converted only as
+     * they are accessed, which saves work when only part of a large
+     * result is used.  See {@link TacoTransport#setLazyDecoding}.
+     *
+     * @param enable true to decode lazily
+     */
+    public void setLazyDecoding(boolean enable) {
+        xp.setLazyDecoding(enable);
+    }
+
+    /**
+     * Specify metrics to which to report the latency of each interaction
+     * (from sending the request to receiving its response) and, via the
+     * transport, each message read and written.
+     *
+     * @param metrics the metrics, or null to stop reporting
+     */
+    public void setMetrics(TacoMetrics metrics) {
+        this.metrics = metrics;
+        xp.setMetrics(metrics);
+    }
+
+    /**
+     * Get the metrics to which interactions are reported.
+     *
+     * @return the metrics, or null if not reporting
+     */
+    public TacoMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Specify a listener to receive a breakdown of the time taken by
+     * each subsequent interaction.
+     *
+     * While a listener is set, requests are sent with a "trace"
+     * parameter, asking the server to report its own timings in the
+     * response.  The listener is called once the response has been
+     * read, usually by the thread which reads responses, so it should
+     * return promptly.  This requires a server which supports the
+     * "trace" parameter, otherwise the server's times are reported as
+     * zero.
+     *
+     * @param listener the listener, or null to stop tracing
+     */
+    public void setTraceListener(TraceListener listener) {
+        traceListener = listener;
+    }
+
+    /**
+     * Allow the value of a class (static) attribute to be cached.
+     *
+     * Subsequent calls to {@link #getClassAttribute} for this attribute
+     * return the cached value, if present, without contacting the server.
+     * The cached value is discarded when the attribute is set via
+     * this client, but changes made by any other means are not detected
+     * until the entry expires.  Only values which can be represented as
+     * plain JSON are cached.
+     *
+     * @param className the name of the class
+     * @param name the name of the attribute
+     * @param maxAge the time in milliseconds for which the value may be
+     *     cached, or 0 if the value never changes
+     */
+    public void cacheClassAttribute(String className, String name,
+            long maxAge) {
+        List<String> key = classAttributeKey(className, name);
+        cacheableValues.put(key, maxAge);
+        invalidate(key);
+    }
+
+    /**
+     * Allow the value of a constant class (static) attribute to be cached.
+     *
+     * @param className the name of the class
+     * @param name the name of the attribute
+     * @see #cacheClassAttribute(String, String, long)
+     */
+    public void cacheClassAttribute(String className, String name) {
+        cacheClassAttribute(className, name, 0);
+    }
+
+    /**
+     * Allow the value of a variable to be cached.
+     *
+     * Subsequent calls to {@link #getValue} for this variable
+     * return the cached value, if present, without contacting the server.
+     * The cached value is discarded when the variable is set via
+     * this client, but changes made by any other means are not detected
+     * until the entry expires.  Only values which can be represented as
+     * plain JSON are cached.
+     *
+     * @param name the name of the variable
+     * @param maxAge the time in milliseconds for which the value may be
+     *     cached, or 0 if the value never changes
+     */
+    public void cacheValue(String name, long maxAge) {
+        List<String> key = valueKey(name);
+        cacheableValues.put(key, maxAge);
+        invalidate(key);
+    }
+
+    /**
+     * Allow the value of a constant variable to be cached.
+     *
+     * @param name the name of the variable
+     * @see #cacheValue(String, long)
+     */
+    public void cacheValue(String name) {
+        cacheValue(name, 0);
+    }
+
+    /**
+     * Get the cache of class attribute and variable values.
+     *
+     * This can be used to obtain hit and miss statistics, or to clear
+     * the cache.
+     *
+     * @return the value cache
+     */
+    public ResultCache getValueCache() {
+        return valueCache;
+    }
+
     /**
      * Perform an interaction with the Taco server.
      *
+     * The message is given an "id" parameter identifying the request,
+     * and a "timeout" parameter if a timeout has been set.
+     *
+     * If the message is a call in void context, and void context calls
+     * are to be sent without waiting (see {@link #setVoidNoResponse}),
+     * then the message is written and null is returned immediately.
+     *
+     * This method may be called concurrently by several threads.
+     * Each request is written in full before the next, and responses
+     * are matched to requests by their identifiers.  While no reader
+     * thread is running, one of the waiting threads reads responses
+     * on behalf of all of them until its own response arrives.
+     *
      * @param message the message to send to the Taco server
      * @return the result included in any "result" action received
      * @throws TacoException on error reading or writing, if an unknown action
-     *     is received, or if an "exception" action is received
+     *     is received, if an "exception" action is received, or if the
+     *     response reports exceptions from calls sent without waiting
+     * @throws TacoTimeoutException if the server reports that the
+     *     request timed out
      */
     protected java.lang.Object interact(Map<String, java.lang.Object> message)
             throws TacoException {
-        xp.write(message);
+        return waitFor(send(message));
+    }
+
+    /**
+     * Begin an asynchronous interaction with the Taco server.
+     *
+     * The message is prepared as for {@link #interact}, and written
+     * to the server.  From then on, responses are read by a separate
+     * reader thread, which is used to complete the returned future.
+     * Dependent actions attached to the future without an executor will
+     * run on the reader thread, so they should not block.
+     *
+     * @param message the message to send to the Taco server
+     * @return future for the result included in any "result" action
+     *     received, completed exceptionally with a
+     *     <code>TacoException</code> if the interaction fails
+     */
+    protected CompletableFuture<java.lang.Object> interactAsync(
+            Map<String, java.lang.Object> message) {
+        if (reader == null) {
+            synchronized (writeLock) {
+                if (reader == null) {
+                    reader = new Reader();
+                    reader.start();
+                }
+            }
+        }
+
+        return send(message);
+    }
+
+    /**
+     * Write a message to the server, preceded by the release of any
+     * objects and prepared calls which are no longer referenced.
+     *
+     * @param message the message to send to the Taco server
+     * @return future for the result
+     */
+    private CompletableFuture<java.lang.Object> send(
+            Map<String, java.lang.Object> message) {
+        synchronized (writeLock) {
+            if (readerError != null) {
+                return failedFuture(readerError);
+            }
+
+            if (! (releasedObjects.isEmpty() && releasedCalls.isEmpty())) {
+                writeReleases();
+            }
+
+            return write(message);
+        }
+    }
+
+    /**
+     * Write messages instructing the server to destroy the objects and
+     * prepared calls which have been released.  Must be called with the
+     * write lock held.
+     *
+     * The numbers of all released objects are sent in a single
+     * "destroy_objects" message.  Nothing waits for the response,
+     * which is read along with the responses to subsequent requests.
+     * If the server does not support this action, the numbers are
+     * queued again and then sent in individual "destroy_object" messages.
+     * Prepared call handles are sent in a "release_prepared" message,
+     * unless the server has been found not to support it.
+     */
+    private void writeReleases() {
+        List<Integer> handles = new ArrayList<Integer>();
+        Integer handle;
+
+        while ((handle = releasedCalls.poll()) != null) {
+            handles.add(handle);
+        }
+
+        if (! handles.isEmpty() && preparedRelease) {
+            write(new HashMapC()
+                    .putc("action", "release_prepared")
+                    .putc("handles", handles)
+            ).whenComplete((result, error) -> {
+                if (error != null) {
+                    preparedRelease = false;
+                }
+            });
+        }
+
+        List<Integer> numbers = new ArrayList<Integer>();
+        Integer number;
+
+        synchronized (objectProxies) {
+            while ((number = releasedObjects.poll()) != null) {
+                numbers.add(number);
+            }
+        }
+
+        if (numbers.isEmpty()) {
+            return;
+        }
+
+        if (bulkRelease) {
+            write(new HashMapC()
+                    .putc("action", "destroy_objects")
+                    .putc("numbers", numbers)
+            ).whenComplete((result, error) -> {
+                if (error != null && bulkRelease) {
+                    bulkRelease = false;
+
+                    synchronized (objectProxies) {
+                        for (Integer n: numbers) {
+                            if (! objectProxies.containsKey(n)) {
+                                releasedObjects.add(n);
+                            }
+                        }
+                    }
+                }
+            });
+        }
+        else {
+            for (Integer n: numbers) {
+                write(new HashMapC()
+                        .putc("action", "destroy_object")
+                        .putc("number", n));
+            }
+        }
+    }
+
+    /**
+     * Write a message to the server, registering it as a pending request
+     * unless it is sent without waiting for a response.  Must be called
+     * with the write lock held.
+     *
+     * @param message the message to send to the Taco server
+     * @return future for the result
+     */
+    private CompletableFuture<java.lang.Object> write(
+            Map<String, java.lang.Object> message) {
+        int id = prepareMessage(message);
+
+        if (message.containsKey("no_response")) {
+            try {
+                xp.write(message);
+                lastUnansweredRequest = id;
+                return CompletableFuture.completedFuture(null);
+            }
+            catch (TacoException e) {
+                return failedFuture(sessionError(e));
+            }
+        }
+
+        Request request = new Request(id, (String) message.get("action"),
+                message.containsKey("trace") ? traceListener : null);
+
+        synchronized (pendingRequests) {
+            pendingRequests.put(id, request);
+            pendingRequests.notifyAll();
+        }
+
+        try {
+            xp.write(message);
+        }
+        catch (TacoException e) {
+            synchronized (pendingRequests) {
+                pendingRequests.remove(id);
+            }
+
+            request.completeExceptionally(sessionError(e));
+            return request;
+        }
+
+        if (request.listener != null) {
+            request.written();
+        }
+
+        return request;
+    }
+
+    /**
+     * Convert an exception caused by an I/O error into a
+     * {@link TacoSessionLostException}.
+     */
+    private static TacoException sessionError(TacoException e) {
+        if (e.getCause() instanceof IOException) {
+            return new TacoSessionLostException(e.getMessage(), e);
+        }
+
+        return e;
+    }
+
+    /**
+     * Add the request identifier and other optional parameters to
+     * a message.  Must be called with the write lock held.
+     *
+     * @param message the message
+     * @return the request identifier
+     */
+    private int prepareMessage(Map<String, java.lang.Object> message) {
+        int id = ++ requestNum;
+        message.put("id", id);
+
+        if (timeout > 0) {
+            message.put("timeout", timeout);
+        }
+
+        if (voidNoResponse
+                && Context.VOID.getName().equals(message.get("context"))) {
+            message.put("no_response", true);
+        }
+
+        if (traceListener != null) {
+            message.put("trace", true);
+        }
+
+        return id;
+    }
+
+    /**
+     * Interpret the response to a request.
+     *
+     * @param id the request identifier
+     * @param response the response message
+     * @return the result included in a "result" action
+     * @throws TacoException if the response is not a "result" action or
+     *     reports exceptions from calls sent without waiting
+     */
+    private java.lang.Object processResponse(int id,
+            Map<String, java.lang.Object> response)
+            throws TacoException {
+        if (id > lastAnsweredRequest) {
+            lastAnsweredRequest = id;
+        }
 
-        Map<String, java.lang.Object> response = xp.read();
+        List<?> deferred = (List<?>) response.get("deferred");
+
+        if (deferred != null && ! deferred.isEmpty()) {
+            throw new TacoException("received deferred exception: "
+                    + deferred.get(0)
+                    + (deferred.size() > 1
+                            ? " (and " + (deferred.size() - 1) + " more)"
+                            : ""));
+        }
 
         String action = (String) response.get("action");
 
@@ -101,6 +811,11 @@ public class Taco implements TacoTransport.Filter {
             return response.get("result");
         }
         else if ("exception".equals(action)) {
+            if ("timeout".equals(response.get("type"))) {
+                throw new TacoTimeoutException("received timeout: "
+                        + response.get("message"));
+            }
+
             throw new TacoException("received exception: "
                     + response.get("message"));
         }
@@ -109,6 +824,214 @@ public class Taco implements TacoTransport.Filter {
         }
     }
 
+    /**
+     * Wait for the result of an interaction.
+     *
+     * If no other thread is reading responses, this thread reads
+     * and dispatches them until its own request is complete.
+     * Otherwise it waits for the request to be completed, or for
+     * the other thread to stop reading.
+     *
+     * @param future the future returned by {@link #send}
+     * @return the result
+     * @throws TacoException if the interaction failed, or if the
+     *     waiting thread is interrupted
+     */
+    private java.lang.Object waitFor(CompletableFuture<java.lang.Object> future)
+            throws TacoException {
+        while (! future.isDone()) {
+            if (readLock.tryLock()) {
+                try {
+                    while (! future.isDone() && readResponse()) {
+                        // Continue reading until this request is complete.
+                    }
+                }
+                finally {
+                    readLock.unlock();
+
+                    synchronized (pendingRequests) {
+                        pendingRequests.notifyAll();
+                    }
+                }
+            }
+            else {
+                synchronized (pendingRequests) {
+                    if (! future.isDone() && readLock.isLocked()) {
+                        try {
+                            pendingRequests.wait();
+                        }
+                        catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new TacoException(
+                                    "interrupted while waiting", e);
+                        }
+                    }
+                }
+            }
+        }
+
+        return getResult(future);
+    }
+
+    /**
+     * Read one response and pass it to the matching request.  Must be
+     * called with the read lock held.
+     *
+     * @return false if the session has ended
+     */
+    private boolean readResponse() {
+        Map<String, java.lang.Object> response;
+
+        try {
+            response = xp.read();
+        }
+        catch (TacoException e) {
+            failPendingRequests(sessionError(e));
+            return false;
+        }
+
+        if (response == null) {
+            failPendingRequests(new TacoSessionLostException(
+                    "end of input from server"));
+            return false;
+        }
+
+        return dispatchResponse(response, xp.lastDecodeTime);
+    }
+
+    /**
+     * Get the result of a future, unwrapping any
+     * <code>TacoException</code> with which it failed.
+     *
+     * @param future the future
+     * @return the result
+     * @throws TacoException if the future failed or was cancelled, or if
+     *     the waiting thread is interrupted
+     */
+    static <T> T getResult(CompletableFuture<T> future)
+            throws TacoException {
+        try {
+            return future.get();
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof TacoException) {
+                throw (TacoException) e.getCause();
+            }
+
+            throw new TacoException("interaction failed: " + e.getCause(),
+                    e.getCause());
+        }
+        catch (CancellationException e) {
+            throw new TacoException("request cancelled", e);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TacoException("interrupted while waiting", e);
+        }
+    }
+
+    /**
+     * Create a future which has failed with the given exception.
+     */
+    private static <T> CompletableFuture<T> failedFuture(Throwable e) {
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
+    /**
+     * Pass a response to the matching request.
+     *
+     * Responses are matched by their "id" parameter.  Responses without
+     * an identifier are matched to the oldest pending request, since
+     * servers answer requests in order.  A response with an identifier
+     * which does not match any pending request ends the session.
+     *
+     * @param response the response
+     * @param decodeTime the time taken to decode the response,
+     *     in nanoseconds
+     * @return false if the session has ended
+     */
+    private boolean dispatchResponse(Map<String, java.lang.Object> response,
+            long decodeTime) {
+        Request request;
+        java.lang.Object id = response.get("id");
+
+        synchronized (pendingRequests) {
+            if (id != null) {
+                serverUsesIds = true;
+                request = pendingRequests.remove(id);
+
+                if (request == null && cancelledRequests.remove(id) != null) {
+                    // Second response concerning a cancelled request.
+                    return true;
+                }
+            }
+            else {
+                Iterator<Request> i = pendingRequests.values().iterator();
+                request = i.hasNext() ? i.next() : null;
+
+                if (request != null) {
+                    i.remove();
+                }
+            }
+        }
+
+        if (request == null) {
+            failPendingRequests(new TacoException(
+                    "received response to unexpected request: " + id));
+            return false;
+        }
+
+        if (request.listener != null) {
+            request.received(response.get("trace"), decodeTime);
+        }
+
+        boolean error = false;
+
+        try {
+            request.complete(processResponse(request.id, response));
+        }
+        catch (TacoException e) {
+            error = true;
+            request.completeExceptionally(e);
+        }
+
+        TacoMetrics metrics = this.metrics;
+        if (metrics != null) {
+            metrics.recordAction(request.action,
+                    System.nanoTime() - request.startTime, error);
+        }
+
+        synchronized (pendingRequests) {
+            pendingRequests.notifyAll();
+        }
+
+        return true;
+    }
+
+    /**
+     * Fail all pending requests, and any future requests, after an
+     * error reading responses.
+     */
+    private void failPendingRequests(TacoException error) {
+        List<Request> requests;
+
+        synchronized (pendingRequests) {
+            readerError = error;
+            requests = new ArrayList<Request>(pendingRequests.values());
+            pendingRequests.clear();
+        }
+
+        for (Request request: requests) {
+            request.completeExceptionally(error);
+        }
+
+        synchronized (pendingRequests) {
+            pendingRequests.notifyAll();
+        }
+    }
+
     /**
      * Invoke a (static) class method call within the associated Taco server
      * script.
@@ -125,13 +1048,8 @@ public class Taco implements TacoTransport.Filter {
             Collection<?> args, Map<String, ?> kwargs,
             Context context)
             throws TacoException {
-        return interact(new HashMapC()
-                .putc("action", "call_class_method")
-                .putc("class", className)
-                .putc("name", name)
-                .putc("args", args)
-                .putc("kwargs", kwargs)
-                .putc("context", context == null ? null : context.getName()));
+        return interact(classMethodMessage(className, name, args, kwargs,
+                context));
     }
 
     /**
@@ -151,6 +1069,41 @@ public class Taco implements TacoTransport.Filter {
         return callClassMethod(className, name, args, kwargs, null);
     }
 
+    /**
+     * Asynchronously invoke a (static) class method call within the
+     * associated Taco server script.
+     *
+     * @param className the name of the class
+     * @param name the name of the method
+     * @param args positional arguments
+     * @param kwargs keyword arguments
+     * @param context context in which to invoke the function
+     * @return future for the result of the method call
+     * @see #interactAsync
+     */
+    public CompletableFuture<java.lang.Object> callClassMethodAsync(
+            String className, String name,
+            Collection<?> args, Map<String, ?> kwargs,
+            Context context) {
+        return interactAsync(classMethodMessage(className, name, args, kwargs,
+                context));
+    }
+
+    /**
+     * Construct a "call_class_method" message.
+     */
+    private HashMapC classMethodMessage(String className, String name,
+            Collection<?> args, Map<String, ?> kwargs,
+            Context context) {
+        return new HashMapC()
+                .putc("action", "call_class_method")
+                .putc("class", className)
+                .putc("name", name)
+                .putc("args", args)
+                .putc("kwargs", kwargs)
+                .putc("context", context == null ? null : context.getName());
+    }
+
     /**
      * Invoke a function call within the associated Taco server script.
      *
@@ -165,12 +1118,7 @@ public class Taco implements TacoTransport.Filter {
             Collection<?> args, Map<String, ?> kwargs,
             Context context)
             throws TacoException {
-        return interact(new HashMapC()
-                .putc("action", "call_function")
-                .putc("name", name)
-                .putc("args", args)
-                .putc("kwargs", kwargs)
-                .putc("context", context == null ? null : context.getName()));
+        return interact(functionMessage(name, args, kwargs, context));
     }
 
     /**
@@ -189,6 +1137,37 @@ public class Taco implements TacoTransport.Filter {
         return callFunction(name, args, kwargs, null);
     }
 
+    /**
+     * Asynchronously invoke a function call within the associated Taco
+     * server script.
+     *
+     * @param name the name of the function
+     * @param args positional arguments
+     * @param kwargs keyword arguments
+     * @param context context in which to invoke the function
+     * @return future for the result of the function call
+     * @see #interactAsync
+     */
+    public CompletableFuture<java.lang.Object> callFunctionAsync(String name,
+            Collection<?> args, Map<String, ?> kwargs,
+            Context context) {
+        return interactAsync(functionMessage(name, args, kwargs, context));
+    }
+
+    /**
+     * Construct a "call_function" message.
+     */
+    private HashMapC functionMessage(String name,
+            Collection<?> args, Map<String, ?> kwargs,
+            Context context) {
+        return new HashMapC()
+                .putc("action", "call_function")
+                .putc("name", name)
+                .putc("args", args)
+                .putc("kwargs", kwargs)
+                .putc("context", context == null ? null : context.getName());
+    }
+
     /**
      * Invoke an object constructor.
      *
@@ -201,11 +1180,34 @@ public class Taco implements TacoTransport.Filter {
     public Object constructObject(String className,
             Collection<?> args, Map<String, ?> kwargs)
             throws TacoException {
-        return (Object) interact(new HashMapC()
+        return (Object) interact(constructMessage(className, args, kwargs));
+    }
+
+    /**
+     * Asynchronously invoke an object constructor.
+     *
+     * @param className the name of the object class
+     * @param args positional arguments
+     * @param kwargs keyword arguments
+     * @return future for a reference to the newly constructed object
+     * @see #interactAsync
+     */
+    public CompletableFuture<Object> constructObjectAsync(String className,
+            Collection<?> args, Map<String, ?> kwargs) {
+        return interactAsync(constructMessage(className, args, kwargs))
+                .thenApply(result -> (Object) result);
+    }
+
+    /**
+     * Construct a "construct_object" message.
+     */
+    private HashMapC constructMessage(String className,
+            Collection<?> args, Map<String, ?> kwargs) {
+        return new HashMapC()
                 .putc("action", "construct_object")
                 .putc("class", className)
                 .putc("args", args)
-                .putc("kwargs", kwargs));
+                .putc("kwargs", kwargs);
     }
 
     /**
@@ -218,24 +1220,64 @@ public class Taco implements TacoTransport.Filter {
      */
     public java.lang.Object getClassAttribute(String className, String name)
             throws TacoException {
-        return interact(new HashMapC()
+        return getCached(classAttributeKey(className, name),
+                getClassAttributeMessage(className, name));
+    }
+
+    /**
+     * Asynchronously get the value of a class (static) attribute.
+     *
+     * @param className the name of the class
+     * @param name the name of the attribute
+     * @return future for the value of the attribute
+     * @see #interactAsync
+     */
+    public CompletableFuture<java.lang.Object> getClassAttributeAsync(
+            String className, String name) {
+        return getCachedAsync(classAttributeKey(className, name),
+                getClassAttributeMessage(className, name));
+    }
+
+    /**
+     * Construct a "get_class_attribute" message.
+     */
+    private HashMapC getClassAttributeMessage(String className, String name) {
+        return new HashMapC()
                 .putc("action", "get_class_attribute")
                 .putc("class", className)
-                .putc("name", name));
+                .putc("name", name);
+    }
+
+    /**
+     * Get the value of the given variable.
+     *
+     * @param name the name of the variable
+     * @return the value of the variable
+     * @throws TacoException on error
+     */
+    public java.lang.Object getValue(String name)
+            throws TacoException {
+        return getCached(valueKey(name), getValueMessage(name));
     }
 
     /**
-     * Get the value of the given variable.
+     * Asynchronously get the value of the given variable.
      *
      * @param name the name of the variable
-     * @return the value of the variable
-     * @throws TacoException on error
+     * @return future for the value of the variable
+     * @see #interactAsync
      */
-    public java.lang.Object getValue(String name)
-            throws TacoException {
-        return interact(new HashMapC()
+    public CompletableFuture<java.lang.Object> getValueAsync(String name) {
+        return getCachedAsync(valueKey(name), getValueMessage(name));
+    }
+
+    /**
+     * Construct a "get_value" message.
+     */
+    private HashMapC getValueMessage(String name) {
+        return new HashMapC()
                 .putc("action", "get_value")
-                .putc("name", name));
+                .putc("name", name);
     }
 
     /**
@@ -249,11 +1291,7 @@ public class Taco implements TacoTransport.Filter {
     public void importModule(String name,
             Collection<?> args, Map<String, ?> kwargs)
             throws TacoException {
-        interact(new HashMapC()
-                .putc("action", "import_module")
-                .putc("name", name)
-                .putc("args", args)
-                .putc("kwargs", kwargs));
+        interact(importModuleMessage(name, args, kwargs));
     }
 
     /**
@@ -278,6 +1316,33 @@ public class Taco implements TacoTransport.Filter {
         importModule(name, null, null);
     }
 
+    /**
+     * Asynchronously instruct the server to import the given module.
+     *
+     * @param name the name of the module
+     * @param args positional arguments
+     * @param kwargs keyword arguments
+     * @return future completed when the module has been imported
+     * @see #interactAsync
+     */
+    public CompletableFuture<Void> importModuleAsync(String name,
+            Collection<?> args, Map<String, ?> kwargs) {
+        return interactAsync(importModuleMessage(name, args, kwargs))
+                .thenApply(result -> (Void) null);
+    }
+
+    /**
+     * Construct an "import_module" message.
+     */
+    private HashMapC importModuleMessage(String name,
+            Collection<?> args, Map<String, ?> kwargs) {
+        return new HashMapC()
+                .putc("action", "import_module")
+                .putc("name", name)
+                .putc("args", args)
+                .putc("kwargs", kwargs);
+    }
+
     /**
      * Set the value of a class (static) attribute.
      *
@@ -289,11 +1354,48 @@ public class Taco implements TacoTransport.Filter {
     public void setClassAttribute(String className, String name,
             java.lang.Object value)
             throws TacoException {
-        interact(new HashMapC()
+        List<String> key = classAttributeKey(className, name);
+
+        invalidate(key);
+
+        try {
+            interact(setClassAttributeMessage(className, name, value));
+        }
+        finally {
+            invalidate(key);
+        }
+    }
+
+    /**
+     * Asynchronously set the value of a class (static) attribute.
+     *
+     * @param className the name of the class
+     * @param name the name of the attribute
+     * @param value the new value for the attribute
+     * @return future completed when the attribute has been set
+     * @see #interactAsync
+     */
+    public CompletableFuture<Void> setClassAttributeAsync(String className,
+            String name, java.lang.Object value) {
+        List<String> key = classAttributeKey(className, name);
+
+        invalidate(key);
+
+        return interactAsync(setClassAttributeMessage(className, name, value))
+                .whenComplete((result, error) -> invalidate(key))
+                .thenApply(result -> (Void) null);
+    }
+
+    /**
+     * Construct a "set_class_attribute" message.
+     */
+    private HashMapC setClassAttributeMessage(String className, String name,
+            java.lang.Object value) {
+        return new HashMapC()
                 .putc("action", "set_class_attribute")
                 .putc("class", className)
                 .putc("name", name)
-                .putc("value", value));
+                .putc("value", value);
     }
 
     /**
@@ -305,10 +1407,156 @@ public class Taco implements TacoTransport.Filter {
      */
     public void setValue(String name, java.lang.Object value)
             throws TacoException {
-        interact(new HashMapC()
+        List<String> key = valueKey(name);
+
+        invalidate(key);
+
+        try {
+            interact(setValueMessage(name, value));
+        }
+        finally {
+            invalidate(key);
+        }
+    }
+
+    /**
+     * Asynchronously set the value of the given variable.
+     *
+     * @param name the name of the variable
+     * @param value the new value for the variable
+     * @return future completed when the variable has been set
+     * @see #interactAsync
+     */
+    public CompletableFuture<Void> setValueAsync(String name,
+            java.lang.Object value) {
+        List<String> key = valueKey(name);
+
+        invalidate(key);
+
+        return interactAsync(setValueMessage(name, value))
+                .whenComplete((result, error) -> invalidate(key))
+                .thenApply(result -> (Void) null);
+    }
+
+    /**
+     * Construct a "set_value" message.
+     */
+    private HashMapC setValueMessage(String name, java.lang.Object value) {
+        return new HashMapC()
                 .putc("action", "set_value")
                 .putc("name", name)
-                .putc("value", value));
+                .putc("value", value);
+    }
+
+    /**
+     * Construct the value cache key for a class attribute.
+     */
+    private static List<String> classAttributeKey(String className,
+            String name) {
+        return Arrays.asList("class_attribute", className, name);
+    }
+
+    /**
+     * Construct the value cache key for a variable.
+     */
+    private static List<String> valueKey(String name) {
+        return Arrays.asList("value", name);
+    }
+
+    /**
+     * Get a value, using the value cache if it is allowed for the
+     * given key.
+     *
+     * Each caller receives its own copy of a cached map or list.
+     */
+    private java.lang.Object getCached(List<String> key,
+            Map<String, java.lang.Object> message)
+            throws TacoException {
+        Long maxAge = cacheableValues.get(key);
+
+        if (maxAge == null) {
+            return interact(message);
+        }
+
+        java.lang.Object value = valueCache.get(key);
+
+        if (value != ResultCache.MISSING) {
+            return ResultCache.copyPlain(value);
+        }
+
+        long generation = valueGeneration(key);
+        value = interact(message);
+        storeValue(key, generation, value, maxAge);
+
+        return value;
+    }
+
+    /**
+     * Asynchronously get a value, using the value cache if it is
+     * allowed for the given key.
+     */
+    private CompletableFuture<java.lang.Object> getCachedAsync(
+            List<String> key, Map<String, java.lang.Object> message) {
+        Long maxAge = cacheableValues.get(key);
+
+        if (maxAge == null) {
+            return interactAsync(message);
+        }
+
+        java.lang.Object value = valueCache.get(key);
+
+        if (value != ResultCache.MISSING) {
+            return CompletableFuture.completedFuture(
+                    ResultCache.copyPlain(value));
+        }
+
+        long generation = valueGeneration(key);
+
+        return interactAsync(message).thenApply(result -> {
+            storeValue(key, generation, result, maxAge);
+            return result;
+        });
+    }
+
+    /**
+     * Get the number of times a value has been invalidated.
+     */
+    private long valueGeneration(List<String> key) {
+        synchronized (valueCache) {
+            Long generation = valueGenerations.get(key);
+            return (generation == null) ? 0 : generation;
+        }
+    }
+
+    /**
+     * Store a copy of a value in the value cache, if it is plain JSON and
+     * has not been invalidated since the request for it was made.
+     */
+    private void storeValue(List<String> key, long generation,
+            java.lang.Object value, long maxAge) {
+        if (ResultCache.isPlain(value)) {
+            java.lang.Object copy = ResultCache.copyPlain(value);
+
+            synchronized (valueCache) {
+                if (valueGeneration(key) == generation) {
+                    valueCache.put(key, copy, maxAge);
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove a value from the value cache, if it may be cached, and
+     * prevent any request for it already in progress from storing
+     * its result.
+     */
+    private void invalidate(List<String> key) {
+        if (cacheableValues.containsKey(key)) {
+            synchronized (valueCache) {
+                valueGenerations.merge(key, 1L, Long::sum);
+                valueCache.remove(key);
+            }
+        }
     }
 
     /**
@@ -343,13 +1591,31 @@ public class Taco implements TacoTransport.Filter {
      * <code>Taco.Object</code> instance is returned.  Otherwise the
      * original map is returned.
      *
+     * Only one <code>Taco.Object</code> exists at a time for each object
+     * in the server's cache: if the object is already referenced, the
+     * existing instance is returned.  If the object had been released
+     * but not yet destroyed, its release is cancelled.
+     *
      * @param map the decoded JSON object
      * @return a Java object
      */
     public java.lang.Object mapToObject(Map<String, java.lang.Object> map)
             throws TacoException {
         if (map.containsKey("_Taco_Object_")) {
-            return new Object((Integer) map.get("_Taco_Object_"));
+            Integer number = (Integer) map.get("_Taco_Object_");
+
+            synchronized (objectProxies) {
+                WeakReference<Object> ref = objectProxies.get(number);
+                Object object = (ref == null) ? null : ref.get();
+
+                if (object == null) {
+                    object = new Object(number);
+                    objectProxies.put(number, object.reference);
+                    releasedObjects.remove(number);
+                }
+
+                return object;
+            }
         }
         else {
             return map;
@@ -388,6 +1654,63 @@ public class Taco implements TacoTransport.Filter {
         return new Function(name, null);
     }
 
+    /**
+     * Create a prepared class method call.
+     *
+     * @param className the name of the class
+     * @param name the name of the method
+     * @param context context in which to invoke the method
+     * @return prepared call
+     * @see PreparedCall
+     */
+    public PreparedCall prepareClassMethod(String className, String name,
+            Context context) {
+        return new PreparedCall(new HashMapC<String, java.lang.Object>()
+                .putc("action", "call_class_method")
+                .putc("class", className)
+                .putc("name", name)
+                .putc("context", context == null ? null : context.getName()),
+                null);
+    }
+
+    /**
+     * Create a prepared function call.
+     *
+     * @param name the name of the function
+     * @param context context in which to invoke the function
+     * @return prepared call
+     * @see PreparedCall
+     */
+    public PreparedCall prepareFunction(String name, Context context) {
+        return new PreparedCall(new HashMapC<String, java.lang.Object>()
+                .putc("action", "call_function")
+                .putc("name", name)
+                .putc("context", context == null ? null : context.getName()),
+                null);
+    }
+
+    /**
+     * Create a proxy which implements the given interface by invoking
+     * methods of an object in the server's cache.
+     *
+     * Information about each interface method is determined when the
+     * first proxy for the interface is created, so that calls only need
+     * to fill in the arguments.  See {@link ObjectProxy} for details of
+     * how methods are invoked and results converted.
+     *
+     * @param object the object on which to invoke methods
+     * @param iface the interface to implement
+     * @return proxy instance implementing the interface
+     * @throws IllegalArgumentException if a method of the interface
+     *     has an unsupported return type
+     */
+    public <T> T proxy(Object object, Class<T> iface) {
+        ObjectProxy.checkInterface(iface);
+
+        return iface.cast(Proxy.newProxyInstance(iface.getClassLoader(),
+                new Class<?>[] {iface}, new ObjectProxy(this, object)));
+    }
+
     /**
      * Interface for invocable convenience routines.
      *
@@ -400,6 +1723,11 @@ public class Taco implements TacoTransport.Filter {
          */
         public java.lang.Object invoke(java.lang.Object... args)
                 throws TacoException;
+
+        /**
+         * Invoke the associated action asynchronously.
+         */
+        public CompletableFuture<?> invokeAsync(java.lang.Object... args);
     }
 
     /**
@@ -432,6 +1760,17 @@ public class Taco implements TacoTransport.Filter {
         public Object invoke(java.lang.Object... args) throws TacoException {
             return constructObject(className, Arrays.asList(args), null);
         }
+
+        /**
+         * Invoke the object constructor asynchronously.
+         *
+         * @param args positional arguments for the constructor
+         * @return future for a reference to the newly constructed object
+         */
+        public CompletableFuture<Object> invokeAsync(
+                java.lang.Object... args) {
+            return constructObjectAsync(className, Arrays.asList(args), null);
+        }
     }
 
     /**
@@ -472,34 +1811,292 @@ public class Taco implements TacoTransport.Filter {
                 throws TacoException {
             return callFunction(name, Arrays.asList(args), null, context);
         }
+
+        /**
+         * Invoke the function asynchronously.
+         *
+         * @param args positional arguments for the function
+         * @return future for the result of the function call
+         */
+        public CompletableFuture<java.lang.Object> invokeAsync(
+                java.lang.Object... args) {
+            return callFunctionAsync(name, Arrays.asList(args), null,
+                    context);
+        }
+    }
+
+    /**
+     * Object to invoke a call which has been registered with the server.
+     *
+     * When first invoked, the call is registered using a "prepare_call"
+     * action, and the server returns a handle for it.  Subsequent
+     * invocations send a "call_prepared" action giving only the handle
+     * and the arguments.  If the call cannot be prepared, for example
+     * because the server does not support this action, the full call
+     * is sent instead, and preparation is attempted again on the next
+     * invocation, up to a limit of three attempts.
+     *
+     * The server is instructed to release the handle when this object
+     * becomes unreachable, or when it is closed.
+     */
+    public class PreparedCall implements Invocable, AutoCloseable {
+        /**
+         * The parameters of the call, other than its arguments.
+         */
+        private final Map<String, java.lang.Object> call;
+
+        /**
+         * The object whose method is called, if any.  This reference
+         * prevents the object from being released while the call
+         * may still be used.
+         */
+        private final Object target;
+
+        /**
+         * The state of the preparation of the call.
+         */
+        private final PreparedState state;
+
+        /**
+         * Registration with the cleaner, used to release the handle.
+         */
+        private final Cleaner.Cleanable cleanable;
+
+        /**
+         * Constructor.
+         *
+         * @param call the parameters of the call
+         * @param target the object whose method is called, if any
+         */
+        private PreparedCall(Map<String, java.lang.Object> call,
+                Object target) {
+            this.call = call;
+            this.target = target;
+            state = new PreparedState(call);
+            cleanable = cleaner.register(this, state);
+        }
+
+        /**
+         * Invoke the call.
+         *
+         * This method does not allow keyword arguments to be specified.
+         *
+         * @param args positional arguments for the call
+         * @return the result of the call
+         * @throws TacoException on error
+         */
+        public java.lang.Object invoke(java.lang.Object... args)
+                throws TacoException {
+            CompletableFuture<java.lang.Object> handle = state.prepare(false);
+            Integer value = null;
+
+            if (handle != null) {
+                try {
+                    value = (Integer) waitFor(handle);
+                }
+                catch (TacoException e) {
+                    // Fall back to sending the full call.
+                    state.failed(handle);
+                }
+            }
+
+            return interact(callMessage(value, args));
+        }
+
+        /**
+         * Invoke the call asynchronously.
+         *
+         * @param args positional arguments for the call
+         * @return future for the result of the call
+         */
+        public CompletableFuture<java.lang.Object> invokeAsync(
+                java.lang.Object... args) {
+            CompletableFuture<java.lang.Object> handle = state.prepare(true);
+
+            if (handle == null) {
+                return interactAsync(callMessage(null, args));
+            }
+
+            return handle.handle((result, error) -> {
+                if (error != null) {
+                    state.failed(handle);
+                    return null;
+                }
+
+                return (Integer) result;
+            }).thenCompose(
+                    value -> interactAsync(callMessage(value, args)));
+        }
+
+        /**
+         * Release this prepared call.
+         *
+         * The server is instructed to release the handle along with the
+         * next request.  This happens automatically once this object
+         * becomes unreachable, but can be done sooner by calling this
+         * method.  The call must not be invoked afterwards.
+         */
+        @Override
+        public void close() {
+            cleanable.clean();
+        }
+
+        /**
+         * Construct a message to invoke the call.
+         *
+         * The "call_prepared" message repeats the context, so that
+         * calls in void context can be sent without waiting (see
+         * {@link Taco#setVoidNoResponse}).
+         */
+        private Map<String, java.lang.Object> callMessage(Integer handle,
+                java.lang.Object[] args) {
+            if (handle == null) {
+                return new HashMapC<String, java.lang.Object>(call)
+                        .putc("args", Arrays.asList(args))
+                        .putc("kwargs", null);
+            }
+
+            return new HashMapC<String, java.lang.Object>()
+                    .putc("action", "call_prepared")
+                    .putc("handle", handle)
+                    .putc("args", Arrays.asList(args))
+                    .putc("context", call.get("context"));
+        }
+    }
+
+    /**
+     * State of the preparation of a call, which is also used to release
+     * the call's handle once the <code>PreparedCall</code> becomes
+     * unreachable.
+     */
+    private class PreparedState implements Runnable {
+        /**
+         * The parameters of the call, other than its arguments.
+         */
+        private final Map<String, java.lang.Object> call;
+
+        /**
+         * Future for the response to the "prepare_call" action, or null
+         * if it has not been sent, or the last attempt failed.
+         */
+        private CompletableFuture<java.lang.Object> handle = null;
+
+        /**
+         * Number of "prepare_call" actions sent.
+         */
+        private int attempts = 0;
+
+        /**
+         * Whether the call has been released.
+         */
+        private boolean released = false;
+
+        /**
+         * Constructor.
+         */
+        private PreparedState(Map<String, java.lang.Object> call) {
+            this.call = call;
+        }
+
+        /**
+         * Get the future for the handle, sending a "prepare_call"
+         * action if necessary.  The monitor is only held while the
+         * action is written, not while waiting for the response.
+         *
+         * @param async whether to start the reader thread
+         * @return future for the handle, or null if the call is not
+         *     to be prepared
+         */
+        private synchronized CompletableFuture<java.lang.Object> prepare(
+                boolean async) {
+            if (handle == null && ! released
+                    && attempts < MAX_PREPARE_ATTEMPTS) {
+                HashMapC message = new HashMapC()
+                        .putc("action", "prepare_call")
+                        .putc("call", call);
+
+                attempts ++;
+                handle = async ? interactAsync(message) : send(message);
+            }
+
+            return handle;
+        }
+
+        /**
+         * Record that an attempt to prepare the call failed, so that
+         * the next invocation tries again.
+         *
+         * @param failed the future for the failed attempt
+         */
+        private synchronized void failed(
+                CompletableFuture<java.lang.Object> failed) {
+            if (handle == failed) {
+                handle = null;
+            }
+        }
+
+        /**
+         * Queue the handle, once known, for release by the server.
+         */
+        @Override
+        public void run() {
+            CompletableFuture<java.lang.Object> handle;
+
+            synchronized (this) {
+                released = true;
+                handle = this.handle;
+            }
+
+            if (handle != null) {
+                handle.thenAccept(value -> {
+                    if (value instanceof Integer && preparedRelease) {
+                        releasedCalls.add((Integer) value);
+                    }
+                });
+            }
+        }
     }
 
     /**
      * Class for objects which refer to an object cached by the Taco server.
      */
-    public class Object {
+    public class Object implements AutoCloseable {
         /**
          * The number identifying the object in the server's cache.
          */
         private final int number;
 
+        /**
+         * Weak reference to this instance, as stored in the map of
+         * object proxies.
+         */
+        private final WeakReference<Object> reference;
+
+        /**
+         * Registration with the cleaner, used to release the object.
+         */
+        private final Cleaner.Cleanable cleanable;
+
         /**
          * Constructor.
          */
         private Object(int number) {
             this.number = number;
+            reference = new WeakReference<Object>(this);
+            cleanable = cleaner.register(this, new Release(number, reference));
         }
 
         /**
-         * Destructor.
+         * Release this object.
          *
-         * Instructs the server to remove this object from its cache.
+         * The server is instructed to remove the object from its cache
+         * along with the next request.  This happens automatically once
+         * this reference becomes unreachable, but can be done sooner by
+         * calling this method.  The reference must not be used afterwards.
          */
         @Override
-        protected void finalize() throws TacoException {
-            interact(new HashMapC()
-                    .putc("action", "destroy_object")
-                    .putc("number", new Integer(number)));
+        public void close() {
+            cleanable.clean();
         }
 
         /**
@@ -512,6 +2109,15 @@ public class Taco implements TacoTransport.Filter {
             return "<Taco object " + Integer.toString(number) + ">";
         }
 
+        /**
+         * Get the number identifying the object in the server's cache.
+         *
+         * @return the object number
+         */
+        int getNumber() {
+            return number;
+        }
+
         /**
          * Invoke a method on the corresponding object in the server's cache.
          *
@@ -526,14 +2132,7 @@ public class Taco implements TacoTransport.Filter {
                 Collection<?> args, Map<String, ?> kwargs,
                 Context context)
                 throws TacoException {
-            return interact(new HashMapC()
-                    .putc("action", "call_method")
-                    .putc("number", new Integer(number))
-                    .putc("name", name)
-                    .putc("args", args)
-                    .putc("kwargs", kwargs)
-                    .putc("context", context == null
-                            ? null : context.getName()));
+            return interact(methodMessage(name, args, kwargs, context));
         }
 
         /**
@@ -552,6 +2151,39 @@ public class Taco implements TacoTransport.Filter {
             return callMethod(name, args, kwargs, null);
         }
 
+        /**
+         * Asynchronously invoke a method on the corresponding object in the
+         * server's cache.
+         *
+         * @param name method name
+         * @param args positional arguments
+         * @param kwargs keyword arguments
+         * @param context context in which to invoke the method
+         * @return future for the value returned by the method
+         * @see Taco#interactAsync
+         */
+        public CompletableFuture<java.lang.Object> callMethodAsync(
+                String name, Collection<?> args, Map<String, ?> kwargs,
+                Context context) {
+            return interactAsync(methodMessage(name, args, kwargs, context));
+        }
+
+        /**
+         * Construct a "call_method" message.
+         */
+        private HashMapC methodMessage(String name,
+                Collection<?> args, Map<String, ?> kwargs,
+                Context context) {
+            return new HashMapC()
+                    .putc("action", "call_method")
+                    .putc("number", new Integer(number))
+                    .putc("name", name)
+                    .putc("args", args)
+                    .putc("kwargs", kwargs)
+                    .putc("context", context == null
+                            ? null : context.getName());
+        }
+
         /**
          * Get the value of an attribute of the corresponding object in the
          * server's cache.
@@ -562,10 +2194,30 @@ public class Taco implements TacoTransport.Filter {
          */
         public java.lang.Object getAttribute(String name)
                 throws TacoException {
-            return interact(new HashMapC()
+            return interact(getAttributeMessage(name));
+        }
+
+        /**
+         * Asynchronously get the value of an attribute of the corresponding
+         * object in the server's cache.
+         *
+         * @param name the name of the attribute
+         * @return future for the value of the attribute
+         * @see Taco#interactAsync
+         */
+        public CompletableFuture<java.lang.Object> getAttributeAsync(
+                String name) {
+            return interactAsync(getAttributeMessage(name));
+        }
+
+        /**
+         * Construct a "get_attribute" message.
+         */
+        private HashMapC getAttributeMessage(String name) {
+            return new HashMapC()
                     .putc("action", "get_attribute")
                     .putc("number", new Integer(number))
-                    .putc("name", name));
+                    .putc("name", name);
         }
 
         /**
@@ -578,11 +2230,34 @@ public class Taco implements TacoTransport.Filter {
          */
         public void setAttribute(String name, java.lang.Object value)
                 throws TacoException {
-            interact(new HashMapC()
+            interact(setAttributeMessage(name, value));
+        }
+
+        /**
+         * Asynchronously set the value of an attribute of the corresponding
+         * object in the server's cache.
+         *
+         * @param name the name of the attribute
+         * @param value the new value for the attribute
+         * @return future completed when the attribute has been set
+         * @see Taco#interactAsync
+         */
+        public CompletableFuture<Void> setAttributeAsync(String name,
+                java.lang.Object value) {
+            return interactAsync(setAttributeMessage(name, value))
+                    .thenApply(result -> (Void) null);
+        }
+
+        /**
+         * Construct a "set_attribute" message.
+         */
+        private HashMapC setAttributeMessage(String name,
+                java.lang.Object value) {
+            return new HashMapC()
                     .putc("action", "set_attribute")
                     .putc("number", new Integer(number))
                     .putc("name", name)
-                    .putc("value", value));
+                    .putc("value", value);
         }
 
         /**
@@ -607,6 +2282,61 @@ public class Taco implements TacoTransport.Filter {
             return new Method(name, null);
         }
 
+        /**
+         * Create a prepared method call.
+         *
+         * @param name the name of the method
+         * @param context context in which to invoke the method
+         * @return prepared call
+         * @see PreparedCall
+         */
+        public PreparedCall prepareMethod(String name, Context context) {
+            return new PreparedCall(new HashMapC<String, java.lang.Object>()
+                    .putc("action", "call_method")
+                    .putc("number", Integer.valueOf(number))
+                    .putc("name", name)
+                    .putc("context", context == null
+                            ? null : context.getName()),
+                    this);
+        }
+
+        /**
+         * Iterate over the items of the corresponding object in the
+         * server's cache.
+         *
+         * The server is asked for an iterator over the object, the items
+         * of which are then fetched in batches.
+         *
+         * @return iterator over the object's items
+         * @throws TacoException on error, for example if the object
+         *     is not iterable
+         * @see RemoteIterator
+         */
+        public RemoteIterator iterate() throws TacoException {
+            Object iterator = (Object) interact(
+                    new HashMapC<String, java.lang.Object>()
+                    .putc("action", "iterate_object")
+                    .putc("number", Integer.valueOf(number)));
+
+            return new RemoteIterator(Taco.this, iterator);
+        }
+
+        /**
+         * Get a stream of the items of the corresponding object in
+         * the server's cache.
+         *
+         * The stream should be closed if it is not read to the end,
+         * so that the server's iterator can be released promptly.
+         *
+         * @return stream of the object's items
+         * @throws TacoException on error, for example if the object
+         *     is not iterable
+         * @see #iterate
+         */
+        public Stream<java.lang.Object> stream() throws TacoException {
+            return iterate().stream();
+        }
+
         /**
          * Object to conveniently invoke an object method.
          */
@@ -645,6 +2375,378 @@ public class Taco implements TacoTransport.Filter {
                     throws TacoException {
                 return callMethod(name, Arrays.asList(args), null, context);
             }
+
+            /**
+             * Invoke the method asynchronously.
+             *
+             * @param args positional arguments for the method
+             * @return future for the result of the method call
+             */
+            public CompletableFuture<java.lang.Object> invokeAsync(
+                    java.lang.Object... args) {
+                return callMethodAsync(name, Arrays.asList(args), null,
+                        context);
+            }
+        }
+    }
+
+    /**
+     * Interface for receiving the timings of traced interactions.
+     *
+     * @see #setTraceListener
+     */
+    public interface TraceListener {
+        /**
+         * Receive the timings of an interaction.
+         *
+         * @param trace the timings
+         */
+        public void traced(Trace trace);
+    }
+
+    /**
+     * Breakdown of the time taken by an interaction.
+     *
+     * All times are in milliseconds.  The transfer time is the
+     * remainder of the total once the other times have been subtracted,
+     * so includes the time taken by the server to encode and write the
+     * response, and by the messages to pass between the processes.
+     */
+    public static class Trace {
+        private final String action;
+        private final long total;
+        private final long write;
+        private final long serverDecode;
+        private final long serverQueue;
+        private final long serverExecute;
+        private final long read;
+
+        /**
+         * Constructor.
+         *
+         * @param action the action requested
+         * @param times the total, write, server decode, server queue,
+         *     server execute and read times in nanoseconds
+         */
+        private Trace(String action, long[] times) {
+            this.action = action;
+            this.total = times[0];
+            this.write = times[1];
+            this.serverDecode = times[2];
+            this.serverQueue = times[3];
+            this.serverExecute = times[4];
+            this.read = times[5];
+        }
+
+        /**
+         * Get the action requested.
+         *
+         * @return the action name
+         */
+        public String getAction() {
+            return action;
+        }
+
+        /**
+         * Get the total time, from starting to write the request to
+         * having read the response.
+         *
+         * @return time in milliseconds
+         */
+        public double getTotalTime() {
+            return total / 1.0e6;
+        }
+
+        /**
+         * Get the time taken by this client to encode and write
+         * the request.
+         *
+         * @return time in milliseconds
+         */
+        public double getWriteTime() {
+            return write / 1.0e6;
+        }
+
+        /**
+         * Get the time taken by the server to decode the request.
+         *
+         * @return time in milliseconds
+         */
+        public double getServerDecodeTime() {
+            return serverDecode / 1.0e6;
+        }
+
+        /**
+         * Get the time for which the request waited in the server
+         * before being handled.
+         *
+         * @return time in milliseconds
+         */
+        public double getServerQueueTime() {
+            return serverQueue / 1.0e6;
+        }
+
+        /**
+         * Get the time taken by the server to handle the request.
+         *
+         * @return time in milliseconds
+         */
+        public double getServerExecuteTime() {
+            return serverExecute / 1.0e6;
+        }
+
+        /**
+         * Get the time taken by this client to decode the response.
+         *
+         * @return time in milliseconds
+         */
+        public double getReadTime() {
+            return read / 1.0e6;
+        }
+
+        /**
+         * Get the time not accounted for by the other times.
+         *
+         * @return time in milliseconds
+         */
+        public double getTransferTime() {
+            return Math.max(0, total - write - serverDecode - serverQueue
+                    - serverExecute - read) / 1.0e6;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "%s: total=%.3fms write=%.3fms server decode=%.3fms"
+                    + " queue=%.3fms execute=%.3fms transfer=%.3fms"
+                    + " read=%.3fms",
+                    action, getTotalTime(), getWriteTime(),
+                    getServerDecodeTime(), getServerQueueTime(),
+                    getServerExecuteTime(), getTransferTime(),
+                    getReadTime());
+        }
+    }
+
+    /**
+     * Thread which reads responses and passes them to the corresponding
+     * pending requests.
+     */
+    private class Reader extends Thread {
+        /**
+         * Constructor.
+         */
+        private Reader() {
+            super("Taco client reader");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            // Wait for any thread currently reading responses to finish,
+            // then take over reading permanently.
+            readLock.lock();
+
+            try {
+                do {
+                    synchronized (pendingRequests) {
+                        while (pendingRequests.isEmpty()) {
+                            try {
+                                pendingRequests.wait();
+                            }
+                            catch (InterruptedException e) {
+                                // Keep waiting: requests may be made later.
+                            }
+                        }
+                    }
+                } while (readResponse());
+            }
+            finally {
+                readLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Cleaning action which queues an object number for release.
+     *
+     * This must not hold a strong reference to the
+     * <code>Taco.Object</code>, or it would never become unreachable.
+     * The number is only queued if that object is still the registered
+     * proxy, since a new proxy may already have been created for it.
+     */
+    private class Release implements Runnable {
+        private final int number;
+        private final WeakReference<Object> reference;
+
+        /**
+         * Constructor.
+         */
+        private Release(int number, WeakReference<Object> reference) {
+            this.number = number;
+            this.reference = reference;
+        }
+
+        @Override
+        public void run() {
+            synchronized (objectProxies) {
+                if (objectProxies.get(number) != reference) {
+                    return;
+                }
+
+                objectProxies.remove(number);
+                releasedObjects.add(number);
+            }
+
+            TacoEvents.ObjectRelease event = new TacoEvents.ObjectRelease();
+            if (event.shouldCommit()) {
+                event.number = number;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Future for the result of a request.
+     *
+     * Cancelling the future also sends a "cancel" action to the server,
+     * if the server is known to tag its responses with identifiers.
+     */
+    private class Request extends CompletableFuture<java.lang.Object> {
+        /**
+         * The request identifier.
+         */
+        private final int id;
+
+        /**
+         * The action requested.
+         */
+        private final String action;
+
+        /**
+         * Time at which the request was sent, from
+         * <code>System.nanoTime</code>.
+         */
+        private final long startTime = System.nanoTime();
+
+        /**
+         * Listener to which to report the request's timings, or null
+         * if it is not being traced.
+         */
+        private final TraceListener listener;
+
+        /**
+         * Time taken to write the request, or -1 until it has
+         * been written.
+         */
+        private long writeTime = -1;
+
+        /**
+         * Timings awaiting the write time, if the response was read
+         * before the writing thread recorded it.
+         */
+        private long[] responseTimes = null;
+
+        /**
+         * Constructor.
+         */
+        private Request(int id, String action, TraceListener listener) {
+            this.id = id;
+            this.action = action;
+            this.listener = listener;
+        }
+
+        /**
+         * Record that the request has been written.
+         */
+        private void written() {
+            long[] times;
+
+            synchronized (this) {
+                writeTime = System.nanoTime() - startTime;
+                times = responseTimes;
+            }
+
+            if (times != null) {
+                notifyListener(times);
+            }
+        }
+
+        /**
+         * Record that the response has been read.
+         *
+         * @param serverTrace the "trace" parameter of the response
+         * @param decodeTime the time taken to decode the response
+         */
+        private void received(java.lang.Object serverTrace,
+                long decodeTime) {
+            long[] times = new long[] {
+                System.nanoTime() - startTime,
+                0, 0, 0, 0,
+                decodeTime};
+
+            if (serverTrace instanceof Map) {
+                Map<?, ?> map = (Map<?, ?>) serverTrace;
+                times[2] = nanoseconds(map.get("decode"));
+                times[3] = nanoseconds(map.get("queue"));
+                times[4] = nanoseconds(map.get("execute"));
+            }
+
+            synchronized (this) {
+                if (writeTime < 0) {
+                    responseTimes = times;
+                    return;
+                }
+            }
+
+            notifyListener(times);
+        }
+
+        /**
+         * Pass the completed timings to the listener.
+         */
+        private void notifyListener(long[] times) {
+            times[1] = writeTime;
+
+            try {
+                listener.traced(new Trace(action, times));
+            }
+            catch (RuntimeException e) {
+                // Must not disrupt the reading of responses.
+            }
+        }
+
+        /**
+         * Interpret a time reported by the server.
+         */
+        private long nanoseconds(java.lang.Object value) {
+            return (value instanceof Number) ? ((Number) value).longValue() : 0;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+
+            // Leave the request pending so that the server's response
+            // to it is still matched and discarded.  Only servers known
+            // to tag their responses are asked to cancel the request.
+            if (cancelled && serverUsesIds) {
+                synchronized (pendingRequests) {
+                    cancelledRequests.put(id, true);
+                }
+
+                try {
+                    synchronized (writeLock) {
+                        xp.write(new HashMapC()
+                                .putc("action", "cancel")
+                                .putc("id", id));
+                    }
+                }
+                catch (TacoException e) {
+                    // The request has already been cancelled locally.
+                }
+            }
+
+            return cancelled;
         }
     }
 
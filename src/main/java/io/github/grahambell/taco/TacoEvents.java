@@ -0,0 +1,133 @@
+/*
+ * Taco Java flight recorder events.
+ * Copyright (C) 2014-2015 Graham Bell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.grahambell.taco;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JDK Flight Recorder events emitted by Taco clients, servers and
+ * transports.
+ *
+ * Events are created and committed using the usual pattern, so that
+ * when recording is off (or the event type is disabled) the cost is
+ * little more than a check of whether the event is enabled.  All events
+ * are in the "Taco" category, and have stack traces disabled by default.
+ */
+final class TacoEvents {
+    /**
+     * This class only holds the event classes.
+     */
+    private TacoEvents() {
+    }
+
+    /**
+     * Event for a message read and decoded by a transport.
+     * The duration covers decoding only.
+     */
+    @Name("io.github.grahambell.taco.MessageRead")
+    @Label("Taco Message Read")
+    @Category("Taco")
+    @Description("Message read and decoded by a Taco transport")
+    @StackTrace(false)
+    static class MessageRead extends Event {
+        @Label("Action")
+        String action;
+
+        @Label("Characters")
+        @Description("Length of the message text in UTF-16 characters")
+        int characters;
+    }
+
+    /**
+     * Event for a message encoded and written by a transport.
+     * The duration covers encoding only.
+     */
+    @Name("io.github.grahambell.taco.MessageWrite")
+    @Label("Taco Message Write")
+    @Category("Taco")
+    @Description("Message encoded and written by a Taco transport")
+    @StackTrace(false)
+    static class MessageWrite extends Event {
+        @Label("Action")
+        String action;
+
+        @Label("Characters")
+        @Description("Length of the message text in UTF-16 characters")
+        int characters;
+    }
+
+    /**
+     * Event for the handling of an action by a server.
+     */
+    @Name("io.github.grahambell.taco.Dispatch")
+    @Label("Taco Action Dispatch")
+    @Category("Taco")
+    @Description("Action handled by a Taco server")
+    @StackTrace(false)
+    static class Dispatch extends Event {
+        @Label("Action")
+        String action;
+
+        @Label("Class")
+        String className;
+
+        @Label("Method")
+        String method;
+
+        @Label("Outcome")
+        @Description("\"result\", \"exception\" or \"aborted\" if the"
+                + " request timed out or was cancelled")
+        String outcome;
+    }
+
+    /**
+     * Event for an object stored in a server's object cache and
+     * sent as a reference.
+     */
+    @Name("io.github.grahambell.taco.ObjectExport")
+    @Label("Taco Object Export")
+    @Category("Taco")
+    @Description("Object stored in a Taco server's object cache")
+    @StackTrace(false)
+    static class ObjectExport extends Event {
+        @Label("Number")
+        int number;
+
+        @Label("Class")
+        String className;
+    }
+
+    /**
+     * Event for the release of a client's reference to a server object.
+     */
+    @Name("io.github.grahambell.taco.ObjectRelease")
+    @Label("Taco Object Release")
+    @Category("Taco")
+    @Description("Reference to a Taco server object released by a client")
+    @StackTrace(false)
+    static class ObjectRelease extends Event {
+        @Label("Number")
+        int number;
+    }
+}
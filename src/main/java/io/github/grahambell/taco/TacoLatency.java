@@ -0,0 +1,272 @@
+/*
+ * Taco Java round-trip latency tool.
+ * Copyright (C) 2014-2015 Graham Bell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.grahambell.taco;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tool to measure the round-trip latency of calls to a Taco server
+ * subprocess.
+ *
+ * The server is launched by script path, and the time until the
+ * response to its first request is reported as the startup time.
+ * Calls are then made at a fixed rate, each sending a string of the
+ * given size and receiving it back, using the asynchronous interface
+ * so that requests are not held back by slow responses.
+ *
+ * Latency is measured from the time at which each request was
+ * scheduled to be sent, rather than the time at which it was actually
+ * sent.  This corrects for coordinated omission: if the client or
+ * server stalls, requests which should have been sent during the
+ * stall are charged for the time they spent waiting.
+ */
+public class TacoLatency {
+    /**
+     * Path to the server script.
+     */
+    private final String script;
+
+    /**
+     * Requests per second.
+     */
+    private double rate = 1000.0;
+
+    /**
+     * Duration of the measurement, in seconds.
+     */
+    private double duration = 10.0;
+
+    /**
+     * Duration of the warm-up period, in seconds.
+     */
+    private double warmUp = 2.0;
+
+    /**
+     * Number of characters sent and received in each call.
+     */
+    private int payloadSize = 16;
+
+    /**
+     * Startup time of the last run, in nanoseconds.
+     */
+    private long startupTime = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param script path to the server script, such as
+     *     "scripts/taco-java"
+     */
+    public TacoLatency(String script) {
+        this.script = script;
+    }
+
+    /**
+     * Main program method.
+     *
+     * Usage: <code>TacoLatency [--rate N] [--duration SECONDS]
+     * [--warmup SECONDS] [--payload CHARACTERS] [SCRIPT]</code>
+     *
+     * @param args command line arguments
+     */
+    public static void main(String[] args) {
+        String script = "scripts/taco-java";
+        double rate = 1000.0;
+        double duration = 10.0;
+        double warmUp = 2.0;
+        int payloadSize = 16;
+
+        try {
+            for (int i = 0; i < args.length; i ++) {
+                if (args[i].equals("--rate") && i + 1 < args.length) {
+                    rate = Double.parseDouble(args[++ i]);
+                }
+                else if (args[i].equals("--duration") && i + 1 < args.length) {
+                    duration = Double.parseDouble(args[++ i]);
+                }
+                else if (args[i].equals("--warmup") && i + 1 < args.length) {
+                    warmUp = Double.parseDouble(args[++ i]);
+                }
+                else if (args[i].equals("--payload") && i + 1 < args.length) {
+                    payloadSize = Integer.parseInt(args[++ i]);
+                }
+                else if (! args[i].startsWith("--") && i == args.length - 1) {
+                    script = args[i];
+                }
+                else {
+                    throw new IllegalArgumentException(args[i]);
+                }
+            }
+
+            if (rate <= 0 || duration <= 0 || warmUp < 0 || payloadSize < 0) {
+                throw new IllegalArgumentException("negative value");
+            }
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println("Usage: TacoLatency [--rate N]"
+                    + " [--duration SECONDS] [--warmup SECONDS]"
+                    + " [--payload CHARACTERS] [SCRIPT]");
+            System.exit(2);
+        }
+
+        TacoLatency latency = new TacoLatency(script);
+        latency.setRate(rate);
+        latency.setDuration(duration);
+        latency.setWarmUp(warmUp);
+        latency.setPayloadSize(payloadSize);
+
+        try {
+            TacoReplay.Result result = latency.run();
+
+            System.out.println(String.format(
+                    "startup: %.1f ms%n"
+                    + "target rate: %.1f requests/s, payload: %d characters",
+                    latency.getStartupTime(), rate, payloadSize));
+            System.out.println(result);
+        }
+        catch (TacoException e) {
+            System.err.println("Measurement failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Set the rate at which requests are sent.
+     *
+     * @param rate requests per second
+     */
+    public void setRate(double rate) {
+        this.rate = rate;
+    }
+
+    /**
+     * Set the duration of the measurement.
+     *
+     * @param seconds the duration, excluding warm-up
+     */
+    public void setDuration(double seconds) {
+        this.duration = seconds;
+    }
+
+    /**
+     * Set the duration of the warm-up period, during which requests are
+     * sent at the same rate but their latencies are not recorded.
+     *
+     * @param seconds the duration
+     */
+    public void setWarmUp(double seconds) {
+        this.warmUp = seconds;
+    }
+
+    /**
+     * Set the size of the string sent and received in each call.
+     *
+     * @param characters the number of characters
+     */
+    public void setPayloadSize(int characters) {
+        this.payloadSize = characters;
+    }
+
+    /**
+     * Get the startup time measured by the last run.
+     *
+     * @return time in milliseconds from launching the server to
+     *     receiving the response to the first request
+     */
+    public double getStartupTime() {
+        return startupTime / 1.0e6;
+    }
+
+    /**
+     * Launch a server and measure its startup time and call latency.
+     *
+     * The server is terminated afterwards.
+     *
+     * @return the latencies of the calls made after the warm-up period
+     * @throws TacoException on error launching or communicating
+     *     with the server
+     */
+    public TacoReplay.Result run() throws TacoException {
+        long start = System.nanoTime();
+        Taco taco = new Taco(script, true);
+
+        try {
+            taco.importModule("java.lang.String");
+            startupTime = System.nanoTime() - start;
+
+            char[] characters = new char[payloadSize];
+            Arrays.fill(characters, 'x');
+            String payload = new String(characters);
+
+            TacoReplay.Result ignored = new TacoReplay.Result();
+            TacoReplay.Result result = new TacoReplay.Result();
+
+            send(taco, payload, warmUp, ignored);
+
+            result.start();
+            send(taco, payload, duration, result);
+            result.finish();
+
+            return result;
+        }
+        finally {
+            taco.close();
+        }
+    }
+
+    /**
+     * Send requests at the configured rate for the given period, and wait
+     * for their responses.
+     */
+    private void send(Taco taco, String payload, double seconds,
+            TacoReplay.Result result) throws TacoException {
+        long count = (long) (rate * seconds);
+        double interval = 1.0e9 / rate;
+        CountDownLatch outstanding = new CountDownLatch((int) count);
+        long start = System.nanoTime();
+
+        for (long i = 0; i < count; i ++) {
+            long offset = (long) (i * interval);
+            long intended = start + offset;
+
+            TacoReplay.waitUntil(start, offset);
+
+            taco.callClassMethodAsync("java.lang.String", "valueOf",
+                    Arrays.asList(payload), null, null)
+                    .whenComplete((value, error) -> {
+                        result.record(System.nanoTime() - intended,
+                                error != null);
+                        outstanding.countDown();
+                    });
+        }
+
+        try {
+            if (! outstanding.await(
+                    Math.max(10, (long) seconds), TimeUnit.SECONDS)) {
+                throw new TacoException("timed out waiting for responses");
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TacoException("interrupted while waiting", e);
+        }
+    }
+}
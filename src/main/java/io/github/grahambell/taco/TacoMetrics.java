@@ -0,0 +1,476 @@
+/*
+ * Taco Java metrics class.
+ * Copyright (C) 2014-2015 Graham Bell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.grahambell.taco;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Collection of performance metrics for a Taco client or server.
+ *
+ * An instance can be given to {@link Taco#setMetrics} or
+ * {@link TacoServer#setMetrics}, which also pass it to their transport.
+ * It then records, for each action, the number of calls and errors
+ * and a histogram of latencies, along with the number of messages and
+ * characters read and written, the time spent decoding and encoding
+ * messages and (for servers) the size of the object cache.
+ *
+ * Recording is lock-free, so an instance may be shared between
+ * several clients.  The current values can be read through the
+ * {@link TacoMetricsMXBean} interface, either directly or via JMX once
+ * registered with {@link #register}.
+ */
+public class TacoMetrics implements TacoMetricsMXBean {
+    /**
+     * Statistics for each action.
+     */
+    private final Map<String, Action> actions =
+            new ConcurrentHashMap<String, Action>();
+
+    /**
+     * Message counts.
+     */
+    private final LongAdder messagesRead = new LongAdder();
+    private final LongAdder messagesWritten = new LongAdder();
+
+    /**
+     * Message text lengths.
+     */
+    private final LongAdder charactersRead = new LongAdder();
+    private final LongAdder charactersWritten = new LongAdder();
+
+    /**
+     * Message conversion times, in nanoseconds.
+     */
+    private final LongAdder decodeTime = new LongAdder();
+    private final LongAdder encodeTime = new LongAdder();
+
+    /**
+     * Current and maximum size of the object cache.
+     */
+    private final AtomicInteger objects = new AtomicInteger();
+    private final AtomicInteger objectsHighWater = new AtomicInteger();
+
+    /**
+     * Name under which this instance is registered, if it is.
+     */
+    private ObjectName registeredName = null;
+
+    /**
+     * Register this instance with the platform MBean server.
+     *
+     * @param name the value of the "name" key of the object name, used
+     *     to distinguish multiple instances
+     * @throws TacoException if registration fails
+     */
+    public synchronized void register(String name) throws TacoException {
+        try {
+            ObjectName objectName = new ObjectName(
+                    "io.github.grahambell.taco:type=TacoMetrics,name="
+                    + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer()
+                    .registerMBean(this, objectName);
+            registeredName = objectName;
+        }
+        catch (JMException e) {
+            throw new TacoException("could not register metrics: "
+                    + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Unregister this instance from the platform MBean server,
+     * if it was registered.
+     */
+    public synchronized void unregister() {
+        if (registeredName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer()
+                        .unregisterMBean(registeredName);
+            }
+            catch (JMException e) {
+                // Already unregistered.
+            }
+
+            registeredName = null;
+        }
+    }
+
+    /**
+     * Record the completion of an action.
+     *
+     * @param action the action name
+     * @param nanoseconds the time taken
+     * @param error true if the action failed
+     */
+    public void recordAction(String action, long nanoseconds,
+            boolean error) {
+        if (action == null) {
+            action = "unknown";
+        }
+
+        Action stats = actions.get(action);
+
+        if (stats == null) {
+            stats = actions.computeIfAbsent(action, key -> new Action());
+        }
+
+        stats.record(nanoseconds, error);
+    }
+
+    /**
+     * Record a message read.
+     *
+     * @param characters the length of the message text
+     * @param nanoseconds the time taken to decode the message
+     */
+    public void recordRead(int characters, long nanoseconds) {
+        messagesRead.increment();
+        charactersRead.add(characters);
+        decodeTime.add(nanoseconds);
+    }
+
+    /**
+     * Record a message written.
+     *
+     * @param characters the length of the message text
+     * @param nanoseconds the time taken to encode the message
+     */
+    public void recordWrite(int characters, long nanoseconds) {
+        messagesWritten.increment();
+        charactersWritten.add(characters);
+        encodeTime.add(nanoseconds);
+    }
+
+    /**
+     * Record the current size of the object cache.
+     *
+     * @param count the number of objects
+     */
+    public void recordObjects(int count) {
+        objects.set(count);
+        objectsHighWater.accumulateAndGet(count, Math::max);
+    }
+
+    @Override
+    public long getMessagesRead() {
+        return messagesRead.sum();
+    }
+
+    @Override
+    public long getMessagesWritten() {
+        return messagesWritten.sum();
+    }
+
+    @Override
+    public long getCharactersRead() {
+        return charactersRead.sum();
+    }
+
+    @Override
+    public long getCharactersWritten() {
+        return charactersWritten.sum();
+    }
+
+    @Override
+    public double getDecodeTime() {
+        return decodeTime.sum() / 1.0e6;
+    }
+
+    @Override
+    public double getEncodeTime() {
+        return encodeTime.sum() / 1.0e6;
+    }
+
+    @Override
+    public int getObjects() {
+        return objects.get();
+    }
+
+    @Override
+    public int getObjectsHighWater() {
+        return objectsHighWater.get();
+    }
+
+    @Override
+    public Map<String, ActionStats> getActions() {
+        Map<String, ActionStats> snapshot = new TreeMap<String, ActionStats>();
+
+        for (Map.Entry<String, Action> entry: actions.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().snapshot());
+        }
+
+        return snapshot;
+    }
+
+    @Override
+    public void reset() {
+        actions.clear();
+        messagesRead.reset();
+        messagesWritten.reset();
+        charactersRead.reset();
+        charactersWritten.reset();
+        decodeTime.reset();
+        encodeTime.reset();
+        objectsHighWater.set(objects.get());
+    }
+
+    /**
+     * Snapshot of the statistics for one action.
+     */
+    public static class ActionStats {
+        private final long calls;
+        private final long errors;
+        private final long totalTime;
+        private final long maxTime;
+        private final long[] percentiles;
+
+        /**
+         * Constructor.
+         */
+        private ActionStats(long calls, long errors, long totalTime,
+                long maxTime, long[] percentiles) {
+            this.calls = calls;
+            this.errors = errors;
+            this.totalTime = totalTime;
+            this.maxTime = maxTime;
+            this.percentiles = percentiles;
+        }
+
+        /**
+         * Get the number of calls, including failures.
+         *
+         * @return number of calls
+         */
+        public long getCalls() {
+            return calls;
+        }
+
+        /**
+         * Get the number of failed calls.
+         *
+         * @return number of failures
+         */
+        public long getErrors() {
+            return errors;
+        }
+
+        /**
+         * Get the mean latency.
+         *
+         * @return mean latency in milliseconds, or 0 if there have
+         *     been no calls
+         */
+        public double getMeanLatency() {
+            return calls == 0 ? 0.0 : totalTime / (calls * 1.0e6);
+        }
+
+        /**
+         * Get the maximum latency.
+         *
+         * @return maximum latency in milliseconds
+         */
+        public double getMaxLatency() {
+            return maxTime / 1.0e6;
+        }
+
+        /**
+         * Get the median latency.
+         *
+         * Percentiles are determined from a histogram with a resolution
+         * of one eighth of a power of two, and give the upper bound
+         * of the relevant bin.
+         *
+         * @return latency in milliseconds
+         */
+        public double getMedianLatency() {
+            return percentiles[0] / 1.0e6;
+        }
+
+        /**
+         * Get the 90th percentile latency.
+         *
+         * @return latency in milliseconds
+         */
+        public double getLatency90() {
+            return percentiles[1] / 1.0e6;
+        }
+
+        /**
+         * Get the 99th percentile latency.
+         *
+         * @return latency in milliseconds
+         */
+        public double getLatency99() {
+            return percentiles[2] / 1.0e6;
+        }
+
+        /**
+         * Get the 99.9th percentile latency.
+         *
+         * @return latency in milliseconds
+         */
+        public double getLatency999() {
+            return percentiles[3] / 1.0e6;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "calls=%d errors=%d mean=%.3fms p50=%.3fms p99=%.3fms"
+                    + " max=%.3fms",
+                    calls, errors, getMeanLatency(), getMedianLatency(),
+                    getLatency99(), getMaxLatency());
+        }
+    }
+
+    /**
+     * Live statistics for one action.
+     */
+    private static class Action {
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder totalTime = new LongAdder();
+        private final AtomicLong maxTime = new AtomicLong();
+        private final Histogram histogram = new Histogram();
+
+        private void record(long nanoseconds, boolean error) {
+            calls.increment();
+
+            if (error) {
+                errors.increment();
+            }
+
+            totalTime.add(nanoseconds);
+            maxTime.accumulateAndGet(nanoseconds, Math::max);
+            histogram.record(nanoseconds);
+        }
+
+        private ActionStats snapshot() {
+            return new ActionStats(calls.sum(), errors.sum(),
+                    totalTime.sum(), maxTime.get(),
+                    histogram.percentiles(0.5, 0.9, 0.99, 0.999));
+        }
+    }
+
+    /**
+     * Histogram of non-negative values with logarithmic bins.
+     *
+     * Each power of two is divided into eight bins, so values are
+     * resolved to within 12.5%.  Recording a value is a single atomic
+     * increment.
+     */
+    static class Histogram {
+        /**
+         * Number of bits used to divide each power of two.
+         */
+        private static final int SUB_BITS = 3;
+
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+
+        private final AtomicLongArray counts =
+                new AtomicLongArray((64 - SUB_BITS) * SUB_COUNT);
+
+        /**
+         * Record a value.
+         *
+         * @param value the value, with negative values counted as zero
+         */
+        void record(long value) {
+            counts.incrementAndGet(index(Math.max(0, value)));
+        }
+
+        /**
+         * Determine percentiles of the recorded values.
+         *
+         * @param fractions the percentiles required, as fractions
+         *     in ascending order
+         * @return the upper bound of the bin containing each percentile,
+         *     or 0 if no values have been recorded
+         */
+        long[] percentiles(double... fractions) {
+            long[] snapshot = new long[counts.length()];
+            long total = 0;
+
+            for (int i = 0; i < snapshot.length; i ++) {
+                snapshot[i] = counts.get(i);
+                total += snapshot[i];
+            }
+
+            long[] result = new long[fractions.length];
+
+            if (total == 0) {
+                return result;
+            }
+
+            int bin = 0;
+            long cumulative = snapshot[0];
+
+            for (int j = 0; j < fractions.length; j ++) {
+                long target = Math.max(1, (long) Math.ceil(
+                        fractions[j] * total));
+
+                while (cumulative < target) {
+                    cumulative += snapshot[++ bin];
+                }
+
+                result[j] = upperBound(bin);
+            }
+
+            return result;
+        }
+
+        /**
+         * Determine the bin for a value.
+         */
+        static int index(long value) {
+            if (value < SUB_COUNT) {
+                return (int) value;
+            }
+
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+
+            return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+        }
+
+        /**
+         * Determine the largest value in a bin.
+         */
+        static long upperBound(int index) {
+            if (index < SUB_COUNT) {
+                return index;
+            }
+
+            int shift = index / SUB_COUNT - 1;
+            long sub = index % SUB_COUNT;
+
+            return ((SUB_COUNT + sub + 1) << shift) - 1;
+        }
+    }
+}
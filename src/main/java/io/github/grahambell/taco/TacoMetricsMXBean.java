@@ -0,0 +1,96 @@
+/*
+ * Taco Java metrics management interface.
+ * Copyright (C) 2014-2015 Graham Bell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.grahambell.taco;
+
+import java.util.Map;
+
+/**
+ * Management interface for {@link TacoMetrics}, exposed via JMX
+ * as an MXBean.
+ */
+public interface TacoMetricsMXBean {
+    /**
+     * Get the number of messages read.
+     *
+     * @return number of messages
+     */
+    public long getMessagesRead();
+
+    /**
+     * Get the number of messages written.
+     *
+     * @return number of messages
+     */
+    public long getMessagesWritten();
+
+    /**
+     * Get the number of characters of JSON text read.
+     *
+     * @return number of characters
+     */
+    public long getCharactersRead();
+
+    /**
+     * Get the number of characters of JSON text written.
+     *
+     * @return number of characters
+     */
+    public long getCharactersWritten();
+
+    /**
+     * Get the total time spent decoding messages.
+     *
+     * @return time in milliseconds
+     */
+    public double getDecodeTime();
+
+    /**
+     * Get the total time spent encoding messages.
+     *
+     * @return time in milliseconds
+     */
+    public double getEncodeTime();
+
+    /**
+     * Get the number of objects in the server's object cache.
+     *
+     * @return number of objects
+     */
+    public int getObjects();
+
+    /**
+     * Get the largest number of objects which have been in the
+     * server's object cache at once.
+     *
+     * @return number of objects
+     */
+    public int getObjectsHighWater();
+
+    /**
+     * Get statistics for each action.
+     *
+     * @return map of action name to statistics snapshot
+     */
+    public Map<String, TacoMetrics.ActionStats> getActions();
+
+    /**
+     * Reset all counters and histograms.
+     */
+    public void reset();
+}
@@ -0,0 +1,761 @@
+/*
+ * Taco Java client pool class.
+ * Copyright (C) 2014-2015 Graham Bell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.grahambell.taco;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Pool of Taco clients, each with its own server subprocess.
+ *
+ * Function and class method calls made via the pool are sent to the
+ * member with the fewest outstanding requests, so these calls should not
+ * depend on state held by any particular server.  Objects constructed
+ * via the pool are references to objects in the cache of the server
+ * which constructed them, and so their methods are always invoked
+ * in that server.
+ *
+ * If a member's subprocess exits, it is restarted in the background
+ * when the pool next selects a member, and other members are used until
+ * the restart is complete.  If spare servers are kept (see
+ * {@link #TacoPool(String, boolean, int, int)}), an already-started
+ * spare is used, avoiding the server startup time.  Modules imported
+ * via {@link #importModule} are imported again into the restarted
+ * server, but any other state, including cached objects, is lost.
+ * Calls are not retried.
+ *
+ * All methods may be called concurrently from multiple threads.
+ */
+public class TacoPool {
+    /**
+     * Language or script path used to launch servers.
+     */
+    private final String langOrScript;
+
+    /**
+     * Whether {@link #langOrScript} is a script path.
+     */
+    private final boolean byScriptPath;
+
+    /**
+     * Members of the pool.
+     */
+    private final Member[] members;
+
+    /**
+     * Spare clients used to replace members, or null if none are kept.
+     */
+    private final TacoSpares spares;
+
+    /**
+     * Modules imported into all members, in order of import.
+     */
+    private final List<Import> imports = new ArrayList<Import>();
+
+    /**
+     * Whether the pool has been closed.
+     */
+    private boolean closed = false;
+
+    /**
+     * Construct pool by launching the Taco server script for the given
+     * language in the given number of subprocesses.
+     *
+     * @param lang name of language for which to launch Taco server scripts
+     * @param size the number of servers
+     * @throws TacoException on error starting the servers
+     */
+    public TacoPool(String lang, int size) throws TacoException {
+        this(lang, false, size);
+    }
+
+    /**
+     * Construct pool given either the language or script path.
+     *
+     * @param langOrScript language (for automatic script name determination)
+     *     or script (with path if not in the executable search path)
+     * @param byScriptPath true if a script path is being provided
+     * @param size the number of servers
+     * @throws TacoException on error starting the servers
+     */
+    public TacoPool(String langOrScript, boolean byScriptPath, int size)
+            throws TacoException {
+        this(langOrScript, byScriptPath, size, 0);
+    }
+
+    /**
+     * Construct pool given either the language or script path, keeping
+     * a number of spare servers with which to replace any which exit.
+     *
+     * @param langOrScript language (for automatic script name determination)
+     *     or script (with path if not in the executable search path)
+     * @param byScriptPath true if a script path is being provided
+     * @param size the number of servers
+     * @param spares the number of spare servers
+     * @throws TacoException on error starting the servers
+     */
+    public TacoPool(String langOrScript, boolean byScriptPath, int size,
+            int spares)
+            throws TacoException {
+        if (size < 1) {
+            throw new IllegalArgumentException("pool size must be positive");
+        }
+
+        this.langOrScript = langOrScript;
+        this.byScriptPath = byScriptPath;
+
+        members = new Member[size];
+
+        if (spares > 0) {
+            this.spares = new TacoSpares(langOrScript, byScriptPath, spares) {
+                @Override
+                protected Taco createClient() throws TacoException {
+                    return TacoPool.this.createClient();
+                }
+            };
+        }
+        else {
+            this.spares = null;
+        }
+
+        try {
+            for (int i = 0; i < size; i ++) {
+                members[i] = new Member(createClient());
+            }
+        }
+        catch (TacoException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Create a client for a new member of the pool.
+     *
+     * Subclasses may override this method to configure the clients.
+     *
+     * @return a new Taco client
+     * @throws TacoException on error starting the server
+     */
+    protected Taco createClient() throws TacoException {
+        return new Taco(langOrScript, byScriptPath);
+    }
+
+    /**
+     * Invoke a (static) class method call in one of the servers.
+     *
+     * @param className the name of the class
+     * @param name the name of the method
+     * @param args positional arguments
+     * @param kwargs keyword arguments
+     * @param context context in which to invoke the function
+     * @return the result of the method call
+     * @throws TacoException on error
+     */
+    public java.lang.Object callClassMethod(String className, String name,
+            Collection<?> args, Map<String, ?> kwargs,
+            Taco.Context context)
+            throws TacoException {
+        return Taco.getResult(callClassMethodAsync(className, name,
+                args, kwargs, context));
+    }
+
+    /**
+     * Asynchronously invoke a (static) class method call in one of
+     * the servers.
+     *
+     * @param className the name of the class
+     * @param name the name of the method
+     * @param args positional arguments
+     * @param kwargs keyword arguments
+     * @param context context in which to invoke the function
+     * @return future for the result of the method call
+     */
+    public CompletableFuture<java.lang.Object> callClassMethodAsync(
+            String className, String name,
+            Collection<?> args, Map<String, ?> kwargs,
+            Taco.Context context) {
+        return submit(taco -> taco.callClassMethodAsync(
+                className, name, args, kwargs, context));
+    }
+
+    /**
+     * Invoke a function call in one of the servers.
+     *
+     * @param name the name of the function
+     * @param args positional arguments
+     * @param kwargs keyword arguments
+     * @param context context in which to invoke the function
+     * @return the result of the function call
+     * @throws TacoException on error
+     */
+    public java.lang.Object callFunction(String name,
+            Collection<?> args, Map<String, ?> kwargs,
+            Taco.Context context)
+            throws TacoException {
+        return Taco.getResult(callFunctionAsync(name, args, kwargs, context));
+    }
+
+    /**
+     * Asynchronously invoke a function call in one of the servers.
+     *
+     * @param name the name of the function
+     * @param args positional arguments
+     * @param kwargs keyword arguments
+     * @param context context in which to invoke the function
+     * @return future for the result of the function call
+     */
+    public CompletableFuture<java.lang.Object> callFunctionAsync(String name,
+            Collection<?> args, Map<String, ?> kwargs,
+            Taco.Context context) {
+        return submit(taco -> taco.callFunctionAsync(
+                name, args, kwargs, context));
+    }
+
+    /**
+     * Invoke an object constructor in one of the servers.
+     *
+     * The methods of the returned object are invoked in the
+     * same server.
+     *
+     * @param className the name of the object class
+     * @param args positional arguments
+     * @param kwargs keyword arguments
+     * @return a reference to the newly constructed object
+     * @throws TacoException on error
+     */
+    public Taco.Object constructObject(String className,
+            Collection<?> args, Map<String, ?> kwargs)
+            throws TacoException {
+        return Taco.getResult(constructObjectAsync(className, args, kwargs));
+    }
+
+    /**
+     * Asynchronously invoke an object constructor in one of the servers.
+     *
+     * @param className the name of the object class
+     * @param args positional arguments
+     * @param kwargs keyword arguments
+     * @return future for a reference to the newly constructed object
+     */
+    public CompletableFuture<Taco.Object> constructObjectAsync(
+            String className, Collection<?> args, Map<String, ?> kwargs) {
+        return submit(taco -> taco.constructObjectAsync(
+                className, args, kwargs));
+    }
+
+    /**
+     * Instruct all of the servers to import the given module.
+     *
+     * The import is recorded, so that it is also applied to any server
+     * which is subsequently restarted, and then sent to each member
+     * concurrently.  The pool can be used by other threads in the
+     * meantime.  Members for which the import fails are restarted, which
+     * applies the import again.  However if it fails for every member,
+     * the import is discarded and the error is reported.
+     *
+     * @param name the name of the module
+     * @param args positional arguments
+     * @param kwargs keyword arguments
+     * @throws TacoException if the import fails for every member
+     */
+    public void importModule(String name,
+            Collection<?> args, Map<String, ?> kwargs)
+            throws TacoException {
+        Import module = new Import(name, args, kwargs);
+        List<Member> targets = new ArrayList<Member>();
+        List<Taco> clients = new ArrayList<Taco>();
+
+        // Members being restarted apply the new import when they
+        // reach the end of the list.
+        synchronized (this) {
+            imports.add(module);
+
+            for (Member member: members) {
+                if (member.restarting == null) {
+                    targets.add(member);
+                    clients.add(member.taco);
+                }
+            }
+        }
+
+        List<CompletableFuture<Void>> futures =
+                new ArrayList<CompletableFuture<Void>>();
+
+        for (Taco taco: clients) {
+            futures.add(module.applyAsync(taco));
+        }
+
+        TacoException error = null;
+        List<Integer> failed = new ArrayList<Integer>();
+
+        for (int i = 0; i < futures.size(); i ++) {
+            try {
+                Taco.getResult(futures.get(i));
+            }
+            catch (TacoException e) {
+                error = e;
+                failed.add(i);
+            }
+        }
+
+        if (failed.isEmpty()) {
+            return;
+        }
+
+        if (failed.size() == futures.size()) {
+            module.discarded = true;
+            throw error;
+        }
+
+        synchronized (this) {
+            for (int i: failed) {
+                Member member = targets.get(i);
+
+                if (member.restarting == null && ! closed
+                        && member.taco == clients.get(i)) {
+                    startRestart(member);
+                }
+            }
+        }
+    }
+
+    /**
+     * Instruct all of the servers to import the given module.
+     *
+     * @param name the name of the module
+     * @throws TacoException on error
+     */
+    public void importModule(String name) throws TacoException {
+        importModule(name, null, null);
+    }
+
+    /**
+     * Terminate all of the server subprocesses.
+     */
+    public synchronized void close() {
+        closed = true;
+
+        if (spares != null) {
+            spares.close();
+        }
+
+        for (Member member: members) {
+            if (member != null) {
+                member.taco.close();
+            }
+        }
+    }
+
+    /**
+     * Get the number of servers in the pool.
+     *
+     * @return the pool size
+     */
+    public int size() {
+        return members.length;
+    }
+
+    /**
+     * Get the total number of requests made via the pool which are
+     * awaiting a response.
+     *
+     * @return the number of outstanding requests
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+
+        for (Member member: members) {
+            depth += member.outstanding.get();
+        }
+
+        return depth;
+    }
+
+    /**
+     * Get statistics for each member of the pool.
+     *
+     * @return list of statistics, in member order
+     */
+    public List<Stats> getStats() {
+        List<Stats> stats = new ArrayList<Stats>();
+
+        for (Member member: members) {
+            stats.add(member.getStats());
+        }
+
+        return stats;
+    }
+
+    /**
+     * Select the member with the fewest outstanding requests, starting
+     * the restart of any members whose server has exited.
+     *
+     * Servers are restarted in the background, and members being
+     * restarted are not selected, so that other members can continue
+     * to be used in the meantime.  Only if every member is being
+     * restarted does this method wait for a restart to finish.
+     *
+     * The selected member's count of outstanding requests is incremented.
+     *
+     * @throws TacoException if every member is being restarted and
+     *     a restart fails
+     */
+    private Member select() throws TacoException {
+        while (true) {
+            CompletableFuture<Void> restarting = null;
+
+            synchronized (this) {
+                Member selected = null;
+
+                for (Member member: members) {
+                    if (member.restarting == null
+                            && ! member.taco.isAlive()) {
+                        startRestart(member);
+                    }
+
+                    if (member.restarting != null) {
+                        if (restarting == null) {
+                            restarting = member.restarting;
+                        }
+                    }
+                    else if (selected == null
+                            || member.outstanding.get()
+                                < selected.outstanding.get()) {
+                        selected = member;
+                    }
+                }
+
+                if (selected != null) {
+                    selected.outstanding.incrementAndGet();
+                    return selected;
+                }
+            }
+
+            Taco.getResult(restarting);
+        }
+    }
+
+    /**
+     * Begin replacing a member's client in a background thread.  Must be
+     * called with this object's monitor held.
+     */
+    private void startRestart(final Member member) {
+        final CompletableFuture<Void> future = new CompletableFuture<Void>();
+        member.restarting = future;
+
+        Thread thread = new Thread(() -> {
+            try {
+                restart(member);
+                future.complete(null);
+            }
+            catch (TacoException e) {
+                synchronized (this) {
+                    member.restarting = null;
+                }
+
+                future.completeExceptionally(e);
+            }
+        }, "TacoPool restart");
+
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Replace a member's client with a new one, applying all of the
+     * imports, including any added while the new server was starting.
+     */
+    private void restart(Member member) throws TacoException {
+        member.taco.close();
+
+        Taco taco = (spares == null) ? createClient() : spares.take();
+
+        try {
+            for (int applied = 0; ; applied ++) {
+                Import module;
+
+                synchronized (this) {
+                    if (applied == imports.size()) {
+                        if (closed) {
+                            taco.close();
+                        }
+                        else {
+                            member.taco = taco;
+                            member.restarts.incrementAndGet();
+                        }
+
+                        member.restarting = null;
+                        return;
+                    }
+
+                    module = imports.get(applied);
+                }
+
+                module.apply(taco);
+            }
+        }
+        catch (TacoException e) {
+            taco.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Send a request to the selected member and record its outcome
+     * when complete.
+     */
+    private <T> CompletableFuture<T> submit(
+            Function<Taco, CompletableFuture<T>> call) {
+        final Member member;
+
+        try {
+            member = select();
+        }
+        catch (TacoException e) {
+            CompletableFuture<T> future = new CompletableFuture<T>();
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        final long start = System.nanoTime();
+        CompletableFuture<T> future = call.apply(member.taco);
+
+        future.whenComplete((result, error) ->
+                member.finished(System.nanoTime() - start, error != null));
+
+        return future;
+    }
+
+    /**
+     * Member of the pool.
+     */
+    private static class Member {
+        /**
+         * The client, which is replaced if the server is restarted.
+         */
+        private volatile Taco taco;
+
+        /**
+         * Restart in progress, or null.  Guarded by the pool's monitor.
+         */
+        private CompletableFuture<Void> restarting = null;
+
+        /**
+         * Number of requests awaiting a response.
+         */
+        private final AtomicInteger outstanding = new AtomicInteger();
+
+        /**
+         * Number of completed requests.
+         */
+        private final AtomicLong calls = new AtomicLong();
+
+        /**
+         * Number of failed requests.
+         */
+        private final AtomicLong errors = new AtomicLong();
+
+        /**
+         * Total time taken by completed requests, in nanoseconds.
+         */
+        private final AtomicLong totalTime = new AtomicLong();
+
+        /**
+         * Maximum time taken by a request, in nanoseconds.
+         */
+        private final AtomicLong maxTime = new AtomicLong();
+
+        /**
+         * Number of times the server has been restarted.
+         */
+        private final AtomicInteger restarts = new AtomicInteger();
+
+        /**
+         * Constructor.
+         */
+        private Member(Taco taco) {
+            this.taco = taco;
+        }
+
+        /**
+         * Record the completion of a request.
+         */
+        private void finished(long time, boolean failed) {
+            outstanding.decrementAndGet();
+            calls.incrementAndGet();
+            totalTime.addAndGet(time);
+
+            if (failed) {
+                errors.incrementAndGet();
+            }
+
+            long max;
+            do {
+                max = maxTime.get();
+            } while (time > max && ! maxTime.compareAndSet(max, time));
+        }
+
+        /**
+         * Take a snapshot of this member's statistics.
+         */
+        private Stats getStats() {
+            return new Stats(outstanding.get(), calls.get(), errors.get(),
+                    totalTime.get(), maxTime.get(), restarts.get());
+        }
+    }
+
+    /**
+     * Statistics for a member of the pool.
+     */
+    public static class Stats {
+        private final int outstanding;
+        private final long calls;
+        private final long errors;
+        private final long totalTime;
+        private final long maxTime;
+        private final int restarts;
+
+        /**
+         * Constructor.
+         */
+        private Stats(int outstanding, long calls, long errors,
+                long totalTime, long maxTime, int restarts) {
+            this.outstanding = outstanding;
+            this.calls = calls;
+            this.errors = errors;
+            this.totalTime = totalTime;
+            this.maxTime = maxTime;
+            this.restarts = restarts;
+        }
+
+        /**
+         * Get the number of requests awaiting a response.
+         *
+         * @return number of outstanding requests
+         */
+        public int getOutstanding() {
+            return outstanding;
+        }
+
+        /**
+         * Get the number of completed requests, including failures.
+         *
+         * @return number of requests
+         */
+        public long getCalls() {
+            return calls;
+        }
+
+        /**
+         * Get the number of failed requests.
+         *
+         * @return number of failures
+         */
+        public long getErrors() {
+            return errors;
+        }
+
+        /**
+         * Get the mean latency of completed requests.
+         *
+         * @return mean latency in milliseconds, or 0 if no requests
+         *     have completed
+         */
+        public double getMeanLatency() {
+            return calls == 0 ? 0.0 : totalTime / (calls * 1.0e6);
+        }
+
+        /**
+         * Get the maximum latency of completed requests.
+         *
+         * @return maximum latency in milliseconds
+         */
+        public double getMaxLatency() {
+            return maxTime / 1.0e6;
+        }
+
+        /**
+         * Get the number of times the server has been restarted.
+         *
+         * @return number of restarts
+         */
+        public int getRestarts() {
+            return restarts;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "outstanding %d, calls %d, errors %d, "
+                    + "mean latency %.3f ms, max latency %.3f ms, "
+                    + "restarts %d",
+                    outstanding, calls, errors,
+                    getMeanLatency(), getMaxLatency(), restarts);
+        }
+    }
+
+    /**
+     * Record of a module import, to be applied to restarted servers.
+     */
+    private static class Import {
+        private final String name;
+        private final Collection<?> args;
+        private final Map<String, ?> kwargs;
+
+        /**
+         * Whether the import failed for every member, in which case it
+         * is not applied to restarted servers.
+         */
+        private volatile boolean discarded = false;
+
+        /**
+         * Constructor.
+         */
+        private Import(String name, Collection<?> args,
+                Map<String, ?> kwargs) {
+            this.name = name;
+            this.args = args;
+            this.kwargs = kwargs;
+        }
+
+        /**
+         * Import the module using the given client, unless the import
+         * has been discarded.
+         */
+        private void apply(Taco taco) throws TacoException {
+            if (! discarded) {
+                Taco.getResult(applyAsync(taco));
+            }
+        }
+
+        /**
+         * Asynchronously import the module using the given client.
+         */
+        private CompletableFuture<Void> applyAsync(Taco taco) {
+            return taco.importModuleAsync(name, args, kwargs);
+        }
+    }
+}
@@ -0,0 +1,579 @@
+/*
+ * Taco Java session replay tool.
+ * Copyright (C) 2014-2015 Graham Bell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.grahambell.taco;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Tool to replay sessions recorded by {@link RecordingTransport}.
+ *
+ * In server mode, the requests from a recorded session are sent to a
+ * {@link TacoServer} running in the same JVM (connected by a
+ * {@link LoopbackTransport}), and the time taken for each response
+ * is measured.  In client mode, the requests are made by a {@link Taco}
+ * client, and the recorded responses are returned to it, which measures
+ * the client's own overhead.  A log recorded by either the client or
+ * the server can be used: requests and responses are distinguished by
+ * their action.
+ *
+ * Requests are sent as fast as possible, or with the same spacing as
+ * in the recording.  The server must be able to re-create the
+ * recorded session, so the log should cover the whole session.
+ */
+public class TacoReplay {
+    /**
+     * Constructor not used: this class only has static methods.
+     */
+    private TacoReplay() {
+    }
+
+    /**
+     * Main program method.
+     *
+     * Usage: <code>TacoReplay [--paced] server|client LOGFILE</code>
+     *
+     * @param args command line arguments
+     */
+    public static void main(String[] args) {
+        boolean paced = false;
+        int i = 0;
+
+        if (i < args.length && args[i].equals("--paced")) {
+            paced = true;
+            i ++;
+        }
+
+        if (args.length - i != 2
+                || ! (args[i].equals("server") || args[i].equals("client"))) {
+            System.err.println(
+                    "Usage: TacoReplay [--paced] server|client LOGFILE");
+            System.exit(2);
+        }
+
+        try (InputStream in = new FileInputStream(args[i + 1])) {
+            List<RecordingTransport.Entry> entries =
+                    RecordingTransport.readLog(in);
+
+            Result result = args[i].equals("server")
+                    ? replayServer(entries, paced)
+                    : replayClient(entries, paced);
+
+            System.out.println(result);
+        }
+        catch (IOException | TacoException e) {
+            System.err.println("Replay failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Replay the requests from a recorded session to a server.
+     *
+     * @param entries the log entries
+     * @param paced true to send requests with the recorded spacing
+     * @return the results of the replay
+     * @throws TacoException on error parsing the log or communicating
+     *     with the server
+     */
+    public static Result replayServer(List<RecordingTransport.Entry> entries,
+            boolean paced) throws TacoException {
+        final List<RecordingTransport.Entry> requests =
+                select(entries, true);
+        final List<Map<String, Object>> messages =
+                new ArrayList<Map<String, Object>>();
+        int expected = 0;
+
+        LoopbackTransport xp = new LoopbackTransport(null,
+                LoopbackTransport.DEFAULT_CAPACITY, false);
+
+        for (RecordingTransport.Entry entry: requests) {
+            Map<String, Object> message = parse(xp, entry.getText());
+            messages.add(message);
+
+            if (expectsResponse(message)) {
+                expected ++;
+            }
+        }
+
+        final TacoServer server = new TacoServer((TacoTransport) null);
+        server.xp = new LoopbackTransport(server, xp);
+
+        Thread serverThread = new Thread("Taco replay server") {
+            public void run() {
+                try {
+                    server.run();
+                }
+                catch (TacoException e) {
+                    // Reported as missing responses.
+                }
+            }
+        };
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        final Map<Object, Long> sendTimes = new ConcurrentHashMap<Object, Long>();
+        final Queue<Long> unidentified = new ArrayDeque<Long>();
+        final Result result = new Result();
+
+        Thread sender = new Thread("Taco replay sender") {
+            public void run() {
+                long start = System.nanoTime();
+
+                for (int i = 0; i < messages.size(); i ++) {
+                    Map<String, Object> message = messages.get(i);
+
+                    if (paced) {
+                        waitUntil(start, requests.get(i).getTime()
+                                - requests.get(0).getTime());
+                    }
+
+                    long time = System.nanoTime();
+
+                    if (expectsResponse(message)) {
+                        Object id = message.get("id");
+
+                        if (id == null) {
+                            synchronized (unidentified) {
+                                unidentified.add(time);
+                            }
+                        }
+                        else {
+                            sendTimes.put(id, time);
+                        }
+                    }
+
+                    try {
+                        xp.write(message);
+                    }
+                    catch (TacoException e) {
+                        return;
+                    }
+                }
+            }
+        };
+        sender.setDaemon(true);
+
+        result.start();
+        sender.start();
+
+        try {
+            for (int i = 0; i < expected; i ++) {
+                Map<String, Object> response = xp.read();
+
+                if (response == null) {
+                    throw new TacoException("server ended session");
+                }
+
+                long time = System.nanoTime();
+                Object id = response.get("id");
+                Long sendTime;
+
+                if (id == null) {
+                    synchronized (unidentified) {
+                        sendTime = unidentified.poll();
+                    }
+                }
+                else {
+                    sendTime = sendTimes.remove(id);
+                }
+
+                if (sendTime != null) {
+                    result.record(time - sendTime,
+                            "exception".equals(response.get("action")));
+                }
+            }
+        }
+        finally {
+            result.finish();
+            xp.close();
+        }
+
+        return result;
+    }
+
+    /**
+     * Replay the responses from a recorded session to a client.
+     *
+     * The recorded requests are made by a new client using its
+     * asynchronous interface, and each is answered with the
+     * corresponding recorded response.
+     *
+     * @param entries the log entries
+     * @param paced true to make requests with the recorded spacing
+     * @return the results of the replay
+     * @throws TacoException on error parsing the log
+     */
+    public static Result replayClient(List<RecordingTransport.Entry> entries,
+            boolean paced) throws TacoException {
+        List<RecordingTransport.Entry> requests = new ArrayList<
+                RecordingTransport.Entry>();
+        List<Map<String, Object>> messages =
+                new ArrayList<Map<String, Object>>();
+        Map<Object, String> responses = new HashMap<Object, String>();
+
+        for (RecordingTransport.Entry entry: select(entries, false)) {
+            responses.put(parseJson(entry.getText()).opt("id"),
+                    entry.getText());
+        }
+
+        // The client numbers its requests from 1, so renumber the
+        // responses to match.
+        Map<Integer, String> renumbered = new HashMap<Integer, String>();
+        TacoTransport parser = new TacoTransport(null);
+
+        for (RecordingTransport.Entry entry: select(entries, true)) {
+            Map<String, Object> message = parse(parser, entry.getText());
+
+            if ("cancel".equals(message.get("action"))) {
+                continue;
+            }
+
+            String response = responses.get(message.remove("id"));
+
+            if (response == null && expectsResponse(message)) {
+                continue;
+            }
+
+            requests.add(entry);
+            messages.add(message);
+
+            if (response != null) {
+                JSONObject json = parseJson(response);
+                json.put("id", messages.size());
+                renumbered.put(messages.size(), json.toString());
+            }
+        }
+
+        Taco taco = new Taco((TacoTransport) null);
+        taco.xp = new ReplayTransport(taco, renumbered);
+
+        Result result = new Result();
+        List<CompletableFuture<java.lang.Object>> futures =
+                new ArrayList<CompletableFuture<java.lang.Object>>();
+
+        result.start();
+        long start = System.nanoTime();
+
+        for (int i = 0; i < messages.size(); i ++) {
+            if (paced) {
+                waitUntil(start, requests.get(i).getTime()
+                        - requests.get(0).getTime());
+            }
+
+            long time = System.nanoTime();
+
+            // Keep the futures so that object references in the results
+            // are not released, which would send additional requests.
+            futures.add(taco.interactAsync(messages.get(i))
+                    .whenComplete((value, error) -> result.record(
+                            System.nanoTime() - time, error != null)));
+        }
+
+        for (CompletableFuture<java.lang.Object> future: futures) {
+            try {
+                Taco.getResult(future);
+            }
+            catch (TacoException e) {
+                // Already counted as an error.
+            }
+        }
+
+        result.finish();
+        taco.close();
+
+        return result;
+    }
+
+    /**
+     * Select the requests or the responses from a log.
+     */
+    private static List<RecordingTransport.Entry> select(
+            List<RecordingTransport.Entry> entries, boolean wantRequests)
+            throws TacoException {
+        List<RecordingTransport.Entry> selected =
+                new ArrayList<RecordingTransport.Entry>();
+
+        for (RecordingTransport.Entry entry: entries) {
+            String action = parseJson(entry.getText()).optString("action");
+            boolean response = action.equals("result")
+                    || action.equals("exception");
+
+            if (response != wantRequests) {
+                selected.add(entry);
+            }
+        }
+
+        return selected;
+    }
+
+    /**
+     * Determine whether a request will be answered.
+     */
+    private static boolean expectsResponse(Map<String, Object> message) {
+        return ! "cancel".equals(message.get("action"))
+                && ! Boolean.TRUE.equals(message.get("no_response"));
+    }
+
+    /**
+     * Parse message text as JSON.
+     */
+    private static JSONObject parseJson(String text) throws TacoException {
+        try {
+            return new JSONObject(text);
+        }
+        catch (JSONException e) {
+            throw new TacoException("invalid message in log: "
+                    + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Parse message text as a map, without applying any filter.
+     */
+    private static Map<String, Object> parse(TacoTransport xp, String text)
+            throws TacoException {
+        return xp.jsonToMap(parseJson(text));
+    }
+
+    /**
+     * Wait until the given time after the start of the replay.
+     *
+     * @param start the start time, from <code>System.nanoTime</code>
+     * @param offset the time to wait for after the start, in nanoseconds
+     */
+    static void waitUntil(long start, long offset) {
+        long remaining;
+
+        while ((remaining = start + offset - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    /**
+     * Transport which answers each request with a recorded response.
+     */
+    private static class ReplayTransport extends TacoTransport {
+        /**
+         * Marker placed in the queue when the transport is closed.
+         */
+        private static final String END = new String();
+
+        /**
+         * Recorded responses by request identifier.
+         */
+        private final Map<Integer, String> responses;
+
+        /**
+         * Responses waiting to be read.
+         */
+        private final BlockingQueue<String> pending =
+                new LinkedBlockingQueue<String>();
+
+        /**
+         * Constructor.
+         */
+        private ReplayTransport(Filter filter, Map<Integer, String> responses) {
+            super(filter);
+            this.responses = responses;
+        }
+
+        @Override
+        public void close() {
+            pending.add(END);
+        }
+
+        @Override
+        public Map<String, Object> read() throws TacoException {
+            String text;
+
+            try {
+                text = pending.take();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new TacoException("read interrupted", e);
+            }
+
+            if (text == END) {
+                pending.add(END);
+                return null;
+            }
+
+            return decode(text);
+        }
+
+        @Override
+        public void write(Map<String, Object> message) throws TacoException {
+            String text = responses.get(message.get("id"));
+
+            // Encode the message as a real transport would.
+            encode(message);
+
+            if (text != null) {
+                pending.add(text);
+            }
+        }
+    }
+
+    /**
+     * Results of a replay or other measurement of a series of requests.
+     */
+    public static class Result {
+        private final TacoMetrics.Histogram histogram =
+                new TacoMetrics.Histogram();
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong maxTime = new AtomicLong();
+        private long startTime;
+        private long elapsed;
+
+        /**
+         * Constructor.
+         */
+        Result() {
+        }
+
+        /**
+         * Record the start of the measurement.
+         */
+        void start() {
+            startTime = System.nanoTime();
+        }
+
+        /**
+         * Record the end of the measurement.
+         */
+        void finish() {
+            elapsed = System.nanoTime() - startTime;
+        }
+
+        /**
+         * Record the latency of one request.
+         *
+         * @param nanoseconds the latency
+         * @param error true if the request failed
+         */
+        void record(long nanoseconds, boolean error) {
+            requests.incrementAndGet();
+
+            if (error) {
+                errors.incrementAndGet();
+            }
+
+            histogram.record(nanoseconds);
+            maxTime.accumulateAndGet(nanoseconds, Math::max);
+        }
+
+        /**
+         * Get the number of requests answered.
+         *
+         * @return number of requests
+         */
+        public long getRequests() {
+            return requests.get();
+        }
+
+        /**
+         * Get the number of requests answered with an exception.
+         *
+         * @return number of errors
+         */
+        public long getErrors() {
+            return errors.get();
+        }
+
+        /**
+         * Get the time taken by the replay.
+         *
+         * @return time in milliseconds
+         */
+        public double getElapsed() {
+            return elapsed / 1.0e6;
+        }
+
+        /**
+         * Get the rate at which requests were answered.
+         *
+         * @return requests per second
+         */
+        public double getThroughput() {
+            return elapsed == 0 ? 0.0 : requests.get() * 1.0e9 / elapsed;
+        }
+
+        /**
+         * Get latency percentiles.
+         *
+         * @param fractions the percentiles required, as fractions in
+         *     ascending order
+         * @return latencies in milliseconds, each the upper bound of
+         *     a histogram bin
+         */
+        public double[] getLatencies(double... fractions) {
+            long[] percentiles = histogram.percentiles(fractions);
+            double[] latencies = new double[percentiles.length];
+
+            for (int i = 0; i < percentiles.length; i ++) {
+                latencies[i] = percentiles[i] / 1.0e6;
+            }
+
+            return latencies;
+        }
+
+        /**
+         * Get the maximum latency.
+         *
+         * @return latency in milliseconds
+         */
+        public double getMaxLatency() {
+            return maxTime.get() / 1.0e6;
+        }
+
+        @Override
+        public String toString() {
+            double[] latencies = getLatencies(0.5, 0.9, 0.99, 0.999);
+
+            return String.format(
+                    "requests: %d (%d errors)%n"
+                    + "elapsed: %.1f ms%n"
+                    + "throughput: %.1f requests/s%n"
+                    + "latency (ms): p50 %.3f, p90 %.3f, p99 %.3f,"
+                    + " p99.9 %.3f, max %.3f",
+                    getRequests(), getErrors(), getElapsed(),
+                    getThroughput(), latencies[0], latencies[1],
+                    latencies[2], latencies[3], getMaxLatency());
+        }
+    }
+}
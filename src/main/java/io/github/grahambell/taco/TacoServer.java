@@ -18,20 +18,87 @@
 
 package io.github.grahambell.taco;
 
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.IOException;
 import java.io.OutputStream;
 import java.lang.IllegalArgumentException;
 import java.lang.reflect.Constructor;
+import java.lang.reflect.Executable;
+import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.BaseStream;
 
 /**
  * Taco server implementation.
  */
 public class TacoServer implements TacoTransport.Filter {
+    /**
+     * Empty argument array, used for calls without arguments.
+     */
+    private static final Object[] NO_ARGS = new Object[0];
+
+    /**
+     * Public methods of each class, grouped by name, for use by
+     * {@link #invokeMethod}.
+     */
+    private static final ClassValue<Map<String, Candidates>> classMethods =
+            new ClassValue<Map<String, Candidates>>() {
+                @Override
+                protected Map<String, Candidates> computeValue(
+                        Class<?> cls) {
+                    return new ConcurrentHashMap<String, Candidates>();
+                }
+            };
+
+    /**
+     * Public constructors of each class.
+     */
+    private static final ClassValue<Candidates> classConstructors =
+            new ClassValue<Candidates>() {
+                @Override
+                protected Candidates computeValue(Class<?> cls) {
+                    return new Candidates(cls.getConstructors());
+                }
+            };
+
+    /**
+     * Public fields of each class, by name.
+     */
+    private static final ClassValue<Map<String, Field>> classFields =
+            new ClassValue<Map<String, Field>>() {
+                @Override
+                protected Map<String, Field> computeValue(Class<?> cls) {
+                    return new ConcurrentHashMap<String, Field>();
+                }
+            };
+
+    /**
+     * Handler methods found by {@link #handle}, by action name.
+     */
+    final Map<String, Method> handlers =
+            new ConcurrentHashMap<String, Method>();
+
     /**
      * TacoTransport object used for communication.
      */
@@ -40,7 +107,8 @@ public class TacoServer implements TacoTransport.Filter {
     /**
      * Cache of Taco server-side objects.
      */
-    protected Map<Integer, Object> objects = new HashMap();
+    protected Map<Integer, Object> objects =
+            Collections.synchronizedMap(new HashMap<Integer, Object>());
 
     /**
      * Server-side object counter.
@@ -49,6 +117,76 @@ public class TacoServer implements TacoTransport.Filter {
      */
     protected int objectNum = 0;
 
+    /**
+     * Calls registered by the "prepare_call" action, by handle.
+     */
+    protected Map<Integer, PreparedCall> preparedCalls =
+            Collections.synchronizedMap(new HashMap<Integer, PreparedCall>());
+
+    /**
+     * Prepared call handle counter.
+     */
+    protected int preparedNum = 0;
+
+    /**
+     * Cache of results of class method calls, or null if results
+     * are not to be cached.
+     */
+    protected ResultCache resultCache = null;
+
+    /**
+     * Metrics to which to report each action, or null.
+     */
+    protected volatile TacoMetrics metrics = null;
+
+    /**
+     * Exception messages from actions which were not to be answered,
+     * waiting to be included in the next response.
+     */
+    protected List<String> deferredErrors = new ArrayList<String>();
+
+    /**
+     * Requests waiting to be handled by the worker thread.
+     */
+    private final BlockingQueue<Request> requestQueue =
+            new LinkedBlockingQueue<Request>();
+
+    /**
+     * Unanswered requests which have an identifier, by identifier.
+     */
+    private final Map<Object, Request> activeRequests =
+            new HashMap<Object, Request>();
+
+    /**
+     * Number of unanswered requests.
+     */
+    private int outstandingRequests = 0;
+
+    /**
+     * Thread currently responsible for handling requests.
+     */
+    private Worker worker = null;
+
+    /**
+     * Lock protecting the request bookkeeping.
+     */
+    private final Object requestLock = new Object();
+
+    /**
+     * Lock held while writing responses.
+     */
+    private final Object writeLock = new Object();
+
+    /**
+     * Error encountered while writing a response, if any.
+     */
+    private volatile TacoException writeError = null;
+
+    /**
+     * Timer for request timeouts, created when first required.
+     */
+    private ScheduledExecutorService timer = null;
+
     /**
      * Constructor.
      *
@@ -77,17 +215,84 @@ public class TacoServer implements TacoTransport.Filter {
      * Constructs a TacoServer object using standard input and standard output,
      * and invokes its run method.
      *
+     * If the system property "taco.preload" is set, it is taken to be
+     * the name of a preload manifest file which is processed using the
+     * {@link #preload} method before any messages are read.
+     *
+     * If the system property "taco.cache.size" (maximum number of
+     * entries) is set to a positive value, a {@link ResultCache} is
+     * configured using it and the properties "taco.cache.age" (maximum
+     * age in milliseconds, default no limit) and "taco.cache.allow"
+     * (comma-separated list of cacheable class and method names).
+     * By default the cache is disabled.
+     *
+     * If the system property "taco.metrics" is set, {@link TacoMetrics}
+     * are collected and registered as an MBean using the property's value
+     * as the name.
+     *
+     * If the system property "taco.record" is set, all messages are
+     * recorded to the file which it names using a
+     * {@link RecordingTransport}.
+     *
      * @param args command line arguments
      */
     public static void main(String[] args) {
         TacoServer server = new TacoServer(System.in, System.out);
 
+        int cacheSize = Integer.getInteger("taco.cache.size", 0);
+
+        if (cacheSize > 0) {
+            ResultCache cache = new ResultCache(cacheSize,
+                    Long.getLong("taco.cache.age", 0));
+
+            for (String name:
+                    System.getProperty("taco.cache.allow", "").split(",")) {
+                if (! name.trim().isEmpty()) {
+                    cache.allow(name.trim());
+                }
+            }
+
+            server.setResultCache(cache);
+        }
+
+        String metricsName = System.getProperty("taco.metrics");
+
         // Redirect standard output to standard error to prevent called methods
         // from writing into the Taco communication channel.
         System.setOut(System.err);
 
         try {
-            server.run();
+            String manifest = System.getProperty("taco.preload");
+
+            if (manifest != null) {
+                server.preload(manifest);
+            }
+
+            String recordFile = System.getProperty("taco.record");
+
+            if (recordFile != null) {
+                try {
+                    server.xp = new RecordingTransport(server.xp,
+                            new FileOutputStream(recordFile));
+                }
+                catch (IOException e) {
+                    throw new TacoException("could not open record file: "
+                            + e.getMessage(), e);
+                }
+            }
+
+            if (metricsName != null) {
+                TacoMetrics metrics = new TacoMetrics();
+                metrics.register(metricsName);
+                server.setMetrics(metrics);
+            }
+
+            try {
+                server.run();
+            }
+            finally {
+                server.xp.close();
+            }
         }
         catch (TacoException e) {
             e.printStackTrace();
@@ -99,35 +304,102 @@ public class TacoServer implements TacoTransport.Filter {
      * Main message processing method.
      *
      * Repeatedly reads messages from the TacoTransport until the end is
-     * reached (null is returned).  For each message, the action parameter
-     * is used to look for a matching method in this class.  On success,
-     * a "result" action is written.  If an exception is caught while handling
-     * a message, an "exception" action is written.
+     * reached (null is returned).  Each message is passed to the
+     * {@link #handle} method by a worker thread and the response written.
+     * Messages are handled one at a time, in the order in which they
+     * are read, but this method continues reading while a message is
+     * being handled so that requests can be cancelled.
+     *
+     * If a message has an "id" parameter, it is copied to the response.
+     * If it has a "timeout" parameter, giving a time in milliseconds,
+     * and has not been answered by that time after being read, then an
+     * "exception" action with "type" set to "timeout" is written in
+     * response and the worker thread is interrupted.  A "cancel" action,
+     * giving the "id" of an earlier message, has the same effect but with
+     * "type" set to "cancelled".  The "cancel" action itself does not
+     * receive a response.  A new worker thread is started for subsequent
+     * messages in case the interrupted handler does not stop promptly.
+     *
+     * If the message has a true "no_response" parameter, then no response
+     * is written.  Instead any exception message is stored and sent in the
+     * "deferred" list parameter of the next response.
+     *
+     * If the message has a true "trace" parameter, then the response
+     * includes a "trace" parameter giving the time in nanoseconds
+     * taken to decode the message ("decode"), waiting for the worker
+     * thread ("queue") and running the handler ("execute").  The time
+     * taken to encode the response cannot be included in the response
+     * itself, so is left for the client to measure as part of the
+     * transfer time.
+     *
+     * This method returns once the end is reached and all of the messages
+     * have been answered.
      *
      * @throws TacoException on error reading or writing a message
      */
     public void run() throws TacoException {
-        while (true) {
-            Map<String, Object> message = xp.read();
+        try {
+            while (writeError == null) {
+                Map<String, Object> message = xp.read();
 
-            if (message == null) {
-                break;
-            }
+                if (message == null) {
+                    break;
+                }
 
-            Map<String, Object> response;
+                if ("cancel".equals(message.get("action"))) {
+                    Request request;
 
-            try {
-                String action = (String) message.get("action");
-                Method m;
+                    synchronized (requestLock) {
+                        request = activeRequests.get(message.get("id"));
+                    }
+
+                    if (request != null) {
+                        abort(request, "cancelled", "request cancelled");
+                    }
 
-                // Check that the method is not one of the non-action methods
-                // in this class.  All Taco actions are underscore-separated
-                // words whereas the other methods in this class are not.
-                if (! action.contains("_")) {
-                    throw new TacoException("not an action: " + action);
+                    continue;
                 }
 
-                // Try to find a handler method for this action.
+                submit(new Request(message, xp.lastDecodeTime));
+            }
+        }
+        finally {
+            waitForRequests();
+        }
+
+        if (writeError != null) {
+            TacoException e = writeError;
+            writeError = null;
+            throw e;
+        }
+    }
+
+    /**
+     * Handle a message.
+     *
+     * The action parameter is used to look for a matching method in this
+     * class, which is invoked.
+     *
+     * @param message the message
+     * @return a "result" action, or an "exception" action if an exception
+     *     was caught
+     */
+    protected Map<String, Object> handle(Map<String, Object> message) {
+        try {
+            String action = (String) message.get("action");
+            Method m;
+
+            // Check that the method is not one of the non-action methods
+            // in this class.  All Taco actions are underscore-separated
+            // words whereas the other methods in this class are not.
+            if (! action.contains("_")) {
+                throw new TacoException("not an action: " + action);
+            }
+
+            // Try to find a handler method for this action.
+            m = handlers.get(action);
+
+            if (m == null) {
                 try {
                     m = this.getClass().getMethod(action, Map.class);
                 }
@@ -135,25 +407,360 @@ public class TacoServer implements TacoTransport.Filter {
                     throw new TacoException("unknown action: " + action);
                 }
 
-                // Finally invoke the action handler method.
-                response = new HashMapC()
-                        .putc("action", "result")
-                        .putc("result", m.invoke(this, message));
+                handlers.put(action, m);
+            }
+
+            // Finally invoke the action handler method.
+            return new HashMapC()
+                    .putc("action", "result")
+                    .putc("result", m.invoke(this, message));
+        }
+        catch (Throwable e) {
+            while (e instanceof InvocationTargetException) {
+                e = e.getCause();
+            }
+
+            return new HashMapC()
+                .putc("action", "exception")
+                .putc("message", "exception caught: "
+                        + ((e instanceof TacoException)
+                                ? e.getMessage()
+                                : e.toString()));
+        }
+    }
+
+    /**
+     * Queue a request for handling by the worker thread, and start its
+     * timer if it has a timeout.
+     */
+    private void submit(final Request request) {
+        synchronized (requestLock) {
+            outstandingRequests ++;
+
+            if (request.id != null) {
+                activeRequests.put(request.id, request);
+            }
+
+            if (worker == null) {
+                startWorker();
+            }
+        }
+
+        Object timeout = request.message.get("timeout");
+
+        if (timeout instanceof Number && ((Number) timeout).longValue() > 0) {
+            final long milliseconds = ((Number) timeout).longValue();
+
+            request.timer = getTimer().schedule(new Runnable() {
+                public void run() {
+                    abort(request, "timeout",
+                            "request timed out after " + milliseconds + " ms");
+                }
+            }, milliseconds, TimeUnit.MILLISECONDS);
+        }
+
+        requestQueue.add(request);
+    }
+
+    /**
+     * Answer a request with an exception and interrupt its handler,
+     * if it is running.
+     */
+    private void abort(Request request, String type, String errorMessage) {
+        if (! complete(request, new HashMapC()
+                .putc("action", "exception")
+                .putc("type", type)
+                .putc("message", errorMessage))) {
+            return;
+        }
+
+        synchronized (request) {
+            if (request.thread != null) {
+                request.thread.interrupt();
+
+                synchronized (requestLock) {
+                    if (worker == request.thread) {
+                        startWorker();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Answer a request, unless it has already been answered.
+     *
+     * @return true if this call answered the request
+     */
+    private boolean complete(Request request, Map<String, Object> response) {
+        if (! request.finished.compareAndSet(false, true)) {
+            return false;
+        }
+
+        if (request.timer != null) {
+            request.timer.cancel(false);
+        }
+
+        TacoMetrics metrics = this.metrics;
+        if (metrics != null) {
+            metrics.recordAction((String) request.message.get("action"),
+                    System.nanoTime() - request.startTime,
+                    "exception".equals(response.get("action")));
+        }
+
+        if (request.trace) {
+            response.put("trace", request.trace());
+        }
+
+        try {
+            respond(request, response);
+        }
+        finally {
+            synchronized (requestLock) {
+                if (request.id != null
+                        && activeRequests.get(request.id) == request) {
+                    activeRequests.remove(request.id);
+                }
+
+                outstandingRequests --;
+                requestLock.notifyAll();
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Write the response to a request, or store its exception message
+     * if no response is to be written.
+     */
+    private void respond(Request request, Map<String, Object> response) {
+        synchronized (writeLock) {
+            boolean exception = "exception".equals(response.get("action"));
+
+            if (request.noResponse) {
+                if (exception) {
+                    deferredErrors.add((String) response.get("message"));
+                }
+
+                return;
+            }
+
+            if (request.id != null) {
+                response.put("id", request.id);
+            }
+
+            if (! deferredErrors.isEmpty()) {
+                response.put("deferred", deferredErrors);
+                deferredErrors = new ArrayList<String>();
+            }
+
+            try {
+                xp.write(response);
+            }
+            catch (TacoException e) {
+                if (writeError == null) {
+                    writeError = e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait until all requests have been answered.
+     */
+    private void waitForRequests() {
+        synchronized (requestLock) {
+            while (outstandingRequests > 0) {
+                try {
+                    requestLock.wait();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
             }
-            catch (Throwable e) {
-                while (e instanceof InvocationTargetException) {
-                    e = e.getCause();
+        }
+    }
+
+    /**
+     * Start a new worker thread.  Must be called with the request
+     * lock held.
+     */
+    private void startWorker() {
+        worker = new Worker();
+        worker.start();
+    }
+
+    /**
+     * Get the timer used for request timeouts, creating it if necessary.
+     */
+    private synchronized ScheduledExecutorService getTimer() {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "Taco server timer");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        }
+
+        return timer;
+    }
+
+    /**
+     * Set the cache to be used for the results of class method calls.
+     *
+     * Only calls to methods which the cache reports to be cacheable,
+     * with arguments and results which are plain JSON, are cached.
+     *
+     * @param resultCache the cache, or null to disable caching
+     */
+    public void setResultCache(ResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    /**
+     * Get the cache used for the results of class method calls.
+     *
+     * @return the cache, or null if caching is disabled
+     */
+    public ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * Specify metrics to which to report the latency of each action,
+     * the size of the object cache, and (via the transport) each
+     * message read and written.
+     *
+     * @param metrics the metrics, or null to stop reporting
+     */
+    public void setMetrics(TacoMetrics metrics) {
+        this.metrics = metrics;
+
+        if (xp != null) {
+            xp.setMetrics(metrics);
+        }
+
+        if (metrics != null) {
+            metrics.recordObjects(objects.size());
+        }
+    }
+
+    /**
+     * Get the metrics to which actions are reported.
+     *
+     * @return the metrics, or null if not reporting
+     */
+    public TacoMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Read a preload manifest file and process it.
+     *
+     * @param filename the name of the manifest file
+     * @throws TacoException on error reading the file or if a listed
+     *     class or method can not be found
+     */
+    public void preload(String filename) throws TacoException {
+        try (BufferedReader manifest = new BufferedReader(
+                new InputStreamReader(new FileInputStream(filename),
+                        "UTF-8"))) {
+            preload(manifest);
+        }
+        catch (IOException e) {
+            throw new TacoException("preload error: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Load and resolve the classes and methods listed in a preload manifest.
+     *
+     * Each line of the manifest gives the name of a class, optionally
+     * followed by the names of public methods of that class, separated by
+     * whitespace.  Each class is loaded and initialized, and its
+     * constructors and the named methods are looked up and stored in the
+     * caches used when handling calls, along with their parameter types.
+     * The classes returned by the named methods are also initialized.
+     * This work is therefore done before the first message is read
+     * rather than while handling it.  Text following a "#" character is
+     * ignored, as are blank lines.
+     *
+     * The action handler methods are also looked up, and the message
+     * conversion code of the transport is exercised
+     * (see {@link TacoTransport#warmUp}).
+     *
+     * @param manifest reader for the manifest
+     * @throws TacoException on error reading the manifest or if a listed
+     *     class or method can not be found
+     */
+    public void preload(BufferedReader manifest) throws TacoException {
+        try {
+            String line;
+
+            while ((line = manifest.readLine()) != null) {
+                int comment = line.indexOf('#');
+
+                if (comment != -1) {
+                    line = line.substring(0, comment);
+                }
+
+                String[] words = line.trim().split("\\s+");
+
+                if (words[0].isEmpty()) {
+                    continue;
                 }
 
-                response = new HashMapC()
-                    .putc("action", "exception")
-                    .putc("message", "exception caught: "
-                            + ((e instanceof TacoException)
-                                    ? e.getMessage()
-                                    : e.toString()));
+                Class<?> cls = Class.forName(
+                        words[0], true, getClass().getClassLoader());
+                classConstructors.get(cls);
+
+                for (int i = 1; i < words.length; i ++) {
+                    Candidates methods = getMethods(cls, words[i]);
+
+                    if (methods.members.length == 0) {
+                        throw new TacoException("preload method not found: "
+                                + words[0] + " " + words[i]);
+                    }
+
+                    for (Executable m: methods.members) {
+                        initialize(((Method) m).getReturnType());
+                    }
+                }
+            }
+
+            // Find the action handlers.
+            for (Method m: getClass().getMethods()) {
+                Class<?>[] types = m.getParameterTypes();
+
+                if (m.getName().contains("_") && types.length == 1
+                        && types[0] == Map.class) {
+                    handlers.putIfAbsent(m.getName(), m);
+                }
             }
+        }
+        catch (IOException e) {
+            throw new TacoException("preload error: " + e.getMessage(), e);
+        }
+        catch (ClassNotFoundException e) {
+            throw new TacoException("preload class not found: "
+                    + e.getMessage(), e);
+        }
+
+        xp.warmUp();
+    }
 
-            xp.write(response);
+    /**
+     * Initialize a class used by a preloaded method, unless it is
+     * a primitive or array type.
+     */
+    private void initialize(Class<?> cls) throws ClassNotFoundException {
+        if (! cls.isPrimitive() && ! cls.isArray()) {
+            Class.forName(cls.getName(), true, cls.getClassLoader());
         }
     }
 
@@ -165,13 +772,25 @@ public class TacoServer implements TacoTransport.Filter {
         Class cls = Class.forName((String) message.get("class"));
         List<Object> args = (List<Object>) message.get("args");
         String name = (String) message.get("name");
+        List<Object> key = null;
+
+        if (resultCache != null && resultCache.isCacheable(cls, name)
+                && ResultCache.isPlain(args)) {
+            key = Arrays.asList(cls, name, args);
+            Object result = resultCache.get(key);
 
-        if (args == null) {
-            return cls.getMethod(name).invoke(null);
+            if (result != ResultCache.MISSING) {
+                return result;
+            }
         }
-        else {
-            return invokeMethod(cls, name, null, (Object[]) args.toArray());
+
+        Object result = invokeMethod(cls, name, null, toArray(args));
+
+        if (key != null && ResultCache.isPlain(result)) {
+            resultCache.put(key, result);
         }
+
+        return result;
     }
 
     /**
@@ -191,13 +810,58 @@ public class TacoServer implements TacoTransport.Filter {
         List<Object> args = (List<Object>) message.get("args");
         String name = (String) message.get("name");
 
-        if (args == null) {
-            return object.getClass().getMethod(name).invoke(object);
+        return invokeMethod(object.getClass(), name, object, toArray(args));
+    }
+
+    /**
+     * Handler for the "call_prepared" action.
+     *
+     * Invokes a call registered by the "prepare_call" action, identified
+     * by the "handle" parameter, with the given positional arguments.
+     * Any "context" parameter is ignored: clients repeat the context of
+     * the prepared call so that it can be seen without looking up the
+     * handle.
+     */
+    public Object call_prepared(Map<String, Object> message)
+            throws Exception {
+        Integer handle = (Integer) message.get("handle");
+        PreparedCall prepared = preparedCalls.get(handle);
+        List<Object> args = (List<Object>) message.get("args");
+
+        if (prepared == null) {
+            throw new TacoException("unknown prepared call: " + handle);
         }
-        else {
-            return invokeMethod(object.getClass(), name, object,
-                    (Object[]) args.toArray());
+
+        if (prepared.number != null) {
+            Object object = objects.get(prepared.number);
+
+            if (object == null) {
+                throw new TacoException("object not found: "
+                        + prepared.number);
+            }
+
+            return prepared.invoke(object, args);
+        }
+
+        List<Object> key = null;
+
+        if (prepared.cacheable && resultCache != null
+                && ResultCache.isPlain(args)) {
+            key = Arrays.asList(prepared.cls, prepared.name, args);
+            Object result = resultCache.get(key);
+
+            if (result != ResultCache.MISSING) {
+                return result;
+            }
+        }
+
+        Object result = prepared.invoke(null, args);
+
+        if (key != null && ResultCache.isPlain(result)) {
+            resultCache.put(key, result);
         }
+
+        return result;
     }
 
     /**
@@ -206,16 +870,15 @@ public class TacoServer implements TacoTransport.Filter {
     public Object construct_object(Map<String, Object> message)
             throws Exception {
         Class cls = Class.forName((String) message.get("class"));
-        List<Object> args = (List<Object>) message.get("args");
+        Object[] args = toArray((List<Object>) message.get("args"));
+        Candidates constructors = classConstructors.get(cls);
 
-        if (args == null) {
-            return cls.getConstructor().newInstance();
-        }
-        else {
-            // Try all the constructors to see if one accepts our signature.
-            for (Constructor c: cls.getConstructors()) {
+        // Try all the constructors to see if one accepts our signature.
+        for (int i = 0; i < constructors.members.length; i ++) {
+            if (constructors.accepts(i, args)) {
                 try {
-                    return c.newInstance((Object[]) args.toArray());
+                    return ((Constructor) constructors.members[i])
+                            .newInstance(args);
                 }
                 catch (IllegalArgumentException e) {
                     // Signature didn't match: ignore and try the next one.
@@ -232,6 +895,103 @@ public class TacoServer implements TacoTransport.Filter {
     public Object destroy_object(Map<String, Object> message)
             throws Exception {
         objects.remove((Integer) message.get("number"));
+        recordObjects();
+        return null;
+    }
+
+    /**
+     * Handler for the "destroy_objects" action.
+     *
+     * Removes all of the listed objects from the cache, holding its lock
+     * once for the whole list.  Numbers which are not in the cache are
+     * ignored.
+     */
+    public Object destroy_objects(Map<String, Object> message)
+            throws Exception {
+        List<Object> numbers = (List<Object>) message.get("numbers");
+
+        synchronized (objects) {
+            for (Object number: numbers) {
+                objects.remove(number);
+            }
+        }
+
+        recordObjects();
+        return null;
+    }
+
+    /**
+     * Handler for the "prepare_call" action.
+     *
+     * The "call" parameter describes a "call_class_method" or
+     * "call_method" action by its "action", "class" or "number",
+     * and "name" parameters.  The candidate methods are looked up once
+     * and stored, and a handle is returned for use with the
+     * "call_prepared" action until it is released by the
+     * "release_prepared" action.
+     */
+    public Object prepare_call(Map<String, Object> message)
+            throws Exception {
+        Map<String, Object> call = (Map<String, Object>) message.get("call");
+        String action = (String) call.get("action");
+        String name = (String) call.get("name");
+        PreparedCall prepared;
+
+        if ("call_class_method".equals(action)) {
+            Class cls = Class.forName((String) call.get("class"));
+            prepared = new PreparedCall(cls, null, name,
+                    resultCache != null && resultCache.isCacheable(cls, name));
+        }
+        else if ("call_method".equals(action)) {
+            Integer number = (Integer) call.get("number");
+            Object object = objects.get(number);
+
+            if (object == null) {
+                throw new TacoException("object not found: " + number);
+            }
+
+            prepared = new PreparedCall(object.getClass(), number, name,
+                    false);
+        }
+        else {
+            throw new TacoException("cannot prepare action: " + action);
+        }
+
+        synchronized (preparedCalls) {
+            preparedNum ++;
+            preparedCalls.put(preparedNum, prepared);
+            return preparedNum;
+        }
+    }
+
+    /**
+     * Handler for the "release_prepared" action.
+     *
+     * Removes the calls with the listed handles, which were registered
+     * by the "prepare_call" action.  Handles which are not known are
+     * ignored.
+     */
+    public Object release_prepared(Map<String, Object> message)
+            throws Exception {
+        List<Object> handles = (List<Object>) message.get("handles");
+
+        synchronized (preparedCalls) {
+            for (Object handle: handles) {
+                preparedCalls.remove(handle);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Handler for the "flush_errors" action.
+     *
+     * This action does nothing itself, but its response carries any
+     * deferred exception messages.
+     */
+    public Object flush_errors(Map<String, Object> message)
+            throws Exception {
         return null;
     }
 
@@ -242,7 +1002,7 @@ public class TacoServer implements TacoTransport.Filter {
             throws Exception {
         Object object = objects.get((Integer) message.get("number"));
         String name = (String) message.get("name");
-        return object.getClass().getField(name).get(object);
+        return getField(object.getClass(), name).get(object);
     }
 
     /**
@@ -252,7 +1012,7 @@ public class TacoServer implements TacoTransport.Filter {
             throws Exception {
         Class cls = Class.forName((String) message.get("class"));
         String name = (String) message.get("name");
-        return cls.getField(name).get(null);
+        return getField(cls, name).get(null);
     }
 
     /**
@@ -273,6 +1033,66 @@ public class TacoServer implements TacoTransport.Filter {
         return null;
     }
 
+    /**
+     * Handler for the "iterate_object" action.
+     *
+     * Returns an iterator over the object identified by the "number"
+     * parameter, which may be an <code>Iterator</code>, an
+     * <code>Iterable</code>, a stream or an array.  The iterator is
+     * returned as an object reference for use with the "next_items"
+     * action.
+     */
+    public Object iterate_object(Map<String, Object> message)
+            throws Exception {
+        Integer number = (Integer) message.get("number");
+        Object object = objects.get(number);
+
+        if (object instanceof Iterator) {
+            return object;
+        }
+        else if (object instanceof Iterable) {
+            return ((Iterable) object).iterator();
+        }
+        else if (object instanceof BaseStream) {
+            return ((BaseStream) object).iterator();
+        }
+        else if (object instanceof Object[]) {
+            return Arrays.asList((Object[]) object).iterator();
+        }
+        else if (object == null) {
+            throw new TacoException("object not found: " + number);
+        }
+
+        throw new TacoException("object is not iterable: " + number);
+    }
+
+    /**
+     * Handler for the "next_items" action.
+     *
+     * Returns a list of up to "count" items from the iterator identified
+     * by the "number" parameter.  A shorter list indicates that the
+     * iterator is exhausted.
+     */
+    public Object next_items(Map<String, Object> message)
+            throws Exception {
+        Integer number = (Integer) message.get("number");
+        int count = (Integer) message.get("count");
+        Object object = objects.get(number);
+
+        if (! (object instanceof Iterator)) {
+            throw new TacoException("iterator not found: " + number);
+        }
+
+        Iterator iterator = (Iterator) object;
+        List<Object> items = new ArrayList<Object>(count);
+
+        while (items.size() < count && iterator.hasNext()) {
+            items.add(iterator.next());
+        }
+
+        return items;
+    }
+
     /**
      * Handler for the "set_attribute" action.
      */
@@ -280,7 +1100,7 @@ public class TacoServer implements TacoTransport.Filter {
             throws Exception {
         Object object = objects.get((Integer) message.get("number"));
         String name = (String) message.get("name");
-        object.getClass().getField(name).set(object, message.get("value"));
+        getField(object.getClass(), name).set(object, message.get("value"));
         return null;
     }
 
@@ -291,7 +1111,7 @@ public class TacoServer implements TacoTransport.Filter {
             throws Exception {
         Class cls = Class.forName((String) message.get("class"));
         String name = (String) message.get("name");
-        cls.getField(name).set(null, message.get("value"));
+        getField(cls, name).set(null, message.get("value"));
         return null;
     }
 
@@ -314,8 +1134,16 @@ public class TacoServer implements TacoTransport.Filter {
      * special object is returned.
      */
     public Map<String, Object> objectToMap(Object value) throws TacoException {
-        int number = ++ objectNum;
+        Integer number = ++ objectNum;
         objects.put(number, value);
+        recordObjects();
+
+        TacoEvents.ObjectExport event = new TacoEvents.ObjectExport();
+        if (event.shouldCommit()) {
+            event.number = number;
+            event.className = value.getClass().getName();
+            event.commit();
+        }
         return new HashMapC().putc("_Taco_Object_", number);
     }
 
@@ -337,6 +1165,41 @@ public class TacoServer implements TacoTransport.Filter {
         }
     }
 
+    /**
+     * Fill in and commit a flight recorder event for the handling of
+     * a request.
+     */
+    private void commitDispatch(TacoEvents.Dispatch event, Request request,
+            Map<String, Object> response) {
+        Map<String, Object> message = request.message;
+        Object className = message.get("class");
+
+        if (className == null && message.get("number") != null) {
+            Object object = objects.get(message.get("number"));
+
+            if (object != null) {
+                className = object.getClass().getName();
+            }
+        }
+
+        event.action = (String) message.get("action");
+        event.className = (String) className;
+        event.method = (String) message.get("name");
+        event.outcome = request.finished.get()
+                ? "aborted" : (String) response.get("action");
+        event.commit();
+    }
+
+    /**
+     * Report the size of the object cache to the metrics, if any.
+     */
+    private void recordObjects() {
+        TacoMetrics metrics = this.metrics;
+        if (metrics != null) {
+            metrics.recordObjects(objects.size());
+        }
+    }
+
     /**
      * Invoke a static ("class") or instance method by name.
      *
@@ -351,11 +1214,13 @@ public class TacoServer implements TacoTransport.Filter {
      */
     private Object invokeMethod(Class cls, String name, Object object,
             Object[] args) throws Exception {
+        Candidates methods = getMethods(cls, name);
+
         // Try all the methods to see if one accepts our signature.
-        for (Method m: cls.getMethods()) {
-            if (m.getName().equals(name)) {
+        for (int i = 0; i < methods.members.length; i ++) {
+            if (methods.accepts(i, args)) {
                 try {
-                    return m.invoke(object, args);
+                    return ((Method) methods.members[i]).invoke(object, args);
                 }
                 catch (IllegalArgumentException e) {
                     // Signature didn't match: ignore and try the next one.
@@ -367,4 +1232,415 @@ public class TacoServer implements TacoTransport.Filter {
         // match.
         throw new TacoException("no matching method name/signature found");
     }
+
+    /**
+     * Find the public methods of a class with the given name,
+     * remembering them for subsequent use.
+     */
+    private static Candidates getMethods(Class<?> cls, String name) {
+        Map<String, Candidates> byName = classMethods.get(cls);
+        Candidates methods = byName.get(name);
+
+        if (methods == null) {
+            List<Method> named = new ArrayList<Method>();
+
+            for (Method m: cls.getMethods()) {
+                if (m.getName().equals(name)) {
+                    named.add(m);
+                }
+            }
+
+            methods = new Candidates(named.toArray(new Method[named.size()]));
+            byName.put(name, methods);
+        }
+
+        return methods;
+    }
+
+    /**
+     * Find a public field, remembering it for subsequent use.
+     *
+     * @throws NoSuchFieldException if there is no such field
+     */
+    private static Field getField(Class<?> cls, String name)
+            throws NoSuchFieldException {
+        Map<String, Field> fields = classFields.get(cls);
+        Field field = fields.get(name);
+
+        if (field == null) {
+            field = cls.getField(name);
+            fields.put(name, field);
+        }
+
+        return field;
+    }
+
+    /**
+     * Convert a list of arguments to an array, returning a shared empty
+     * array if there are none.
+     */
+    private static Object[] toArray(List<Object> args) {
+        if (args == null || args.isEmpty()) {
+            return NO_ARGS;
+        }
+
+        return args.toArray();
+    }
+
+    /**
+     * Determine whether a method or constructor can accept the given
+     * arguments.
+     *
+     * This follows the rules applied by <code>Method.invoke</code>: each
+     * argument must be null for a reference type, an instance of the
+     * parameter type, or a wrapper which can be unboxed and widened to a
+     * primitive parameter type.  Checking first avoids the cost of an
+     * <code>IllegalArgumentException</code> for each candidate which
+     * does not match.
+     */
+    static boolean isApplicable(Class<?>[] types, Object[] args) {
+        if (types.length != args.length) {
+            return false;
+        }
+
+        for (int i = 0; i < types.length; i ++) {
+            Class<?> type = types[i];
+            Object arg = args[i];
+
+            if (arg == null) {
+                if (type.isPrimitive()) {
+                    return false;
+                }
+            }
+            else if (! type.isPrimitive()) {
+                if (! type.isInstance(arg)) {
+                    return false;
+                }
+            }
+            else if (! isWidenable(arg.getClass(), type)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Determine whether a wrapper can be unboxed and widened to the
+     * given primitive type.
+     */
+    private static boolean isWidenable(Class<?> wrapper, Class<?> type) {
+        if (wrapper == Boolean.class) {
+            return type == boolean.class;
+        }
+        else if (wrapper == Character.class) {
+            return type == char.class || type == int.class
+                    || type == long.class || type == float.class
+                    || type == double.class;
+        }
+        else if (wrapper == Byte.class) {
+            return type != boolean.class && type != char.class;
+        }
+        else if (wrapper == Short.class) {
+            return type != boolean.class && type != char.class
+                    && type != byte.class;
+        }
+        else if (wrapper == Integer.class) {
+            return type == int.class || type == long.class
+                    || type == float.class || type == double.class;
+        }
+        else if (wrapper == Long.class) {
+            return type == long.class || type == float.class
+                    || type == double.class;
+        }
+        else if (wrapper == Float.class) {
+            return type == float.class || type == double.class;
+        }
+        else if (wrapper == Double.class) {
+            return type == double.class;
+        }
+
+        return false;
+    }
+
+    /**
+     * Methods or constructors which may be invoked by name, with
+     * their parameter types.
+     */
+    private static class Candidates {
+        /**
+         * The methods or constructors.
+         */
+        private final Executable[] members;
+
+        /**
+         * The parameter types of each member.
+         */
+        private final Class<?>[][] types;
+
+        /**
+         * Constructor.
+         */
+        private Candidates(Executable[] members) {
+            this.members = members;
+            this.types = new Class<?>[members.length][];
+
+            for (int i = 0; i < members.length; i ++) {
+                types[i] = members[i].getParameterTypes();
+            }
+        }
+
+        /**
+         * Determine whether the given member can accept the arguments.
+         */
+        private boolean accepts(int i, Object[] args) {
+            return isApplicable(types[i], args);
+        }
+    }
+
+    /**
+     * Call registered by the "prepare_call" action.
+     */
+    protected static class PreparedCall {
+        /**
+         * The class in which to find the method.
+         */
+        private final Class cls;
+
+        /**
+         * The number of the object for instance methods, or null for
+         * static methods.
+         */
+        private final Integer number;
+
+        /**
+         * The method name.
+         */
+        private final String name;
+
+        /**
+         * Public methods of the given name.
+         */
+        private final Candidates methods;
+
+        /**
+         * Whether results may be stored in the result cache.
+         */
+        private final boolean cacheable;
+
+        /**
+         * The index of the method which most recently accepted the
+         * arguments, or -1.
+         */
+        private volatile int lastMethod = -1;
+
+        /**
+         * Constructor.
+         */
+        private PreparedCall(Class cls, Integer number, String name,
+                boolean cacheable) throws TacoException {
+            List<Method> methods = new ArrayList<Method>();
+
+            for (Method m: cls.getMethods()) {
+                if (m.getName().equals(name)) {
+                    methods.add(m);
+                }
+            }
+
+            if (methods.isEmpty()) {
+                throw new TacoException("no method found: " + name);
+            }
+
+            this.cls = cls;
+            this.number = number;
+            this.name = name;
+            this.methods = new Candidates(
+                    methods.toArray(new Method[methods.size()]));
+            this.cacheable = cacheable;
+        }
+
+        /**
+         * Invoke the method, trying the one which matched last time first.
+         */
+        private Object invoke(Object object, List<Object> args)
+                throws Exception {
+            Object[] array = toArray(args);
+            int last = lastMethod;
+
+            if (last >= 0 && methods.accepts(last, array)) {
+                try {
+                    return ((Method) methods.members[last])
+                            .invoke(object, array);
+                }
+                catch (IllegalArgumentException e) {
+                    // Signature didn't match: try the others.
+                }
+            }
+
+            for (int i = 0; i < methods.members.length; i ++) {
+                if (i != last && methods.accepts(i, array)) {
+                    try {
+                        Object result = ((Method) methods.members[i])
+                                .invoke(object, array);
+                        lastMethod = i;
+                        return result;
+                    }
+                    catch (IllegalArgumentException e) {
+                        // Signature didn't match: ignore and try the next one.
+                    }
+                }
+            }
+
+            throw new TacoException("no matching method name/signature found");
+        }
+    }
+
+    /**
+     * Record of a message being handled.
+     */
+    private static class Request {
+        /**
+         * The message.
+         */
+        private final Map<String, Object> message;
+
+        /**
+         * The message identifier, or null if none was given.
+         */
+        private final Object id;
+
+        /**
+         * Whether the response is to be suppressed.
+         */
+        private final boolean noResponse;
+
+        /**
+         * Set once the request has been answered.
+         */
+        private final AtomicBoolean finished = new AtomicBoolean(false);
+
+        /**
+         * The thread running the handler, while it is running.
+         */
+        private Thread thread = null;
+
+        /**
+         * Timer for the request's timeout, if it has one.
+         */
+        private volatile ScheduledFuture<?> timer = null;
+
+        /**
+         * Time at which the request was read, from
+         * <code>System.nanoTime</code>.
+         */
+        private final long startTime = System.nanoTime();
+
+        /**
+         * Whether timings are to be included in the response.
+         */
+        private final boolean trace;
+
+        /**
+         * Time taken to decode the message, in nanoseconds.
+         */
+        private final long decodeTime;
+
+        /**
+         * Time at which the handler started, or
+         * <code>Long.MIN_VALUE</code> if it has not started.
+         */
+        private volatile long executeStart = Long.MIN_VALUE;
+
+        /**
+         * Constructor.
+         */
+        private Request(Map<String, Object> message, long decodeTime) {
+            this.message = message;
+            this.id = message.get("id");
+            this.noResponse = Boolean.TRUE.equals(message.get("no_response"));
+            this.trace = Boolean.TRUE.equals(message.get("trace"));
+            this.decodeTime = decodeTime;
+        }
+
+        /**
+         * Construct the "trace" parameter of the response, giving the
+         * time in nanoseconds spent decoding the request, waiting for
+         * the worker and executing the handler.
+         */
+        private Map<String, Object> trace() {
+            long now = System.nanoTime();
+            long started = executeStart;
+
+            if (started == Long.MIN_VALUE) {
+                started = now;
+            }
+
+            return new HashMapC<String, Object>()
+                    .putc("decode", decodeTime)
+                    .putc("queue", started - startTime)
+                    .putc("execute", now - started);
+        }
+    }
+
+    /**
+     * Worker thread which handles queued requests until it is replaced.
+     */
+    private class Worker extends Thread {
+        /**
+         * Constructor.
+         */
+        private Worker() {
+            super("Taco server worker");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                synchronized (requestLock) {
+                    if (worker != this) {
+                        return;
+                    }
+                }
+
+                Request request;
+
+                try {
+                    request = requestQueue.take();
+                }
+                catch (InterruptedException e) {
+                    continue;
+                }
+
+                synchronized (request) {
+                    if (request.finished.get()) {
+                        continue;
+                    }
+
+                    request.thread = this;
+                }
+
+                TacoEvents.Dispatch event = new TacoEvents.Dispatch();
+                event.begin();
+                request.executeStart = System.nanoTime();
+
+                Map<String, Object> response = handle(request.message);
+
+                event.end();
+
+                synchronized (request) {
+                    request.thread = null;
+
+                    // Clear any interruption intended for this request.
+                    Thread.interrupted();
+                }
+
+                if (event.shouldCommit()) {
+                    commitDispatch(event, request, response);
+                }
+
+                complete(request, response);
+            }
+        }
+    }
 }
@@ -0,0 +1,47 @@
+/*
+ * Taco Java session lost exception class.
+ * Copyright (C) 2014-2015 Graham Bell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.grahambell.taco;
+
+/**
+ * Exception thrown when communication with the Taco server has been
+ * lost, for example because the server process has exited.
+ *
+ * Once this exception has been thrown, all subsequent interactions
+ * using the same client will fail.
+ */
+public class TacoSessionLostException extends TacoException {
+    /**
+     * Constructor.
+     *
+     * @param message the error message
+     */
+    public TacoSessionLostException(String message) {
+        super(message);
+    }
+
+    /**
+     * Constructor with cause.
+     *
+     * @param message the error message
+     * @param cause the cause of the exception
+     */
+    public TacoSessionLostException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Taco Java spare server class.
+ * Copyright (C) 2014-2015 Graham Bell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.grahambell.taco;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Set of pre-started Taco clients, used to replace failed servers
+ * without waiting for a new server to start.
+ *
+ * A number of servers are launched in the background, and each is
+ * sent a request to check that it has started before it is
+ * considered ready.  Whenever a client is taken, another server is
+ * launched to replace it.
+ */
+public class TacoSpares {
+    /**
+     * Language or script path used to launch servers.
+     */
+    private final String langOrScript;
+
+    /**
+     * Whether {@link #langOrScript} is a script path.
+     */
+    private final boolean byScriptPath;
+
+    /**
+     * Spare clients, in order of launch.
+     */
+    private final BlockingQueue<CompletableFuture<Taco>> spares;
+
+    /**
+     * Executor used to launch servers.
+     */
+    private final ExecutorService launcher;
+
+    /**
+     * Whether this set has been closed.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Construct set of spare clients for the given language.
+     *
+     * @param lang name of language for which to launch Taco server scripts
+     * @param count the number of spare servers to keep
+     */
+    public TacoSpares(String lang, int count) {
+        this(lang, false, count);
+    }
+
+    /**
+     * Construct set of spare clients given either the language or
+     * script path.
+     *
+     * @param langOrScript language (for automatic script name determination)
+     *     or script (with path if not in the executable search path)
+     * @param byScriptPath true if a script path is being provided
+     * @param count the number of spare servers to keep
+     */
+    public TacoSpares(String langOrScript, boolean byScriptPath, int count) {
+        this.langOrScript = langOrScript;
+        this.byScriptPath = byScriptPath;
+
+        spares = new LinkedBlockingQueue<CompletableFuture<Taco>>();
+        launcher = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "Taco spare launcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        for (int i = 0; i < count; i ++) {
+            spares.add(launch());
+        }
+    }
+
+    /**
+     * Create a client for a new spare server.
+     *
+     * Subclasses may override this method to configure the clients.
+     *
+     * @return a new Taco client
+     * @throws TacoException on error starting the server
+     */
+    protected Taco createClient() throws TacoException {
+        return new Taco(langOrScript, byScriptPath);
+    }
+
+    /**
+     * Take a spare client.
+     *
+     * The oldest spare is returned, waiting for it to become ready if
+     * necessary, and a replacement is launched.  Spares which failed to
+     * start, or whose server has exited, are discarded.  If there are no
+     * usable spares, a new client is created directly.
+     *
+     * @return a client whose server has started
+     * @throws TacoException on error starting a server when there
+     *     are no usable spares
+     */
+    public Taco take() throws TacoException {
+        CompletableFuture<Taco> future;
+
+        for (int i = spares.size(); i > 0
+                && (future = spares.poll()) != null; i --) {
+            if (! closed) {
+                spares.add(launch());
+            }
+
+            Taco taco;
+
+            try {
+                taco = Taco.getResult(future);
+            }
+            catch (TacoException e) {
+                // This spare failed to start: try the next.
+                continue;
+            }
+
+            if (taco.isAlive()) {
+                return taco;
+            }
+
+            taco.close();
+        }
+
+        Taco taco = createClient();
+
+        try {
+            taco.handshake();
+        }
+        catch (TacoException e) {
+            taco.close();
+            throw e;
+        }
+
+        return taco;
+    }
+
+    /**
+     * Get the number of spare clients which are ready for use.
+     *
+     * @return the number of ready spares
+     */
+    public int getReady() {
+        int ready = 0;
+
+        for (CompletableFuture<Taco> future: spares) {
+            if (future.isDone() && ! future.isCompletedExceptionally()) {
+                ready ++;
+            }
+        }
+
+        return ready;
+    }
+
+    /**
+     * Stop launching servers and terminate all spare servers.
+     */
+    public void close() {
+        closed = true;
+        launcher.shutdown();
+
+        CompletableFuture<Taco> future;
+
+        while ((future = spares.poll()) != null) {
+            future.thenAccept(taco -> taco.close());
+        }
+    }
+
+    /**
+     * Launch a server in the background.
+     */
+    private CompletableFuture<Taco> launch() {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                Taco taco = createClient();
+
+                try {
+                    if (closed) {
+                        throw new TacoSessionLostException("spares closed");
+                    }
+
+                    taco.handshake();
+                }
+                catch (TacoException e) {
+                    taco.close();
+                    throw e;
+                }
+
+                return taco;
+            }
+            catch (TacoException e) {
+                throw new CompletionException(e);
+            }
+        }, launcher);
+    }
+}
@@ -26,12 +26,18 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
+import java.util.AbstractList;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -47,6 +53,55 @@ import org.json.JSONException;
  * passes them over the specified streams.
  */
 public class TacoTransport {
+    /**
+     * Size of the buffer used when reading messages.
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Capacity above which the message text builder is not kept for
+     * reuse, so that one large message does not hold on to memory.
+     */
+    private static final int MAX_RETAINED_CAPACITY = 65536;
+
+    /**
+     * Keys used by the Taco protocol, which are always interned.
+     */
+    private static final Map<String, String> PROTOCOL_KEYS =
+            new HashMap<String, String>();
+
+    static {
+        for (String key: new String[] {
+                "action", "id", "result", "args", "kwargs", "name", "class",
+                "number", "numbers", "context", "value", "message", "module",
+                "count", "timeout", "no_response", "trace", "call", "handle",
+                "type", "deferred", "decode", "queue", "execute",
+                "_Taco_Object_"}) {
+            PROTOCOL_KEYS.put(key, key);
+        }
+    }
+
+    /**
+     * Maximum number of other keys interned by each transport.
+     */
+    private static final int MAX_INTERNED_KEYS = 1024;
+
+    /**
+     * Maximum length of other keys to be interned.
+     */
+    private static final int MAX_INTERNED_KEY_LENGTH = 64;
+
+    /**
+     * Text of the key which marks an object reference.
+     */
+    private static final String OBJECT_KEY_TEXT = "\"_Taco_Object_\"";
+
+    /**
+     * Placeholder for a null value which has been converted by
+     * a lazily decoded list.
+     */
+    private static final Object CONVERTED_NULL = new Object();
+
     /**
      * Reader for the input stream.
      */
@@ -62,6 +117,48 @@ public class TacoTransport {
      */
     protected Filter filter;
 
+    /**
+     * Metrics to which to report messages read and written, if any.
+     */
+    protected volatile TacoMetrics metrics = null;
+
+    /**
+     * Whether to convert the values in messages read only when they
+     * are accessed.
+     */
+    protected volatile boolean lazyDecoding = false;
+
+    /**
+     * Time taken to decode the most recent message read, in nanoseconds.
+     */
+    volatile long lastDecodeTime = 0;
+
+    /**
+     * Characters read from the input stream but not yet processed,
+     * from {@link #bufferPosition} to {@link #bufferLimit}.
+     */
+    private char[] buffer = null;
+    private int bufferPosition = 0;
+    private int bufferLimit = 0;
+
+    /**
+     * Whether the last line read ended with a carriage return, in which
+     * case a line feed immediately following it is skipped.
+     */
+    private boolean skipLineFeed = false;
+
+    /**
+     * Builder for message text, reused for each message read.
+     */
+    private StringBuilder textBuilder = new StringBuilder();
+
+    /**
+     * Other keys seen in decoded objects, interned so that repeated
+     * keys in lists of similar objects share one <code>String</code>.
+     */
+    private final Map<String, String> internedKeys =
+            new ConcurrentHashMap<String, String>();
+
     /**
      * Construct new TacoTransport object.
      *
@@ -94,6 +191,51 @@ public class TacoTransport {
         this.filter = filter;
     }
 
+    /**
+     * Specify whether to convert the values in messages lazily.
+     *
+     * When enabled, each message read is parsed as usual but its
+     * contents are returned as <code>Map</code> and <code>List</code>
+     * views of the parsed JSON.  Nested objects and arrays are only
+     * converted, and the filter's <code>mapToObject</code> method only
+     * applied, when they are first accessed.  This saves work when
+     * only part of a large result is used.  Any message containing
+     * an object reference is converted in full when read, so that
+     * the filter sees every reference.
+     *
+     * The views may be read from any thread, and can be modified,
+     * in which case they are first converted in full.  Since
+     * conversion is deferred, an error applying the filter is
+     * reported by an <code>IllegalStateException</code> from the
+     * method accessing the value, rather than by {@link #read}.
+     *
+     * This setting has no effect on transports which do not parse
+     * JSON, such as <code>LoopbackTransport</code>.
+     *
+     * @param enable true to decode lazily
+     */
+    public void setLazyDecoding(boolean enable) {
+        this.lazyDecoding = enable;
+    }
+
+    /**
+     * Specify metrics to which to report each message read or written.
+     *
+     * @param metrics the metrics, or null to stop reporting
+     */
+    public void setMetrics(TacoMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Release any resources held by this transport.
+     *
+     * This implementation does nothing, since the streams belong to
+     * whoever supplied them.
+     */
+    public void close() {
+    }
+
     /**
      * Read one message from the input stream.
      *
@@ -101,31 +243,201 @@ public class TacoTransport {
      * @throws TacoException on error reading or parsing the message
      */
     public Map<String, Object> read() throws TacoException {
-        StringBuilder text = new StringBuilder();
+        String text = readText();
+
+        if (text == null) {
+            return null;
+        }
+
+        return decode(text);
+    }
 
-        while (true) {
+    /**
+     * Write a message to the output stream.
+     *
+     * @param message the message to be written
+     * @throws TacoException on error converting the message to JSON or
+     *     writing it to the output stream
+     */
+    public void write(Map<String, Object> message) throws TacoException {
+        if (metrics == null && ! new TacoEvents.MessageWrite().isEnabled()) {
+            // Write directly to the stream without building a string.
             try {
-                String line = in.readLine();
+                mapToJson(message).write(out);
+                out.write("\n// END\n");
+                out.flush();
+            }
+            catch (JSONException e) {
+                throw new TacoException(
+                        "json write error: " + e.getMessage(), e);
+            }
+            catch (IOException e) {
+                throw new TacoException(
+                        "i/o write error: " + e.getMessage(), e);
+            }
+        }
+        else {
+            writeText(encode(message));
+        }
+    }
+
+    /**
+     * Read the text of one message from the input stream.
+     *
+     * Input is read in blocks into a buffer which is kept between calls,
+     * along with the builder for the message text, so that reading a
+     * message does not allocate anything other than its text.  The
+     * reader should therefore not be used by anything else once
+     * messages have been read.
+     *
+     * As with <code>BufferedReader.readLine</code>, a line may be
+     * terminated by a line feed, a carriage return, or a carriage
+     * return followed by a line feed.
+     *
+     * @return the message text, or null at the end of the stream
+     * @throws TacoException on error reading the message
+     */
+    protected String readText() throws TacoException {
+        if (buffer == null) {
+            buffer = new char[BUFFER_SIZE];
+        }
+
+        StringBuilder text = textBuilder;
+        text.setLength(0);
+        int lineStart = 0;
+
+        try {
+            while (true) {
+                if (bufferPosition == bufferLimit) {
+                    int n = in.read(buffer, 0, buffer.length);
+
+                    if (n < 0) {
+                        if (isEndMarker(text, lineStart)) {
+                            text.setLength(lineStart);
+                        }
+                        else if (text.length() > lineStart) {
+                            text.append('\n');
+                        }
+
+                        break;
+                    }
+
+                    bufferPosition = 0;
+                    bufferLimit = n;
+                }
 
-                if (line == null || line.startsWith("// END")) {
+                if (skipLineFeed) {
+                    skipLineFeed = false;
+
+                    if (buffer[bufferPosition] == '\n') {
+                        bufferPosition ++;
+                        continue;
+                    }
+                }
+
+                // Copy up to the end of the line, or of the buffer.
+                int end = bufferPosition;
+
+                while (end < bufferLimit && buffer[end] != '\n'
+                        && buffer[end] != '\r') {
+                    end ++;
+                }
+
+                text.append(buffer, bufferPosition, end - bufferPosition);
+
+                if (end == bufferLimit) {
+                    bufferPosition = end;
+                    continue;
+                }
+
+                skipLineFeed = buffer[end] == '\r';
+                bufferPosition = end + 1;
+
+                if (isEndMarker(text, lineStart)) {
+                    text.setLength(lineStart);
                     break;
                 }
 
-                text.append(line);
                 text.append('\n');
+                lineStart = text.length();
             }
-            catch (IOException e) {
-                throw new TacoException("read error: " + e.getMessage(), e);
-            }
+        }
+        catch (IOException e) {
+            throw new TacoException("read error: " + e.getMessage(), e);
         }
 
         if (text.length() == 0) {
             return null;
         }
 
+        String result = text.toString();
+
+        if (text.capacity() > MAX_RETAINED_CAPACITY) {
+            textBuilder = new StringBuilder();
+        }
+
+        return result;
+    }
+
+    /**
+     * Determine whether the line starting at the given position is
+     * the end-of-message marker.
+     */
+    private static boolean isEndMarker(StringBuilder text, int lineStart) {
+        String marker = "// END";
+
+        if (text.length() - lineStart < marker.length()) {
+            return false;
+        }
+
+        for (int i = 0; i < marker.length(); i ++) {
+            if (text.charAt(lineStart + i) != marker.charAt(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Write the text of one message to the output stream, followed
+     * by the end-of-message marker.
+     *
+     * @param text the message text
+     * @throws TacoException on error writing to the output stream
+     */
+    protected void writeText(String text) throws TacoException {
         try {
-            JSONObject json = new JSONObject(text.toString());
-            return jsonToMap(json);
+            out.write(text);
+            out.write("\n// END\n");
+            out.flush();
+        }
+        catch (IOException e) {
+            throw new TacoException("i/o write error: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Parse the text of a message.
+     *
+     * @param text the message text
+     * @return the message as a <code>Map</code> object
+     * @throws TacoException on error parsing the message
+     */
+    protected Map<String, Object> decode(String text) throws TacoException {
+        try {
+            TacoEvents.MessageRead event = new TacoEvents.MessageRead();
+            event.begin();
+            long start = System.nanoTime();
+
+            JSONObject json = new JSONObject(text);
+            Map<String, Object> message =
+                    (lazyDecoding && text.indexOf(OBJECT_KEY_TEXT) < 0)
+                    ? new LazyMap(json)
+                    : jsonToMap(json);
+
+            recordRead(event, message, text.length(), start);
+            return message;
         }
         catch (JSONException e) {
             throw new TacoException("read error: " + e.getMessage(), e);
@@ -133,24 +445,106 @@ public class TacoTransport {
     }
 
     /**
-     * Write a message to the output stream.
+     * Convert a message to JSON text.
      *
-     * @param message the message to be written
-     * @throws TacoException on error converting the message to JSON or
-     *     writing it to the output stream
+     * @param message the message
+     * @return the message text
+     * @throws TacoException on error converting the message to JSON
      */
-    public void write(Map<String, Object> message) throws TacoException {
+    protected String encode(Map<String, Object> message)
+            throws TacoException {
         try {
-            JSONObject json = mapToJson(message);
-            json.write(out);
-            out.write("\n// END\n");
-            out.flush();
+            TacoEvents.MessageWrite event = new TacoEvents.MessageWrite();
+            event.begin();
+            long start = System.nanoTime();
+
+            String text = mapToJson(message).toString();
+
+            recordWrite(event, message, text.length(), start);
+            return text;
         }
         catch (JSONException e) {
             throw new TacoException("json write error: " + e.getMessage(), e);
         }
-        catch (IOException e) {
-            throw new TacoException("i/o write error: " + e.getMessage(), e);
+    }
+
+    /**
+     * Report a message read to the metrics, if any, and commit
+     * its flight recorder event.  The decoding time is also stored
+     * in {@link #lastDecodeTime}.
+     *
+     * @param event the event, begun before decoding
+     * @param message the decoded message
+     * @param size the length of the message text
+     * @param start the time at which decoding started
+     */
+    void recordRead(TacoEvents.MessageRead event, Map<String, Object> message,
+            int size, long start) {
+        long elapsed = System.nanoTime() - start;
+        lastDecodeTime = elapsed;
+
+        TacoMetrics metrics = this.metrics;
+        if (metrics != null) {
+            metrics.recordRead(size, elapsed);
+        }
+
+        if (event.shouldCommit()) {
+            event.action = String.valueOf(message.get("action"));
+            event.characters = size;
+            event.commit();
+        }
+    }
+
+    /**
+     * Report a message written to the metrics, if any, and commit
+     * its flight recorder event.
+     *
+     * @param event the event, begun before encoding
+     * @param message the message
+     * @param size the length of the message text
+     * @param start the time at which encoding started
+     */
+    void recordWrite(TacoEvents.MessageWrite event,
+            Map<String, Object> message, int size, long start) {
+        TacoMetrics metrics = this.metrics;
+        if (metrics != null) {
+            metrics.recordWrite(size, System.nanoTime() - start);
+        }
+
+        if (event.shouldCommit()) {
+            event.action = String.valueOf(message.get("action"));
+            event.characters = size;
+            event.commit();
+        }
+    }
+
+    /**
+     * Exercise the message conversion code without performing any I/O.
+     *
+     * A representative message is converted to JSON, serialized,
+     * parsed and converted back to a <code>Map</code>.  This loads
+     * and initializes the classes used on the message path so that
+     * this cost is not paid by the first real message.
+     *
+     * @throws TacoException on error in conversion
+     */
+    public void warmUp() throws TacoException {
+        Map<String, Object> message = new HashMapC<String, Object>()
+                .putc("action", "call_class_method")
+                .putc("class", "java.lang.String")
+                .putc("name", "valueOf")
+                .putc("args", Arrays.asList(
+                        "text", 1, 1.5, true, null,
+                        new HashMapC<String, Object>().putc("key", "value")))
+                .putc("kwargs", null)
+                .putc("context", "scalar");
+
+        try {
+            String text = mapToJson(message).toString();
+            jsonToMap(new JSONObject(text));
+        }
+        catch (JSONException e) {
+            throw new TacoException("warm up error: " + e.getMessage(), e);
         }
     }
 
@@ -158,7 +552,8 @@ public class TacoTransport {
      * Convert JSON object to Java Map.
      *
      * Each entry in the object is converted using the {@link #jsonToObject}
-     * method.
+     * method.  Objects with few entries are stored in a compact
+     * array-based map, and keys are interned.
      *
      * @param json the JSON object
      * @return Java Map representation of the object
@@ -166,16 +561,45 @@ public class TacoTransport {
      */
     public Map<String, Object> jsonToMap(JSONObject json)
             throws TacoException {
-        Map map = new HashMap<String, Object>();
+        int length = json.length();
+        Map<String, Object> map = (length <= CompactMap.MAX_COMPACT_SIZE)
+                ? new CompactMap(length)
+                : new HashMap<String, Object>();
 
         for (Iterator<String> i = json.keys(); i.hasNext(); ) {
             String key = i.next();
-            map.put(key, jsonToObject(json.get(key)));
+            map.put(internKey(key), jsonToObject(json.get(key)));
         }
 
         return map;
     }
 
+    /**
+     * Find the shared instance of a key of a decoded object.
+     *
+     * Protocol keys are mapped to the constants used in the Taco
+     * classes, which allows them to be matched by identity.  Other
+     * keys are interned up to a limit, so that a large list of similar
+     * objects does not hold a copy of each key for every object.
+     *
+     * @param key the key as parsed
+     * @return the shared instance of the key, or the given key
+     *     if it is not interned
+     */
+    String internKey(String key) {
+        String interned = PROTOCOL_KEYS.get(key);
+
+        if (interned == null && key.length() <= MAX_INTERNED_KEY_LENGTH) {
+            interned = internedKeys.get(key);
+
+            if (interned == null && internedKeys.size() < MAX_INTERNED_KEYS) {
+                interned = internedKeys.putIfAbsent(key, key);
+            }
+        }
+
+        return (interned == null) ? key : interned;
+    }
+
     /**
      * Convert JSON array to Java List.
      *
@@ -238,6 +662,46 @@ public class TacoTransport {
         }
     }
 
+    /**
+     * Convert an individual JSON entry to a Java Object, leaving
+     * JSON objects and arrays to be converted when accessed.
+     *
+     * @param value an object obtained by parsing part of a JSON message
+     * @return a Java representation of the value
+     * @throws TacoException on error in conversion
+     */
+    private Object lazyObject(Object value) throws TacoException {
+        if (value instanceof JSONObject) {
+            Map<String, Object> map = new LazyMap((JSONObject) value);
+
+            if (filter == null) {
+                return map;
+            }
+            else {
+                return filter.mapToObject(map);
+            }
+        }
+        else if (value instanceof JSONArray) {
+            return new LazyList((JSONArray) value);
+        }
+        else {
+            return jsonToObject(value);
+        }
+    }
+
+    /**
+     * Convert a value accessed through a lazily decoded view.
+     */
+    private Object convertLazily(Object value) {
+        try {
+            return lazyObject(value);
+        }
+        catch (TacoException e) {
+            throw new IllegalStateException(
+                    "decode error: " + e.getMessage(), e);
+        }
+    }
+
     /**
      * Convert a Java Map to a JSON object.
      *
@@ -322,6 +786,194 @@ public class TacoTransport {
         }
     }
 
+    /**
+     * Map view of a JSON object whose entries are converted when
+     * first accessed.
+     *
+     * Lookups of individual keys only convert the requested value.
+     * Any other operation, such as iteration or modification, first
+     * converts all remaining entries, after which the JSON object
+     * is no longer used.
+     */
+    private class LazyMap extends AbstractMap<String, Object> {
+        /**
+         * The JSON object, or null once all entries are converted.
+         */
+        private JSONObject json;
+
+        /**
+         * Converted entries.
+         */
+        private final Map<String, Object> map;
+
+        private LazyMap(JSONObject json) {
+            int length = json.length();
+
+            this.json = json;
+            this.map = (length <= CompactMap.MAX_COMPACT_SIZE)
+                    ? new CompactMap(length)
+                    : new HashMap<String, Object>();
+        }
+
+        @Override
+        public synchronized int size() {
+            return (json == null) ? map.size() : json.length();
+        }
+
+        @Override
+        public synchronized boolean containsKey(Object key) {
+            if (json == null) {
+                return map.containsKey(key);
+            }
+
+            return (key instanceof String) && json.has((String) key);
+        }
+
+        @Override
+        public synchronized Object get(Object key) {
+            if (json == null || map.containsKey(key)) {
+                return map.get(key);
+            }
+
+            if (! (key instanceof String) || ! json.has((String) key)) {
+                return null;
+            }
+
+            Object value = convertLazily(json.get((String) key));
+            map.put(internKey((String) key), value);
+            return value;
+        }
+
+        @Override
+        public synchronized Object put(String key, Object value) {
+            return materialize().put(key, value);
+        }
+
+        @Override
+        public synchronized Object remove(Object key) {
+            return materialize().remove(key);
+        }
+
+        @Override
+        public synchronized void clear() {
+            materialize().clear();
+        }
+
+        @Override
+        public synchronized Set<Map.Entry<String, Object>> entrySet() {
+            return materialize().entrySet();
+        }
+
+        /**
+         * Convert all remaining entries.
+         */
+        private Map<String, Object> materialize() {
+            if (json != null) {
+                for (Iterator<String> i = json.keys(); i.hasNext(); ) {
+                    String key = internKey(i.next());
+
+                    if (! map.containsKey(key)) {
+                        map.put(key, convertLazily(json.get(key)));
+                    }
+                }
+
+                json = null;
+            }
+
+            return map;
+        }
+    }
+
+    /**
+     * List view of a JSON array whose elements are converted when
+     * first accessed.
+     *
+     * Modifying the list first converts all remaining elements into
+     * an <code>ArrayList</code>, after which the JSON array is no
+     * longer used.
+     */
+    private class LazyList extends AbstractList<Object>
+            implements RandomAccess {
+        /**
+         * The JSON array, or null once all elements are converted.
+         */
+        private JSONArray json;
+
+        /**
+         * Converted elements, null where not yet converted.
+         */
+        private Object[] values;
+
+        /**
+         * List of all elements, once converted.
+         */
+        private List<Object> list = null;
+
+        private LazyList(JSONArray json) {
+            this.json = json;
+            this.values = new Object[json.length()];
+        }
+
+        @Override
+        public synchronized int size() {
+            return (list == null) ? values.length : list.size();
+        }
+
+        @Override
+        public synchronized Object get(int index) {
+            if (list != null) {
+                return list.get(index);
+            }
+
+            Object value = values[index];
+
+            if (value == null) {
+                value = convertLazily(json.get(index));
+                values[index] = (value == null) ? CONVERTED_NULL : value;
+                return value;
+            }
+
+            return (value == CONVERTED_NULL) ? null : value;
+        }
+
+        @Override
+        public synchronized Object set(int index, Object value) {
+            return materialize().set(index, value);
+        }
+
+        @Override
+        public synchronized void add(int index, Object value) {
+            materialize().add(index, value);
+            modCount ++;
+        }
+
+        @Override
+        public synchronized Object remove(int index) {
+            Object previous = materialize().remove(index);
+            modCount ++;
+            return previous;
+        }
+
+        /**
+         * Convert all remaining elements.
+         */
+        private List<Object> materialize() {
+            if (list == null) {
+                List<Object> converted = new ArrayList<Object>(values.length);
+
+                for (int i = 0; i < values.length; i ++) {
+                    converted.add(get(i));
+                }
+
+                list = converted;
+                json = null;
+                values = null;
+            }
+
+            return list;
+        }
+    }
+
     /**
      * Interface for object filtering methods.
      *
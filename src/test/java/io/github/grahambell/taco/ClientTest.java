@@ -18,20 +18,63 @@
 
 package io.github.grahambell.taco;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
 
 import org.junit.Test;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import static io.github.grahambell.taco.JsonMatcher.matchesJson;
 
 public class ClientTest extends Taco {
+    public interface Inventory {
+        long count(String item) throws TacoException;
+
+        @ObjectProxy.Remote(name = "fetch_list", context = Context.SCALAR)
+        List<Object> fetch() throws TacoException;
+
+        Inventory child() throws TacoException;
+
+        void reset() throws TacoException;
+    }
+
+    public interface Shelves {
+        String[] names() throws TacoException;
+
+        int[] counts() throws TacoException;
+
+        Inventory[] sections() throws TacoException;
+
+        Set<Object> tags() throws TacoException;
+    }
+
+    public interface SortedShelves {
+        SortedSet<Object> names() throws TacoException;
+    }
+
     public ClientTest() {
         super((TacoTransport) null);
         xp = new DummyTransport(this);
@@ -49,6 +92,7 @@ public class ClientTest extends Taco {
 
         assertThat(xp.getMessage(), matchesJson(new JSONObject()
                 .put("action", "call_class_method")
+                .put("id", 1)
                 .put("class", "SomeClass")
                 .put("name", "someMethod")
                 .put("args", JSONObject.NULL)
@@ -60,6 +104,7 @@ public class ClientTest extends Taco {
 
         assertThat(xp.getMessage(), matchesJson(new JSONObject()
                 .put("action", "call_class_method")
+                .put("id", 2)
                 .put("class", "SomeOtherClass")
                 .put("name", "someOtherMethod")
                 .put("args", JSONObject.NULL)
@@ -71,6 +116,7 @@ public class ClientTest extends Taco {
 
         assertThat(xp.getMessage(), matchesJson(new JSONObject()
                 .put("action", "call_function")
+                .put("id", 3)
                 .put("name", "someFunction")
                 .put("args", JSONObject.NULL)
                 .put("kwargs", JSONObject.NULL)
@@ -81,6 +127,7 @@ public class ClientTest extends Taco {
 
         assertThat(xp.getMessage(), matchesJson(new JSONObject()
                 .put("action", "call_function")
+                .put("id", 4)
                 .put("name", "someFunction")
                 .put("args", JSONObject.NULL)
                 .put("kwargs", JSONObject.NULL)
@@ -91,6 +138,7 @@ public class ClientTest extends Taco {
 
         assertThat(xp.getMessage(), matchesJson(new JSONObject()
                 .put("action", "call_function")
+                .put("id", 5)
                 .put("name", "someFunction")
                 .put("args", JSONObject.NULL)
                 .put("kwargs", JSONObject.NULL)
@@ -101,6 +149,7 @@ public class ClientTest extends Taco {
 
         assertThat(xp.getMessage(), matchesJson(new JSONObject()
                 .put("action", "call_function")
+                .put("id", 6)
                 .put("name", "someFunction")
                 .put("args", JSONObject.NULL)
                 .put("kwargs", JSONObject.NULL)
@@ -111,6 +160,7 @@ public class ClientTest extends Taco {
 
         assertThat(xp.getMessage(), matchesJson(new JSONObject()
                 .put("action", "call_function")
+                .put("id", 7)
                 .put("name", "someFunction")
                 .put("args", JSONObject.NULL)
                 .put("kwargs", JSONObject.NULL)
@@ -121,6 +171,7 @@ public class ClientTest extends Taco {
 
         assertThat(xp.getMessage(), matchesJson(new JSONObject()
                 .put("action", "call_function")
+                .put("id", 8)
                 .put("name", "someOtherFunction")
                 .put("args", JSONObject.NULL)
                 .put("kwargs", JSONObject.NULL)
@@ -131,6 +182,7 @@ public class ClientTest extends Taco {
 
         assertThat(xp.getMessage(), matchesJson(new JSONObject()
                 .put("action", "get_class_attribute")
+                .put("id", 9)
                 .put("class", "SomeClass")
                 .put("name", "SOME_ATTR")
         ));
@@ -139,6 +191,7 @@ public class ClientTest extends Taco {
 
         assertThat(xp.getMessage(), matchesJson(new JSONObject()
                 .put("action", "get_value")
+                .put("id", 10)
                 .put("name", "SomeVariable")
         ));
 
@@ -147,6 +200,7 @@ public class ClientTest extends Taco {
 
         assertThat(xp.getMessage(), matchesJson(new JSONObject()
                 .put("action", "import_module")
+                .put("id", 11)
                 .put("name", "SomeModule")
                 .put("args", new JSONArray(new String[]{"alpha", "bravo"}))
                 .put("kwargs", new JSONObject().put("charlie", "delta"))
@@ -156,6 +210,7 @@ public class ClientTest extends Taco {
 
         assertThat(xp.getMessage(), matchesJson(new JSONObject()
                 .put("action", "set_class_attribute")
+                .put("id", 12)
                 .put("class", "AnotherClass")
                 .put("name", "ANOTHER_ATTR")
                 .put("value", "new value")
@@ -165,6 +220,7 @@ public class ClientTest extends Taco {
 
         assertThat(xp.getMessage(), matchesJson(new JSONObject()
                 .put("action", "set_value")
+                .put("id", 13)
                 .put("name", "SomeValue")
                 .put("value", JSONObject.NULL)
         ));
@@ -184,6 +240,7 @@ public class ClientTest extends Taco {
 
         assertThat(xp.getMessage(), matchesJson(new JSONObject()
                 .put("action", "construct_object")
+                .put("id", 1)
                 .put("class", "SomeClass")
                 .put("args", new JSONArray(new String[]{"juliette", "alpha"}))
                 .put("kwargs", new JSONObject().put("victor", "alpha"))
@@ -199,6 +256,7 @@ public class ClientTest extends Taco {
 
         assertThat(xp.getMessage(), matchesJson(new JSONObject()
                 .put("action", "call_method")
+                .put("id", 2)
                 .put("name", "someMethod")
                 .put("number", 58)
                 .put("args", JSONObject.NULL)
@@ -210,6 +268,7 @@ public class ClientTest extends Taco {
 
         assertThat(xp.getMessage(), matchesJson(new JSONObject()
                 .put("action", "call_method")
+                .put("id", 3)
                 .put("name", "someOtherMethod")
                 .put("number", 58)
                 .put("args", JSONObject.NULL)
@@ -221,6 +280,7 @@ public class ClientTest extends Taco {
 
         assertThat(xp.getMessage(), matchesJson(new JSONObject()
                 .put("action", "get_attribute")
+                .put("id", 4)
                 .put("name", "someAttribute")
                 .put("number", 58)
         ));
@@ -229,6 +289,7 @@ public class ClientTest extends Taco {
 
         assertThat(xp.getMessage(), matchesJson(new JSONObject()
                 .put("action", "set_attribute")
+                .put("id", 5)
                 .put("name", "someAttribute")
                 .put("number", 58)
                 .put("value", "some value")
@@ -240,6 +301,7 @@ public class ClientTest extends Taco {
 
         assertThat(xp.getMessage(), matchesJson(new JSONObject()
                 .put("action", "call_function")
+                .put("id", 6)
                 .put("name", "someFunction")
                 .put("args", new JSONArray(new java.lang.Object[] {
                         new JSONObject().put("_Taco_Object_", 58)
@@ -248,12 +310,27 @@ public class ClientTest extends Taco {
                 .put("context", JSONObject.NULL)
         ));
 
-        obj.finalize();
+        // Released objects are destroyed along with the next request.
+        obj.close();
+        obj.close();
 
-        assertThat(xp.getMessage(), matchesJson(new JSONObject()
-                .put("action", "destroy_object")
-                .put("number", 58)
+        getValue("SomeVariable");
+
+        List<JSONObject> messages = xp.getMessages();
+
+        assertThat(messages.get(6), matchesJson(new JSONObject()
+                .put("action", "destroy_objects")
+                .put("id", 7)
+                .put("numbers", new JSONArray(new int[] {58}))
+        ));
+
+        assertThat(messages.get(7), matchesJson(new JSONObject()
+                .put("action", "get_value")
+                .put("id", 8)
+                .put("name", "SomeVariable")
         ));
+
+        assertEquals(8, messages.size());
     }
 
     @Test
@@ -268,6 +345,7 @@ public class ClientTest extends Taco {
 
         assertThat(xp.getMessage(), matchesJson(new JSONObject()
                 .put("action", "import_module")
+                .put("id", 1)
                 .put("name", "ModuleA")
                 .put("args", new JSONArray(new String[]{"opt1", "opt2"}))
                 .put("kwargs", JSONObject.NULL)
@@ -277,6 +355,7 @@ public class ClientTest extends Taco {
 
         assertThat(xp.getMessage(), matchesJson(new JSONObject()
                 .put("action", "import_module")
+                .put("id", 2)
                 .put("name", "ModuleA")
                 .put("args", JSONObject.NULL)
                 .put("kwargs", JSONObject.NULL)
@@ -297,6 +376,7 @@ public class ClientTest extends Taco {
 
         assertThat(xp.getMessage(), matchesJson(new JSONObject()
                 .put("action", "construct_object")
+                .put("id", 1)
                 .put("class", "ObjectClass")
                 .put("args", new JSONArray(
                         new String[]{"arg1", "arg2", "arg3"}))
@@ -311,6 +391,7 @@ public class ClientTest extends Taco {
 
         assertThat(xp.getMessage(), matchesJson(new JSONObject()
                 .put("action", "call_method")
+                .put("id", 2)
                 .put("name", "someMethod")
                 .put("number", 99)
                 .put("args", new JSONArray(
@@ -325,6 +406,7 @@ public class ClientTest extends Taco {
 
         assertThat(xp.getMessage(), matchesJson(new JSONObject()
                 .put("action", "call_method")
+                .put("id", 3)
                 .put("name", "someNullMethod")
                 .put("number", 99)
                 .put("args", new JSONArray(
@@ -339,6 +421,7 @@ public class ClientTest extends Taco {
 
         assertThat(xp.getMessage(), matchesJson(new JSONObject()
                 .put("action", "call_function")
+                .put("id", 4)
                 .put("name", "anotherFunction")
                 .put("args", new JSONArray(new String[]{"x", "y", "z"}))
                 .put("kwargs", JSONObject.NULL)
@@ -351,10 +434,925 @@ public class ClientTest extends Taco {
 
         assertThat(xp.getMessage(), matchesJson(new JSONObject()
                 .put("action", "call_function")
+                .put("id", 5)
                 .put("name", "yetAnotherFunction")
                 .put("args", new JSONArray(new String[]{"o", "p", "q"}))
                 .put("kwargs", JSONObject.NULL)
                 .put("context", JSONObject.NULL)
         ));
     }
+
+    @Test
+    public void testVoidNoResponse() throws TacoException {
+        DummyTransport xp = (DummyTransport) this.xp;
+
+        setVoidNoResponse(true);
+
+        // No flush is needed before any calls have been made.
+        flushErrors();
+
+        assertEquals(null, xp.getMessage());
+
+        xp.setResponse(null);
+
+        callFunction("someFunction", null, null, Context.VOID);
+
+        assertThat(xp.getMessage(), matchesJson(new JSONObject()
+                .put("action", "call_function")
+                .put("id", 1)
+                .put("name", "someFunction")
+                .put("args", JSONObject.NULL)
+                .put("kwargs", JSONObject.NULL)
+                .put("context", "void")
+                .put("no_response", true)
+        ));
+
+        xp.setResponse(new JSONObject()
+                .put("action", "result")
+                .put("result", JSONObject.NULL)
+                .put("deferred", new JSONArray(new String[] {
+                        "exception caught: failure"})));
+
+        boolean exceptionRaised = false;
+        try {
+            flushErrors();
+        }
+        catch (TacoException e) {
+            exceptionRaised = true;
+        }
+        assertTrue(exceptionRaised);
+
+        assertThat(xp.getMessage(), matchesJson(new JSONObject()
+                .put("action", "flush_errors")
+                .put("id", 2)
+        ));
+
+        // Calls in other contexts still wait for the result.
+        xp.setResponse(new JSONObject()
+                .put("action", "result")
+                .put("result", "some result"));
+
+        assertEquals("some result",
+                callFunction("someFunction", null, null, Context.SCALAR));
+    }
+
+    @Test
+    public void testTrace() throws TacoException {
+        DummyTransport xp = (DummyTransport) this.xp;
+
+        final List<Trace> traces = new ArrayList<Trace>();
+
+        setTraceListener(new TraceListener() {
+            public void traced(Trace trace) {
+                traces.add(trace);
+            }
+        });
+
+        xp.setResponse(new JSONObject()
+                .put("action", "result")
+                .put("result", 5)
+                .put("trace", new JSONObject()
+                        .put("decode", 1000)
+                        .put("queue", 2000)
+                        .put("execute", 3000000)));
+
+        assertEquals(5, callFunction("someFunction", null, null));
+
+        assertThat(xp.getMessage(), matchesJson(new JSONObject()
+                .put("action", "call_function")
+                .put("id", 1)
+                .put("name", "someFunction")
+                .put("args", JSONObject.NULL)
+                .put("kwargs", JSONObject.NULL)
+                .put("context", JSONObject.NULL)
+                .put("trace", true)
+        ));
+
+        assertEquals(1, traces.size());
+
+        Trace trace = traces.get(0);
+        assertEquals("call_function", trace.getAction());
+        assertEquals(0.001, trace.getServerDecodeTime(), 1.0e-9);
+        assertEquals(0.002, trace.getServerQueueTime(), 1.0e-9);
+        assertEquals(3.0, trace.getServerExecuteTime(), 1.0e-9);
+        assertTrue(trace.getWriteTime() >= 0);
+        assertTrue(trace.getTransferTime() >= 0);
+
+        // Stop tracing.
+        setTraceListener(null);
+
+        callFunction("someFunction", null, null);
+
+        assertThat(xp.getMessage(), matchesJson(new JSONObject()
+                .put("action", "call_function")
+                .put("id", 2)
+                .put("name", "someFunction")
+                .put("args", JSONObject.NULL)
+                .put("kwargs", JSONObject.NULL)
+                .put("context", JSONObject.NULL)
+        ));
+
+        assertEquals(1, traces.size());
+    }
+
+    @Test
+    public void testTimeout() throws TacoException {
+        DummyTransport xp = (DummyTransport) this.xp;
+
+        setTimeout(250);
+
+        xp.setResponse(new JSONObject()
+                .put("action", "exception")
+                .put("type", "timeout")
+                .put("message", "request timed out after 250 ms"));
+
+        boolean exceptionRaised = false;
+        try {
+            getValue("SomeVariable");
+        }
+        catch (TacoTimeoutException e) {
+            exceptionRaised = true;
+        }
+        assertTrue(exceptionRaised);
+
+        assertThat(xp.getMessage(), matchesJson(new JSONObject()
+                .put("action", "get_value")
+                .put("id", 1)
+                .put("name", "SomeVariable")
+                .put("timeout", 250L)
+        ));
+
+        // A response to a different request is an error.
+        xp.setResponse(new JSONObject()
+                .put("action", "result")
+                .put("result", "some result")
+                .put("id", 1));
+
+        exceptionRaised = false;
+        try {
+            getValue("SomeVariable");
+        }
+        catch (TacoException e) {
+            exceptionRaised = true;
+        }
+        assertTrue(exceptionRaised);
+
+        // Nothing is written if there is no request to cancel.
+        cancel();
+
+        assertThat(xp.getMessage(), matchesJson(new JSONObject()
+                .put("action", "get_value")
+                .put("id", 2)
+                .put("name", "SomeVariable")
+                .put("timeout", 250L)
+        ));
+    }
+
+    @Test
+    public void testAsync() throws TacoException, InterruptedException,
+            ExecutionException {
+        DummyTransport xp = (DummyTransport) this.xp;
+
+        xp.setResponses(
+                new JSONObject()
+                        .put("action", "result")
+                        .put("result", "first result")
+                        .put("id", 1),
+                new JSONObject()
+                        .put("action", "result")
+                        .put("result", 42)
+                        .put("id", 2),
+                new JSONObject()
+                        .put("action", "exception")
+                        .put("message", "failure")
+                        .put("id", 3),
+                new JSONObject()
+                        .put("action", "result")
+                        .put("result", "sync result")
+                        .put("id", 4));
+
+        CompletableFuture<java.lang.Object> first = callFunctionAsync(
+                "someFunction", Arrays.asList(1), null, Context.SCALAR);
+
+        assertEquals("first result", first.get());
+
+        CompletableFuture<java.lang.Object> second = getValueAsync("SomeVariable");
+
+        assertEquals(42, second.get());
+
+        CompletableFuture<Void> third = setValueAsync("SomeVariable", 43);
+
+        boolean exceptionRaised = false;
+        try {
+            third.get();
+        }
+        catch (ExecutionException e) {
+            exceptionRaised = e.getCause() instanceof TacoException;
+        }
+        assertTrue(exceptionRaised);
+
+        // Synchronous calls are also handled by the reader thread.
+        assertEquals("sync result", getValue("SomeVariable"));
+
+        assertThat(xp.getMessages().get(0), matchesJson(new JSONObject()
+                .put("action", "call_function")
+                .put("id", 1)
+                .put("name", "someFunction")
+                .put("args", new JSONArray(new int[] {1}))
+                .put("kwargs", JSONObject.NULL)
+                .put("context", "scalar")
+        ));
+
+        assertThat(xp.getMessages().get(2), matchesJson(new JSONObject()
+                .put("action", "set_value")
+                .put("id", 3)
+                .put("name", "SomeVariable")
+                .put("value", 43)
+        ));
+    }
+
+    @Test
+    public void testReleaseFallback() throws TacoException {
+        DummyTransport xp = (DummyTransport) this.xp;
+
+        xp.setResponses(
+                new JSONObject()
+                        .put("action", "result")
+                        .put("result", new JSONObject()
+                                .put("_Taco_Object_", 12))
+                        .put("id", 1),
+                new JSONObject()
+                        .put("action", "exception")
+                        .put("message", "unknown action: destroy_objects")
+                        .put("id", 2),
+                new JSONObject()
+                        .put("action", "result")
+                        .put("result", "some value")
+                        .put("id", 3),
+                new JSONObject()
+                        .put("action", "result")
+                        .put("result", JSONObject.NULL)
+                        .put("id", 4),
+                new JSONObject()
+                        .put("action", "result")
+                        .put("result", "some value")
+                        .put("id", 5));
+
+        Object obj = constructObject("SomeClass", null, null);
+        obj.close();
+
+        // The failure of the bulk release is not reported to the caller.
+        assertEquals("some value", getValue("SomeVariable"));
+        assertEquals("some value", getValue("SomeVariable"));
+
+        List<JSONObject> messages = xp.getMessages();
+
+        assertThat(messages.get(1), matchesJson(new JSONObject()
+                .put("action", "destroy_objects")
+                .put("id", 2)
+                .put("numbers", new JSONArray(new int[] {12}))
+        ));
+
+        assertThat(messages.get(3), matchesJson(new JSONObject()
+                .put("action", "destroy_object")
+                .put("id", 4)
+                .put("number", 12)
+        ));
+
+        assertEquals(5, messages.size());
+    }
+
+    @Test
+    public void testCanonicalObjects() throws TacoException {
+        DummyTransport xp = (DummyTransport) this.xp;
+
+        Object obj = (Object) mapToObject(
+                new HashMapC().putc("_Taco_Object_", 7));
+
+        assertSame(obj, mapToObject(new HashMapC().putc("_Taco_Object_", 7)));
+
+        // Decoding the reference again cancels the pending release.
+        obj.close();
+
+        Object newObj = (Object) mapToObject(
+                new HashMapC().putc("_Taco_Object_", 7));
+
+        assertNotSame(obj, newObj);
+
+        // Closing the old instance again must not release the new one.
+        obj.close();
+
+        xp.setResponse(new JSONObject()
+                .put("action", "result")
+                .put("result", JSONObject.NULL));
+
+        getValue("SomeVariable");
+
+        assertEquals(1, xp.getMessages().size());
+
+        newObj.close();
+
+        getValue("SomeVariable");
+
+        List<JSONObject> messages = xp.getMessages();
+
+        assertThat(messages.get(1), matchesJson(new JSONObject()
+                .put("action", "destroy_objects")
+                .put("id", 2)
+                .put("numbers", new JSONArray(new int[] {7}))
+        ));
+
+        assertEquals(3, messages.size());
+    }
+
+    @Test
+    public void testValueCache() throws TacoException, InterruptedException {
+        DummyTransport xp = (DummyTransport) this.xp;
+
+        xp.setResponse(new JSONObject()
+                .put("action", "result")
+                .put("result", 3.14159));
+
+        cacheValue("pi");
+
+        assertEquals(3.14159, getValue("pi"));
+        assertEquals(3.14159, getValue("pi"));
+        assertEquals(1, xp.getMessages().size());
+
+        // Other variables are not cached.
+        getValue("e");
+        getValue("e");
+        assertEquals(3, xp.getMessages().size());
+
+        assertEquals(1, getValueCache().getHits());
+        assertEquals(1, getValueCache().getMisses());
+
+        // Setting the variable discards the cached value.
+        setValue("pi", 3);
+        getValue("pi");
+
+        assertThat(xp.getMessages().get(4), matchesJson(new JSONObject()
+                .put("action", "get_value")
+                .put("id", 5)
+                .put("name", "pi")
+        ));
+
+        // Class attributes with a maximum age.
+        cacheClassAttribute("SomeClass", "someAttribute", 50);
+
+        getClassAttribute("SomeClass", "someAttribute");
+        getClassAttribute("SomeClass", "someAttribute");
+        assertEquals(6, xp.getMessages().size());
+
+        Thread.sleep(100);
+
+        getClassAttribute("SomeClass", "someAttribute");
+        assertEquals(7, xp.getMessages().size());
+
+        // Callers receive their own copies of cached lists.
+        xp.setResponse(new JSONObject()
+                .put("action", "result")
+                .put("result", new JSONArray(new int[] {1, 2})));
+
+        cacheValue("list");
+
+        ((List<java.lang.Object>) getValue("list")).add(3);
+        ((List<java.lang.Object>) getValue("list")).add(4);
+        assertEquals(Arrays.asList(1, 2), getValue("list"));
+        assertEquals(8, xp.getMessages().size());
+    }
+
+    @Test
+    public void testValueCacheConcurrentSet() throws Exception {
+        SequentialServer server = new SequentialServer(true);
+        Taco taco = new Taco(server);
+
+        taco.cacheValue("pi");
+
+        // The response to a get sent before a set arrives after the set
+        // has completed, so must not be cached.
+        CompletableFuture<java.lang.Object> get = taco.getValueAsync("pi");
+        CompletableFuture<Void> set = taco.setValueAsync("pi", 3);
+        server.releaseInReverse();
+
+        set.get(10, TimeUnit.SECONDS);
+        get.get(10, TimeUnit.SECONDS);
+
+        CompletableFuture<java.lang.Object> again = taco.getValueAsync("pi");
+        server.release();
+        again.get(10, TimeUnit.SECONDS);
+
+        assertEquals(Arrays.asList("get_value", "set_value", "get_value"),
+                server.actions);
+        taco.close();
+    }
+
+    @Test
+    public void testProxy() throws TacoException {
+        DummyTransport xp = (DummyTransport) this.xp;
+
+        Object obj = (Object) mapToObject(
+                new HashMapC().putc("_Taco_Object_", 5));
+
+        Inventory remote = proxy(obj, Inventory.class);
+
+        xp.setResponses(
+                new JSONObject()
+                        .put("action", "result")
+                        .put("result", 3)
+                        .put("id", 1),
+                new JSONObject()
+                        .put("action", "result")
+                        .put("result", new JSONArray())
+                        .put("id", 2),
+                new JSONObject()
+                        .put("action", "result")
+                        .put("result", new JSONObject()
+                                .put("_Taco_Object_", 5))
+                        .put("id", 3),
+                new JSONObject()
+                        .put("action", "result")
+                        .put("result", JSONObject.NULL)
+                        .put("id", 4));
+
+        // Numeric results are converted to the return type.
+        assertEquals(3L, remote.count("apple"));
+
+        assertThat(xp.getMessage(), matchesJson(new JSONObject()
+                .put("action", "call_method")
+                .put("id", 1)
+                .put("number", 5)
+                .put("name", "count")
+                .put("args", new JSONArray(new String[] {"apple"}))
+                .put("kwargs", JSONObject.NULL)
+                .put("context", "scalar")
+        ));
+
+        assertEquals(0, remote.fetch().size());
+
+        assertThat(xp.getMessage(), matchesJson(new JSONObject()
+                .put("action", "call_method")
+                .put("id", 2)
+                .put("number", 5)
+                .put("name", "fetch_list")
+                .put("args", JSONObject.NULL)
+                .put("kwargs", JSONObject.NULL)
+                .put("context", "scalar")
+        ));
+
+        // Object references are returned as proxies.
+        assertEquals(remote, remote.child());
+
+        remote.reset();
+
+        assertThat(xp.getMessage(), matchesJson(new JSONObject()
+                .put("action", "call_method")
+                .put("id", 4)
+                .put("number", 5)
+                .put("name", "reset")
+                .put("args", JSONObject.NULL)
+                .put("kwargs", JSONObject.NULL)
+                .put("context", "void")
+        ));
+
+        assertEquals("<Taco object 5>", remote.toString());
+    }
+
+    @Test
+    public void testProxyCollections() throws TacoException {
+        DummyTransport xp = (DummyTransport) this.xp;
+
+        Object obj = (Object) mapToObject(
+                new HashMapC().putc("_Taco_Object_", 5));
+
+        Shelves remote = proxy(obj, Shelves.class);
+
+        xp.setResponses(
+                new JSONObject()
+                        .put("action", "result")
+                        .put("result", new JSONArray(
+                                new String[] {"top", "bottom"}))
+                        .put("id", 1),
+                new JSONObject()
+                        .put("action", "result")
+                        .put("result", new JSONArray(new int[] {3, 4}))
+                        .put("id", 2),
+                new JSONObject()
+                        .put("action", "result")
+                        .put("result", new JSONArray()
+                                .put(new JSONObject()
+                                        .put("_Taco_Object_", 6)))
+                        .put("id", 3),
+                new JSONObject()
+                        .put("action", "result")
+                        .put("result", new JSONArray(
+                                new String[] {"a", "b", "a"}))
+                        .put("id", 4),
+                new JSONObject()
+                        .put("action", "result")
+                        .put("result", new JSONArray()
+                                .put(1).put(JSONObject.NULL))
+                        .put("id", 5));
+
+        // List results are converted to arrays of the component type.
+        assertArrayEquals(new String[] {"top", "bottom"}, remote.names());
+
+        assertThat(xp.getMessage(), matchesJson(new JSONObject()
+                .put("action", "call_method")
+                .put("id", 1)
+                .put("number", 5)
+                .put("name", "names")
+                .put("args", JSONObject.NULL)
+                .put("kwargs", JSONObject.NULL)
+                .put("context", "list")
+        ));
+
+        assertArrayEquals(new int[] {3, 4}, remote.counts());
+
+        Inventory[] sections = remote.sections();
+        assertEquals(1, sections.length);
+        assertEquals("<Taco object 6>", sections[0].toString());
+
+        // Or to sets.
+        assertEquals(new LinkedHashSet<java.lang.Object>(
+                Arrays.asList("a", "b")), remote.tags());
+
+        // Elements which can't be converted give an exception.
+        try {
+            remote.counts();
+            fail("null element converted to int");
+        }
+        catch (TacoException e) {
+            // Expected exception.
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testProxyUnsupported() throws TacoException {
+        Object obj = (Object) mapToObject(
+                new HashMapC().putc("_Taco_Object_", 5));
+
+        proxy(obj, SortedShelves.class);
+    }
+
+    @Test
+    public void testPreparedCall() throws TacoException {
+        DummyTransport xp = (DummyTransport) this.xp;
+
+        xp.setResponses(
+                new JSONObject()
+                        .put("action", "result")
+                        .put("result", 4)
+                        .put("id", 1),
+                new JSONObject()
+                        .put("action", "result")
+                        .put("result", "first")
+                        .put("id", 2),
+                new JSONObject()
+                        .put("action", "result")
+                        .put("result", "second")
+                        .put("id", 3),
+                new JSONObject()
+                        .put("action", "exception")
+                        .put("message", "unknown action: prepare_call")
+                        .put("id", 4),
+                new JSONObject()
+                        .put("action", "result")
+                        .put("result", "third")
+                        .put("id", 5));
+
+        PreparedCall call = prepareClassMethod("SomeClass", "someMethod",
+                Context.SCALAR);
+
+        assertEquals("first", call.invoke(1));
+        assertEquals("second", call.invoke(2));
+
+        List<JSONObject> messages = xp.getMessages();
+
+        assertThat(messages.get(0), matchesJson(new JSONObject()
+                .put("action", "prepare_call")
+                .put("id", 1)
+                .put("call", new JSONObject()
+                        .put("action", "call_class_method")
+                        .put("class", "SomeClass")
+                        .put("name", "someMethod")
+                        .put("context", "scalar"))
+        ));
+
+        assertThat(messages.get(2), matchesJson(new JSONObject()
+                .put("action", "call_prepared")
+                .put("id", 3)
+                .put("handle", 4)
+                .put("args", new JSONArray(new int[] {2}))
+                .put("context", "scalar")
+        ));
+
+        // If the call can't be prepared, the full call is sent.
+        PreparedCall function = prepareFunction("someFunction", null);
+
+        assertEquals("third", function.invoke(3));
+
+        assertThat(xp.getMessages().get(4), matchesJson(new JSONObject()
+                .put("action", "call_function")
+                .put("id", 5)
+                .put("name", "someFunction")
+                .put("args", new JSONArray(new int[] {3}))
+                .put("kwargs", JSONObject.NULL)
+                .put("context", JSONObject.NULL)
+        ));
+    }
+
+    @Test
+    public void testPreparedCallVoidNoResponse() throws TacoException {
+        DummyTransport xp = (DummyTransport) this.xp;
+
+        setVoidNoResponse(true);
+
+        xp.setResponses(
+                new JSONObject()
+                        .put("action", "result")
+                        .put("result", 3)
+                        .put("id", 1),
+                new JSONObject()
+                        .put("action", "result")
+                        .put("result", JSONObject.NULL)
+                        .put("deferred", new JSONArray(new String[] {
+                                "exception caught: failure"}))
+                        .put("id", 3));
+
+        PreparedCall call = prepareFunction("someFunction", Context.VOID);
+
+        // Once prepared, void calls are sent without waiting.
+        assertNull(call.invoke(1));
+
+        List<JSONObject> messages = xp.getMessages();
+
+        assertEquals("prepare_call", messages.get(0).getString("action"));
+
+        assertThat(messages.get(1), matchesJson(new JSONObject()
+                .put("action", "call_prepared")
+                .put("id", 2)
+                .put("handle", 3)
+                .put("args", new JSONArray(new int[] {1}))
+                .put("context", "void")
+                .put("no_response", true)
+        ));
+
+        // The error is reported by the next interaction.
+        boolean exceptionRaised = false;
+        try {
+            flushErrors();
+        }
+        catch (TacoException e) {
+            exceptionRaised = true;
+        }
+        assertTrue(exceptionRaised);
+    }
+
+    @Test
+    public void testPreparedCallRetry() throws TacoException {
+        DummyTransport xp = (DummyTransport) this.xp;
+
+        xp.setResponses(
+                new JSONObject()
+                        .put("action", "exception")
+                        .put("message", "temporary failure")
+                        .put("id", 1),
+                new JSONObject()
+                        .put("action", "result")
+                        .put("result", "first")
+                        .put("id", 2),
+                new JSONObject()
+                        .put("action", "result")
+                        .put("result", 7)
+                        .put("id", 3),
+                new JSONObject()
+                        .put("action", "result")
+                        .put("result", "second")
+                        .put("id", 4),
+                new JSONObject()
+                        .put("action", "result")
+                        .put("result", JSONObject.NULL)
+                        .put("id", 5),
+                new JSONObject()
+                        .put("action", "result")
+                        .put("result", "value")
+                        .put("id", 6));
+
+        PreparedCall call = prepareClassMethod("SomeClass", "someMethod",
+                Context.SCALAR);
+
+        // A failed preparation is attempted again on the next invocation.
+        assertEquals("first", call.invoke(1));
+        assertEquals("second", call.invoke(2));
+
+        // Released calls are released along with the next request.
+        call.close();
+
+        assertEquals("value", getValue("SomeVariable"));
+
+        List<JSONObject> messages = xp.getMessages();
+
+        assertThat(messages.get(1), matchesJson(new JSONObject()
+                .put("action", "call_class_method")
+                .put("id", 2)
+                .put("class", "SomeClass")
+                .put("name", "someMethod")
+                .put("args", new JSONArray(new int[] {1}))
+                .put("kwargs", JSONObject.NULL)
+                .put("context", "scalar")
+        ));
+
+        assertEquals("prepare_call", messages.get(2).getString("action"));
+
+        assertThat(messages.get(3), matchesJson(new JSONObject()
+                .put("action", "call_prepared")
+                .put("id", 4)
+                .put("handle", 7)
+                .put("args", new JSONArray(new int[] {2}))
+                .put("context", "scalar")
+        ));
+
+        assertThat(messages.get(4), matchesJson(new JSONObject()
+                .put("action", "release_prepared")
+                .put("id", 5)
+                .put("handles", new JSONArray(new int[] {7}))
+        ));
+
+        assertEquals("get_value", messages.get(5).getString("action"));
+        assertEquals(6, messages.size());
+    }
+
+    @Test
+    public void testSessionLost() throws TacoException {
+        DummyTransport xp = (DummyTransport) this.xp;
+
+        xp.setResponse(null);
+
+        for (int i = 0; i < 2; i ++) {
+            boolean exceptionRaised = false;
+            try {
+                getValue("SomeVariable");
+            }
+            catch (TacoSessionLostException e) {
+                exceptionRaised = true;
+            }
+            assertTrue(exceptionRaised);
+        }
+
+        // Only the first request is sent.
+        assertEquals(1, xp.getMessages().size());
+    }
+
+    @Test
+    public void testIterate() throws TacoException {
+        DummyTransport xp = (DummyTransport) this.xp;
+
+        List<Integer> first = new ArrayList<Integer>();
+        for (int i = 0; i < RemoteIterator.INITIAL_BATCH_SIZE; i ++) {
+            first.add(i);
+        }
+
+        xp.setResponses(
+                new JSONObject()
+                        .put("action", "result")
+                        .put("result", new JSONObject()
+                                .put("_Taco_Object_", 5))
+                        .put("id", 1),
+                new JSONObject()
+                        .put("action", "result")
+                        .put("result", new JSONArray(first.toArray()))
+                        .put("id", 2),
+                new JSONObject()
+                        .put("action", "result")
+                        .put("result", new JSONArray(new int[] {16, 17}))
+                        .put("id", 3));
+
+        Object obj = (Object) mapToObject(
+                new HashMapC().putc("_Taco_Object_", 4));
+        List<java.lang.Object> items = obj.stream()
+                .collect(Collectors.toList());
+
+        assertEquals(18, items.size());
+        assertEquals(0, items.get(0));
+        assertEquals(17, items.get(17));
+
+        List<JSONObject> messages = xp.getMessages();
+
+        assertThat(messages.get(0), matchesJson(new JSONObject()
+                .put("action", "iterate_object")
+                .put("id", 1)
+                .put("number", 4)
+        ));
+
+        assertThat(messages.get(1), matchesJson(new JSONObject()
+                .put("action", "next_items")
+                .put("id", 2)
+                .put("number", 5)
+                .put("count", RemoteIterator.INITIAL_BATCH_SIZE)
+        ));
+
+        // A short batch ends the iteration.
+        assertEquals(3, messages.size());
+        assertEquals("next_items", messages.get(2).get("action"));
+    }
+
+    @Test
+    public void testCancelUnsupported() throws Exception {
+        // Server which does not tag responses: no "cancel" is sent.
+        SequentialServer server = new SequentialServer(false);
+        Taco taco = new Taco(server);
+
+        CompletableFuture<java.lang.Object> slow = taco.callFunctionAsync(
+                "slow", null, null, Context.SCALAR);
+        taco.cancel();
+        assertTrue(slow.isCancelled());
+
+        CompletableFuture<java.lang.Object> fast = taco.callFunctionAsync(
+                "fast", null, null, Context.SCALAR);
+        server.release();
+
+        assertEquals("fast", fast.get(10, TimeUnit.SECONDS));
+        assertFalse(server.actions.contains("cancel"));
+        taco.close();
+
+        // Server which tags responses but does not support cancellation:
+        // its exception for the "cancel" and its response to the request
+        // both carry the request's identifier.
+        server = new SequentialServer(true);
+        taco = new Taco(server);
+
+        CompletableFuture<java.lang.Object> first = taco.callFunctionAsync(
+                "first", null, null, Context.SCALAR);
+        server.release();
+        assertEquals("first", first.get(10, TimeUnit.SECONDS));
+
+        slow = taco.callFunctionAsync("slow", null, null, Context.SCALAR);
+        assertTrue(slow.cancel(true));
+        fast = taco.callFunctionAsync("fast", null, null, Context.SCALAR);
+        server.release();
+
+        assertEquals("fast", fast.get(10, TimeUnit.SECONDS));
+        assertTrue(server.actions.contains("cancel"));
+        taco.close();
+    }
+
+    /**
+     * Transport simulating a server which answers each message in turn,
+     * including with an exception for the unsupported "cancel" action.
+     * Responses are held back until released.
+     */
+    private static class SequentialServer extends TacoTransport {
+        private final boolean tagResponses;
+        private final List<String> actions = new ArrayList<String>();
+        private final List<JSONObject> held = new ArrayList<JSONObject>();
+        private final LinkedBlockingQueue<JSONObject> responses =
+                new LinkedBlockingQueue<JSONObject>();
+
+        private SequentialServer(boolean tagResponses) {
+            super(null);
+            this.tagResponses = tagResponses;
+        }
+
+        private synchronized void release() {
+            responses.addAll(held);
+            held.clear();
+        }
+
+        private synchronized void releaseInReverse() {
+            Collections.reverse(held);
+            release();
+        }
+
+        @Override
+        public Map<String, java.lang.Object> read() throws TacoException {
+            try {
+                return jsonToMap(responses.take());
+            }
+            catch (InterruptedException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public synchronized void write(Map<String, java.lang.Object> message)
+                throws TacoException {
+            String action = (String) message.get("action");
+            actions.add(action);
+
+            JSONObject response = action.equals("cancel")
+                    ? new JSONObject()
+                            .put("action", "exception")
+                            .put("message", "unknown action: cancel")
+                    : new JSONObject()
+                            .put("action", "result")
+                            .put("result", message.get("name"));
+
+            if (tagResponses) {
+                response.put("id", message.get("id"));
+            }
+
+            held.add(response);
+        }
+    }
 }
@@ -18,6 +18,10 @@
 
 package io.github.grahambell.taco;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 
 import org.json.JSONArray;
@@ -27,6 +31,8 @@ public class DummyTransport extends TacoTransport {
     private JSONObject response;
     private JSONObject message;
     private boolean singleResponse = false;
+    private LinkedList<JSONObject> responses = new LinkedList<JSONObject>();
+    private List<JSONObject> messages = new ArrayList<JSONObject>();
 
     public DummyTransport(TacoTransport.Filter filter) {
         super(filter);
@@ -41,12 +47,25 @@ public class DummyTransport extends TacoTransport {
         this.singleResponse = single;
     }
 
-    public JSONObject getMessage() {
+    public synchronized void setResponses(JSONObject... responses) {
+        this.response = null;
+        this.responses.addAll(Arrays.asList(responses));
+    }
+
+    public synchronized JSONObject getMessage() {
         return message;
     }
 
+    public synchronized List<JSONObject> getMessages() {
+        return new ArrayList<JSONObject>(messages);
+    }
+
     @Override
-    public Map<String, java.lang.Object> read() throws TacoException {
+    public synchronized Map<String, java.lang.Object> read() throws TacoException {
+        if (! responses.isEmpty()) {
+            return jsonToMap(responses.removeFirst());
+        }
+
         JSONObject response = this.response;
 
         if (singleResponse) {
@@ -61,8 +80,9 @@ public class DummyTransport extends TacoTransport {
     }
 
     @Override
-    public void write(Map<String, java.lang.Object> message)
+    public synchronized void write(Map<String, java.lang.Object> message)
             throws TacoException{
         this.message = mapToJson(message);
+        messages.add(this.message);
     }
 }
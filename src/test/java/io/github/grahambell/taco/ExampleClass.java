@@ -20,4 +20,29 @@ package io.github.grahambell.taco;
 
 class ExampleClass {
     public static int attr_one = 5678;
+
+    public static int square_calls = 0;
+
+    @ResultCache.Cacheable
+    public static int square(int x) {
+        square_calls ++;
+        return x * x;
+    }
+
+    public static void sleep(int milliseconds) throws InterruptedException {
+        Thread.sleep(milliseconds);
+    }
+
+    public static void spin(int milliseconds) {
+        long end = System.currentTimeMillis() + milliseconds;
+
+        while (System.currentTimeMillis() < end) {
+            // Ignore interruption.
+        }
+    }
+
+    public static java.util.Date date(int x) {
+        square_calls ++;
+        return new java.util.Date(x);
+    }
 }
@@ -18,13 +18,29 @@
 
 package io.github.grahambell.taco;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class JavaIT {
+    public interface Builder {
+        Builder append(String text) throws TacoException;
+
+        int length() throws TacoException;
+
+        String substring(int start) throws TacoException;
+    }
+
     Taco taco;
 
     public JavaIT() throws TacoException {
@@ -60,4 +76,158 @@ public class JavaIT {
         assertEquals(5, nextInt.invoke());
         assertEquals(8, nextInt.invoke());
     }
+
+    @Test
+    public void testTimeout() throws TacoException {
+        taco.setTimeout(200);
+
+        boolean exceptionRaised = false;
+        try {
+            taco.callClassMethod("java.lang.Thread", "sleep",
+                    Arrays.asList(60000), null);
+        }
+        catch (TacoTimeoutException e) {
+            exceptionRaised = true;
+        }
+        assertTrue(exceptionRaised);
+
+        // The session should still be usable.
+        assertEquals(42, taco.callClassMethod("java.lang.Integer", "parseInt",
+                Arrays.asList("42"), null));
+    }
+
+    @Test
+    public void testAsync() throws TacoException, InterruptedException,
+            ExecutionException {
+        Taco.Object sb = taco.constructObjectAsync("java.lang.StringBuilder",
+                null, null).get();
+
+        // Send several requests before waiting for any of the responses.
+        List<CompletableFuture<java.lang.Object>> futures =
+                new ArrayList<CompletableFuture<java.lang.Object>>();
+
+        for (String s: Arrays.asList("a", "-", "z")) {
+            futures.add(sb.callMethodAsync("append", Arrays.asList(s),
+                    null, null));
+        }
+
+        futures.add(sb.callMethodAsync("toString", null, null, null));
+
+        CompletableFuture.allOf(futures.toArray(
+                new CompletableFuture[futures.size()])).get();
+
+        assertEquals("a-z", futures.get(3).get());
+
+        // Synchronous calls can still be made.
+        assertEquals(42, taco.callClassMethod("java.lang.Integer", "parseInt",
+                Arrays.asList("42"), null));
+    }
+
+    @Test
+    public void testConcurrent() throws InterruptedException,
+            ExecutionException {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+
+        try {
+            for (int i = 0; i < 4; i ++) {
+                final int thread = i;
+
+                results.add(executor.submit(() -> {
+                    for (int j = 0; j < 50; j ++) {
+                        int value = thread * 1000 + j;
+
+                        if (! Integer.valueOf(value).equals(
+                                taco.callClassMethod("java.lang.Integer",
+                                        "parseInt",
+                                        Arrays.asList(Integer.toString(value)),
+                                        null))) {
+                            return false;
+                        }
+                    }
+
+                    return true;
+                }));
+            }
+
+            for (Future<Boolean> result: results) {
+                assertTrue(result.get());
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testProxy() throws TacoException {
+        Builder sb = taco.proxy(taco.constructObject(
+                "java.lang.StringBuilder", null, null), Builder.class);
+
+        sb.append("taco").append("-").append("java");
+
+        assertEquals(9, sb.length());
+        assertEquals("java", sb.substring(5));
+    }
+
+    @Test
+    public void testPreparedCall() throws TacoException {
+        Taco.PreparedCall parseInt = taco.prepareClassMethod(
+                "java.lang.Integer", "parseInt", null);
+
+        for (int i = 0; i < 10; i ++) {
+            assertEquals(i, parseInt.invoke(Integer.toString(i)));
+        }
+
+        Taco.Object sb = taco.constructObject("java.lang.StringBuilder",
+                null, null);
+        Taco.PreparedCall append = sb.prepareMethod("append", null);
+
+        append.invoke("x");
+        append.invoke("y");
+
+        assertEquals("xy", sb.callMethod("toString", null, null));
+
+        // Closed calls are released without disturbing the session.
+        parseInt.close();
+        append.close();
+
+        assertEquals("xy", sb.callMethod("toString", null, null));
+        assertEquals(3, taco.prepareClassMethod("java.lang.Integer",
+                "parseInt", null).invokeAsync("3").join());
+    }
+
+    @Test
+    public void testIterate() throws TacoException {
+        Taco.Object range = (Taco.Object) taco.callClassMethod(
+                "java.util.stream.IntStream", "range", Arrays.asList(0, 1000),
+                null);
+
+        assertEquals(499500, range.stream()
+                .mapToInt(i -> (Integer) i).sum());
+
+        // Stop part way through.
+        Taco.Object scanner = taco.constructObject("java.util.Scanner",
+                Arrays.asList("a b c d e f g h"), null);
+
+        try (RemoteIterator iterator = scanner.iterate()) {
+            assertEquals("a", iterator.next());
+            assertEquals("b", iterator.next());
+        }
+    }
+
+    @Test
+    public void testSessionLost() throws TacoException {
+        for (int i = 0; i < 2; i ++) {
+            boolean exceptionRaised = false;
+            try {
+                taco.callClassMethod("java.lang.System", "exit",
+                        Arrays.asList(1), null);
+            }
+            catch (TacoSessionLostException e) {
+                exceptionRaised = true;
+            }
+            assertTrue(exceptionRaised);
+        }
+    }
 }
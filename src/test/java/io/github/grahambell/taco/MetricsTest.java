@@ -0,0 +1,193 @@
+/*
+ * Taco Java metrics test.
+ * Copyright (C) 2015 Graham Bell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.grahambell.taco;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for TacoMetrics.
+ */
+public class MetricsTest {
+    @Test
+    public void testHistogram() {
+        TacoMetrics.Histogram histogram = new TacoMetrics.Histogram();
+
+        for (long i = 1; i <= 1000; i ++) {
+            histogram.record(i * 1000);
+        }
+
+        long[] percentiles = histogram.percentiles(0.5, 0.99, 1.0);
+
+        // Each result is the upper bound of a bin no wider than 12.5%.
+        assertTrue(percentiles[0] >= 500000 && percentiles[0] < 562500);
+        assertTrue(percentiles[1] >= 990000 && percentiles[1] < 1113750);
+        assertTrue(percentiles[2] >= 1000000 && percentiles[2] < 1125000);
+
+        for (long value: new long[] {0, 7, 8, 15, 16, 1000, Long.MAX_VALUE}) {
+            int index = TacoMetrics.Histogram.index(value);
+            assertTrue(TacoMetrics.Histogram.upperBound(index) >= value);
+        }
+    }
+
+    @Test
+    public void testMetrics() throws TacoException, JMException {
+        Taco taco = LoopbackTransport.startServer(false);
+        TacoMetrics metrics = new TacoMetrics();
+        taco.setMetrics(metrics);
+
+        try {
+            for (int i = 0; i < 10; i ++) {
+                taco.callClassMethod("java.lang.Integer", "parseInt",
+                        Arrays.asList(Integer.toString(i)), null);
+            }
+
+            boolean exceptionRaised = false;
+            try {
+                taco.callClassMethod("java.lang.Integer", "parseInt",
+                        Arrays.asList("x"), null);
+            }
+            catch (TacoException e) {
+                exceptionRaised = true;
+            }
+            assertTrue(exceptionRaised);
+
+            TacoMetrics.ActionStats stats =
+                    metrics.getActions().get("call_class_method");
+
+            assertEquals(11, stats.getCalls());
+            assertEquals(1, stats.getErrors());
+            assertTrue(stats.getMaxLatency() >= stats.getMedianLatency());
+
+            assertEquals(11, metrics.getMessagesWritten());
+            assertEquals(11, metrics.getMessagesRead());
+            assertTrue(metrics.getCharactersWritten() > 0);
+
+            // Check that the metrics are visible via JMX.
+            metrics.register("test");
+
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                ObjectName name = new ObjectName(
+                        "io.github.grahambell.taco:type=TacoMetrics,"
+                        + "name=\"test\"");
+
+                assertEquals(11L, server.getAttribute(name, "MessagesRead"));
+            }
+            finally {
+                metrics.unregister();
+            }
+        }
+        finally {
+            taco.close();
+        }
+    }
+
+    @Test
+    public void testServerMetrics() throws Exception {
+        TacoServer server = new TacoServer((TacoTransport) null);
+        TacoMetrics metrics = new TacoMetrics();
+        server.setMetrics(metrics);
+
+        server.objectToMap(new Object());
+        server.objectToMap(new Object());
+        server.destroy_objects(new HashMapC<String, Object>()
+                .putc("numbers", Arrays.asList(1)));
+
+        assertEquals(1, metrics.getObjects());
+        assertEquals(2, metrics.getObjectsHighWater());
+    }
+
+    @Test
+    public void testFlightRecorder() throws TacoException, IOException {
+        Path file = Files.createTempFile("taco", ".jfr");
+        Taco taco = LoopbackTransport.startServer(false);
+
+        try (Recording recording = new Recording()) {
+            for (String name: new String[] {"MessageRead", "MessageWrite",
+                    "Dispatch", "ObjectExport", "ObjectRelease"}) {
+                recording.enable("io.github.grahambell.taco." + name)
+                        .withThreshold(Duration.ZERO);
+            }
+
+            recording.start();
+
+            Taco.Object sb = taco.constructObject("java.lang.StringBuilder",
+                    null, null);
+            sb.callMethod("append", Arrays.asList("x"), null);
+            sb.close();
+            taco.callClassMethod("java.lang.Integer", "parseInt",
+                    Arrays.asList("42"), null);
+
+            recording.stop();
+            recording.dump(file);
+
+            Set<String> names = new HashSet<String>();
+            String dispatchClass = null;
+            int characters = 0;
+
+            for (RecordedEvent event: RecordingFile.readAllEvents(file)) {
+                String name = event.getEventType().getName();
+                names.add(name.substring(name.lastIndexOf('.') + 1));
+
+                if (name.endsWith(".Dispatch")
+                        && "append".equals(event.getString("method"))) {
+                    dispatchClass = event.getString("className");
+                }
+
+                // Message lengths are counted in characters, not bytes.
+                if (name.endsWith(".MessageWrite")) {
+                    assertNull(event.getEventType().getField("characters")
+                            .getContentType());
+                    characters += event.getInt("characters");
+                }
+            }
+
+            assertEquals(new HashSet<String>(Arrays.asList("MessageRead",
+                    "MessageWrite", "Dispatch", "ObjectExport",
+                    "ObjectRelease")), names);
+            assertEquals("java.lang.StringBuilder", dispatchClass);
+            assertTrue(characters > 0);
+        }
+        finally {
+            taco.close();
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Taco Java client pool test.
+ * Copyright (C) 2015 Graham Bell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.grahambell.taco;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PoolIT {
+    @Test
+    public void testPool() throws TacoException {
+        TacoPool pool = new TacoPool("scripts/taco-java", true, 2);
+
+        try {
+            pool.importModule("java.lang.StringBuilder");
+
+            // Two slow calls should be sent to different servers.
+            List<CompletableFuture<java.lang.Object>> futures =
+                    new ArrayList<CompletableFuture<java.lang.Object>>();
+
+            for (int i = 0; i < 2; i ++) {
+                futures.add(pool.callClassMethodAsync("java.lang.Thread",
+                        "sleep", Arrays.asList(200), null, null));
+            }
+
+            assertEquals(2, pool.getQueueDepth());
+
+            for (TacoPool.Stats stats: pool.getStats()) {
+                assertEquals(1, stats.getOutstanding());
+            }
+
+            for (CompletableFuture<java.lang.Object> future: futures) {
+                Taco.getResult(future);
+            }
+
+            assertEquals(0, pool.getQueueDepth());
+
+            // Objects remain in the server which constructed them.
+            Taco.Object sb = pool.constructObject("java.lang.StringBuilder",
+                    null, null);
+
+            for (int i = 0; i < 4; i ++) {
+                sb.callMethod("append", Arrays.asList(i), null);
+                pool.callClassMethod("java.lang.Integer", "parseInt",
+                        Arrays.asList("42"), null, null);
+            }
+
+            assertEquals("0123", sb.callMethod("toString", null, null));
+        }
+        finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testRestart() throws TacoException, InterruptedException {
+        TacoPool pool = new TacoPool("scripts/taco-java", true, 1);
+
+        try {
+            pool.importModule("java.lang.StringBuilder");
+
+            boolean exceptionRaised = false;
+            try {
+                pool.callClassMethod("java.lang.System", "exit",
+                        Arrays.asList(1), null, null);
+            }
+            catch (TacoException e) {
+                exceptionRaised = true;
+            }
+            assertTrue(exceptionRaised);
+
+            // Allow the process to be reaped.
+            Thread.sleep(200);
+
+            // The server should be restarted, with the module re-imported.
+            Taco.Object sb = pool.constructObject("java.lang.StringBuilder",
+                    null, null);
+            assertEquals(0, sb.callMethod("length", null, null));
+
+            TacoPool.Stats stats = pool.getStats().get(0);
+            assertEquals(1, stats.getRestarts());
+            assertEquals(1, stats.getErrors());
+        }
+        finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testImportFailure()
+            throws TacoException, InterruptedException {
+        TacoPool pool = new TacoPool("scripts/taco-java", true, 2);
+
+        try {
+            // An import which fails for every member is discarded.
+            boolean exceptionRaised = false;
+            try {
+                pool.importModule("io.github.grahambell.taco.NoSuchClass");
+            }
+            catch (TacoException e) {
+                exceptionRaised = true;
+            }
+            assertTrue(exceptionRaised);
+
+            try {
+                pool.callClassMethod("java.lang.System", "exit",
+                        Arrays.asList(1), null, null);
+            }
+            catch (TacoException e) {
+                // Expected: the server exited.
+            }
+
+            Thread.sleep(200);
+
+            // The import fails for the exited server, which is restarted
+            // without the discarded import.
+            pool.importModule("java.lang.StringBuilder");
+
+            int restarts = 0;
+            for (int i = 0; i < 100 && restarts == 0; i ++) {
+                Thread.sleep(100);
+
+                for (TacoPool.Stats stats: pool.getStats()) {
+                    restarts += stats.getRestarts();
+                }
+            }
+            assertEquals(1, restarts);
+
+            for (int i = 0; i < 4; i ++) {
+                assertEquals(42, pool.callClassMethod("java.lang.Integer",
+                        "parseInt", Arrays.asList("42"), null, null));
+            }
+        }
+        finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testBackgroundRestart()
+            throws TacoException, InterruptedException {
+        TacoPool pool = new TacoPool("scripts/taco-java", true, 2);
+
+        try {
+            try {
+                pool.callClassMethod("java.lang.System", "exit",
+                        Arrays.asList(1), null, null);
+            }
+            catch (TacoException e) {
+                // Expected: the server exited.
+            }
+
+            Thread.sleep(200);
+
+            // The other member answers while the server restarts.
+            for (int i = 0; i < 5; i ++) {
+                assertEquals(42, pool.callClassMethod("java.lang.Integer",
+                        "parseInt", Arrays.asList("42"), null, null));
+            }
+
+            int restarts = 0;
+            for (int i = 0; i < 100 && restarts == 0; i ++) {
+                Thread.sleep(100);
+
+                for (TacoPool.Stats stats: pool.getStats()) {
+                    restarts += stats.getRestarts();
+                }
+            }
+            assertEquals(1, restarts);
+
+            for (int i = 0; i < 4; i ++) {
+                assertEquals(42, pool.callClassMethod("java.lang.Integer",
+                        "parseInt", Arrays.asList("42"), null, null));
+            }
+        }
+        finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testSpares() throws TacoException, InterruptedException {
+        TacoSpares spares = new TacoSpares("scripts/taco-java", true, 2);
+
+        try {
+            Taco taco = spares.take();
+
+            assertEquals(42, taco.callClassMethod("java.lang.Integer",
+                    "parseInt", Arrays.asList("42"), null));
+
+            taco.close();
+        }
+        finally {
+            spares.close();
+        }
+
+        // Replace an exited server with a spare.
+        TacoPool pool = new TacoPool("scripts/taco-java", true, 1, 1);
+
+        try {
+            boolean exceptionRaised = false;
+            try {
+                pool.callClassMethod("java.lang.System", "exit",
+                        Arrays.asList(1), null, null);
+            }
+            catch (TacoSessionLostException e) {
+                exceptionRaised = true;
+            }
+            assertTrue(exceptionRaised);
+
+            Thread.sleep(200);
+
+            assertEquals(42, pool.callClassMethod("java.lang.Integer",
+                    "parseInt", Arrays.asList("42"), null, null));
+            assertEquals(1, pool.getStats().get(0).getRestarts());
+        }
+        finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testSparesFailure() throws TacoException {
+        AtomicInteger launches = new AtomicInteger();
+
+        // The first two servers fail to start.
+        TacoSpares spares = new TacoSpares("scripts/taco-java", true, 2) {
+            @Override
+            protected Taco createClient() throws TacoException {
+                if (launches.incrementAndGet() <= 2) {
+                    throw new TacoException("failed to start");
+                }
+
+                return super.createClient();
+            }
+        };
+
+        try {
+            Taco taco = spares.take();
+
+            assertEquals(42, taco.callClassMethod("java.lang.Integer",
+                    "parseInt", Arrays.asList("42"), null));
+
+            taco.close();
+        }
+        finally {
+            spares.close();
+        }
+
+        // With no usable spares, the error starting a server is reported.
+        TacoSpares failing = new TacoSpares("scripts/taco-java", true, 1) {
+            @Override
+            protected Taco createClient() throws TacoException {
+                throw new TacoException("failed to start");
+            }
+        };
+
+        try {
+            boolean exceptionRaised = false;
+            try {
+                failing.take();
+            }
+            catch (TacoException e) {
+                assertEquals("failed to start", e.getMessage());
+                exceptionRaised = true;
+            }
+            assertTrue(exceptionRaised);
+        }
+        finally {
+            failing.close();
+        }
+    }
+}
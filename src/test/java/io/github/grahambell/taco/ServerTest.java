@@ -18,14 +18,18 @@
 
 package io.github.grahambell.taco;
 
+import java.io.BufferedReader;
+import java.io.StringReader;
 import java.text.DateFormat;
 import java.util.Arrays;
+import java.util.List;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 
@@ -219,6 +223,27 @@ public class ServerTest extends TacoServer {
         assertEquals(objectNum, 4);
         assertEquals(objects.size(), 1);
 
+        // Destroy several objects at once, ignoring unknown numbers.
+        xp.setResponse(new JSONObject()
+                .put("action", "construct_object")
+                .put("class", "java.util.Date")
+                .put("args", JSONObject.NULL)
+                .put("kwargs", JSONObject.NULL),
+                true);
+
+        run();
+
+        assertEquals(objects.size(), 2);
+
+        xp.setResponse(new JSONObject()
+                .put("action", "destroy_objects")
+                .put("numbers", new JSONArray(new int[] {4, 5, 99})),
+                true);
+
+        run();
+
+        assertEquals(objects.size(), 0);
+
         // Test class attribute actions.
         xp.setResponse(new JSONObject()
                 .put("action", "get_class_attribute")
@@ -249,4 +274,409 @@ public class ServerTest extends TacoServer {
 
         assertEquals(8765, ExampleClass.attr_one);
     }
+
+    @Test
+    public void testPreload() throws TacoException {
+        preload(new BufferedReader(new StringReader(
+                "# Comment line\n"
+                + "\n"
+                + "java.util.Date getYear getMonth  # trailing comment\n"
+                + "  java.text.DateFormat\n")));
+
+        assertTrue(handlers.containsKey("call_method"));
+        assertTrue(handlers.containsKey("construct_object"));
+
+        boolean exceptionRaised = false;
+        try {
+            preload(new BufferedReader(new StringReader(
+                    "java.util.Date noSuchMethod\n")));
+        }
+        catch (TacoException e) {
+            exceptionRaised = true;
+        }
+        assertTrue(exceptionRaised);
+    }
+
+    @Test
+    public void testResultCache() throws TacoException {
+        DummyTransport xp = (DummyTransport) this.xp;
+
+        setResultCache(new ResultCache(10, 0));
+        ExampleClass.square_calls = 0;
+
+        for (int i = 0; i < 3; i ++) {
+            xp.setResponse(new JSONObject()
+                    .put("action", "call_class_method")
+                    .put("class", "io.github.grahambell.taco.ExampleClass")
+                    .put("name", "square")
+                    .put("args", new JSONArray(new int[] {7}))
+                    .put("kwargs", JSONObject.NULL),
+                    true);
+
+            run();
+
+            assertThat(xp.getMessage(), matchesJson(new JSONObject()
+                    .put("action", "result")
+                    .put("result", 49)
+            ));
+        }
+
+        assertEquals(1, ExampleClass.square_calls);
+        assertEquals(2, resultCache.getHits());
+        assertEquals(1, resultCache.getMisses());
+
+        // Results which would be exported as objects are not cached.
+        resultCache.allow("io.github.grahambell.taco.ExampleClass.date");
+
+        for (int i = 0; i < 2; i ++) {
+            xp.setResponse(new JSONObject()
+                    .put("action", "call_class_method")
+                    .put("class", "io.github.grahambell.taco.ExampleClass")
+                    .put("name", "date")
+                    .put("args", new JSONArray(new int[] {0}))
+                    .put("kwargs", JSONObject.NULL),
+                    true);
+
+            run();
+        }
+
+        assertEquals(3, ExampleClass.square_calls);
+        assertEquals(1, resultCache.size());
+    }
+
+    @Test
+    public void testNoResponse() throws TacoException {
+        DummyTransport xp = (DummyTransport) this.xp;
+
+        xp.setResponse(new JSONObject()
+                .put("action", "call_class_method")
+                .put("class", "java.lang.Integer")
+                .put("name", "parseInt")
+                .put("args", new JSONArray(new String[] {"10"}))
+                .put("kwargs", JSONObject.NULL)
+                .put("context", "void")
+                .put("no_response", true),
+                true);
+
+        run();
+
+        assertEquals(null, xp.getMessage());
+
+        xp.setResponse(new JSONObject()
+                .put("action", "call_class_method")
+                .put("class", "java.lang.Integer")
+                .put("name", "parseInt")
+                .put("args", new JSONArray(new String[] {"ten"}))
+                .put("kwargs", JSONObject.NULL)
+                .put("context", "void")
+                .put("no_response", true),
+                true);
+
+        run();
+
+        assertEquals(null, xp.getMessage());
+        assertEquals(1, deferredErrors.size());
+
+        xp.setResponse(new JSONObject()
+                .put("action", "flush_errors"),
+                true);
+
+        run();
+
+        assertThat(xp.getMessage(), matchesJson(new JSONObject()
+                .put("action", "result")
+                .put("result", JSONObject.NULL)
+                .put("deferred", new JSONArray(new String[] {
+                        "exception caught: java.lang.NumberFormatException: "
+                        + "For input string: \"ten\""}))
+        ));
+
+        assertEquals(0, deferredErrors.size());
+    }
+
+    @Test
+    public void testTrace() throws TacoException {
+        DummyTransport xp = (DummyTransport) this.xp;
+
+        xp.setResponse(new JSONObject()
+                .put("action", "call_class_method")
+                .put("class", "java.lang.Thread")
+                .put("name", "sleep")
+                .put("args", new JSONArray(new int[] {20}))
+                .put("kwargs", JSONObject.NULL)
+                .put("trace", true),
+                true);
+
+        run();
+
+        JSONObject trace = (JSONObject) xp.getMessage().get("trace");
+
+        assertTrue(((Number) trace.get("decode")).longValue() >= 0);
+        assertTrue(((Number) trace.get("queue")).longValue() >= 0);
+        assertTrue(((Number) trace.get("execute")).longValue() >= 20000000);
+
+        // Responses are not traced unless requested.
+        xp.setResponse(new JSONObject()
+                .put("action", "flush_errors"),
+                true);
+
+        run();
+
+        assertThat(xp.getMessage(), matchesJson(new JSONObject()
+                .put("action", "result")
+                .put("result", JSONObject.NULL)
+        ));
+    }
+
+    @Test
+    public void testTimeout() throws TacoException {
+        DummyTransport xp = (DummyTransport) this.xp;
+
+        long start = System.currentTimeMillis();
+
+        xp.setResponses(
+                new JSONObject()
+                        .put("action", "call_class_method")
+                        .put("class", "io.github.grahambell.taco.ExampleClass")
+                        .put("name", "sleep")
+                        .put("args", new JSONArray(new int[] {60000}))
+                        .put("kwargs", JSONObject.NULL)
+                        .put("id", 1)
+                        .put("timeout", 100),
+                new JSONObject()
+                        .put("action", "call_class_method")
+                        .put("class", "io.github.grahambell.taco.ExampleClass")
+                        .put("name", "spin")
+                        .put("args", new JSONArray(new int[] {60000}))
+                        .put("kwargs", JSONObject.NULL)
+                        .put("id", 2)
+                        .put("timeout", 100),
+                new JSONObject()
+                        .put("action", "call_class_method")
+                        .put("class", "java.lang.Integer")
+                        .put("name", "parseInt")
+                        .put("args", new JSONArray(new String[] {"10"}))
+                        .put("kwargs", JSONObject.NULL)
+                        .put("id", 3));
+
+        run();
+
+        assertTrue(System.currentTimeMillis() - start < 30000);
+
+        List<JSONObject> messages = xp.getMessages();
+
+        assertEquals(3, messages.size());
+
+        assertThat(messages.get(0), matchesJson(new JSONObject()
+                .put("action", "exception")
+                .put("type", "timeout")
+                .put("message", "request timed out after 100 ms")
+                .put("id", 1)
+        ));
+
+        assertThat(messages.get(1), matchesJson(new JSONObject()
+                .put("action", "exception")
+                .put("type", "timeout")
+                .put("message", "request timed out after 100 ms")
+                .put("id", 2)
+        ));
+
+        assertThat(messages.get(2), matchesJson(new JSONObject()
+                .put("action", "result")
+                .put("result", 10)
+                .put("id", 3)
+        ));
+    }
+
+    @Test
+    public void testCancel() throws TacoException {
+        DummyTransport xp = (DummyTransport) this.xp;
+
+        xp.setResponses(
+                new JSONObject()
+                        .put("action", "call_class_method")
+                        .put("class", "io.github.grahambell.taco.ExampleClass")
+                        .put("name", "sleep")
+                        .put("args", new JSONArray(new int[] {60000}))
+                        .put("kwargs", JSONObject.NULL)
+                        .put("id", "first"),
+                new JSONObject()
+                        .put("action", "cancel")
+                        .put("id", "first"));
+
+        run();
+
+        assertThat(xp.getMessage(), matchesJson(new JSONObject()
+                .put("action", "exception")
+                .put("type", "cancelled")
+                .put("message", "request cancelled")
+                .put("id", "first")
+        ));
+
+        assertEquals(1, xp.getMessages().size());
+    }
+
+    @Test
+    public void testPreparedCall() throws TacoException {
+        DummyTransport xp = (DummyTransport) this.xp;
+
+        xp.setResponses(
+                new JSONObject()
+                        .put("action", "prepare_call")
+                        .put("call", new JSONObject()
+                                .put("action", "call_class_method")
+                                .put("class",
+                                        "io.github.grahambell.taco.ExampleClass")
+                                .put("name", "square")
+                                .put("context", JSONObject.NULL))
+                        .put("id", 1),
+                new JSONObject()
+                        .put("action", "call_prepared")
+                        .put("handle", 1)
+                        .put("args", new JSONArray(new int[] {6}))
+                        .put("id", 2),
+                new JSONObject()
+                        .put("action", "construct_object")
+                        .put("class", "java.lang.StringBuilder")
+                        .put("args", new JSONArray(new String[] {"abc"}))
+                        .put("kwargs", JSONObject.NULL)
+                        .put("id", 3),
+                new JSONObject()
+                        .put("action", "prepare_call")
+                        .put("call", new JSONObject()
+                                .put("action", "call_method")
+                                .put("number", 1)
+                                .put("name", "length")
+                                .put("context", JSONObject.NULL))
+                        .put("id", 4),
+                new JSONObject()
+                        .put("action", "call_prepared")
+                        .put("handle", 2)
+                        .put("args", JSONObject.NULL)
+                        .put("id", 5),
+                new JSONObject()
+                        .put("action", "call_prepared")
+                        .put("handle", 99)
+                        .put("args", JSONObject.NULL)
+                        .put("id", 6),
+                new JSONObject()
+                        .put("action", "release_prepared")
+                        .put("handles", new JSONArray(new int[] {1, 99}))
+                        .put("id", 7),
+                new JSONObject()
+                        .put("action", "call_prepared")
+                        .put("handle", 1)
+                        .put("args", new JSONArray(new int[] {6}))
+                        .put("id", 8));
+
+        run();
+
+        List<JSONObject> messages = xp.getMessages();
+
+        assertThat(messages.get(0), matchesJson(new JSONObject()
+                .put("action", "result")
+                .put("result", 1)
+                .put("id", 1)
+        ));
+
+        assertThat(messages.get(1), matchesJson(new JSONObject()
+                .put("action", "result")
+                .put("result", 36)
+                .put("id", 2)
+        ));
+
+        assertThat(messages.get(3), matchesJson(new JSONObject()
+                .put("action", "result")
+                .put("result", 2)
+                .put("id", 4)
+        ));
+
+        assertThat(messages.get(4), matchesJson(new JSONObject()
+                .put("action", "result")
+                .put("result", 3)
+                .put("id", 5)
+        ));
+
+        assertThat(messages.get(5), matchesJson(new JSONObject()
+                .put("action", "exception")
+                .put("message", "exception caught: unknown prepared call: 99")
+                .put("id", 6)
+        ));
+
+        // Released calls can no longer be invoked.
+        assertThat(messages.get(6), matchesJson(new JSONObject()
+                .put("action", "result")
+                .put("result", JSONObject.NULL)
+                .put("id", 7)
+        ));
+
+        assertThat(messages.get(7), matchesJson(new JSONObject()
+                .put("action", "exception")
+                .put("message", "exception caught: unknown prepared call: 1")
+                .put("id", 8)
+        ));
+
+        assertEquals(1, preparedCalls.size());
+    }
+
+    @Test
+    public void testIsApplicable() {
+        Class<?>[] types = new Class<?>[] {long.class, CharSequence.class};
+
+        assertTrue(isApplicable(types, new Object[] {1L, "text"}));
+        assertTrue(isApplicable(types, new Object[] {1, null}));
+        assertTrue(isApplicable(types, new Object[] {'c', new StringBuilder()}));
+        assertFalse(isApplicable(types, new Object[] {1.5, "text"}));
+        assertFalse(isApplicable(types, new Object[] {null, "text"}));
+        assertFalse(isApplicable(types, new Object[] {1L, 2}));
+        assertFalse(isApplicable(types, new Object[] {1L}));
+    }
+
+    @Test
+    public void testIterate() throws TacoException {
+        DummyTransport xp = (DummyTransport) this.xp;
+
+        objects.put(1, Arrays.asList("a", "b", "c"));
+        objectNum = 1;
+
+        xp.setResponses(
+                new JSONObject()
+                        .put("action", "iterate_object")
+                        .put("number", 1)
+                        .put("id", 1),
+                new JSONObject()
+                        .put("action", "next_items")
+                        .put("number", 2)
+                        .put("count", 2)
+                        .put("id", 2),
+                new JSONObject()
+                        .put("action", "next_items")
+                        .put("number", 2)
+                        .put("count", 2)
+                        .put("id", 3));
+
+        run();
+
+        List<JSONObject> messages = xp.getMessages();
+
+        assertThat(messages.get(0), matchesJson(new JSONObject()
+                .put("action", "result")
+                .put("result", new JSONObject().put("_Taco_Object_", 2))
+                .put("id", 1)
+        ));
+
+        assertTrue(objects.get(2) instanceof java.util.Iterator);
+
+        assertThat(messages.get(1), matchesJson(new JSONObject()
+                .put("action", "result")
+                .put("result", new JSONArray(new String[] {"a", "b"}))
+                .put("id", 2)
+        ));
+
+        assertThat(messages.get(2), matchesJson(new JSONObject()
+                .put("action", "result")
+                .put("result", new JSONArray(new String[] {"c"}))
+                .put("id", 3)
+        ));
+    }
 }
@@ -0,0 +1,104 @@
+/*
+ * Taco Java server startup benchmark.
+ * Copyright (C) 2015 Graham Bell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.grahambell.taco;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Benchmarks of the time taken to start the Java server and receive the
+ * first response, and of the round-trip latency of calls.
+ *
+ * The limit (in milliseconds) on the median startup time defaults to
+ * 1000, a little under twice the time measured on a single-core machine,
+ * and can be given by the "taco.startup.limit" system property.
+ */
+public class StartupIT {
+    private static final int RUNS = 5;
+
+    @Test
+    public void testStartupTime() throws IOException, TacoException {
+        long limit = Long.getLong("taco.startup.limit", 1000);
+        long[] times = new long[RUNS];
+
+        for (int i = 0; i < RUNS; i ++) {
+            times[i] = startServer();
+        }
+
+        Arrays.sort(times);
+        long median = times[RUNS / 2];
+
+        System.err.println("Taco Java server startup time (ms): median "
+                + median + ", min " + times[0]
+                + ", max " + times[RUNS - 1]);
+
+        assertTrue("median startup time " + median + " ms exceeds "
+                + limit + " ms", median <= limit);
+    }
+
+    @Test
+    public void testLatency() throws TacoException {
+        TacoLatency latency = new TacoLatency("scripts/taco-java");
+        latency.setRate(200);
+        latency.setDuration(1);
+        latency.setWarmUp(0.5);
+        latency.setPayloadSize(100);
+
+        TacoReplay.Result result = latency.run();
+
+        System.err.println("Taco Java server call latency (ms): p50 "
+                + result.getLatencies(0.5)[0] + ", p99 "
+                + result.getLatencies(0.99)[0]);
+
+        assertEquals(200, result.getRequests());
+        assertEquals(0, result.getErrors());
+        assertTrue(latency.getStartupTime() > 0);
+    }
+
+    /**
+     * Launch the server and time the first interaction.
+     *
+     * @return the time in milliseconds
+     */
+    private long startServer() throws IOException, TacoException {
+        long start = System.nanoTime();
+
+        ProcessBuilder pb = new ProcessBuilder("scripts/taco-java");
+        pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+        Process p = pb.start();
+
+        try {
+            Taco taco = new Taco((TacoTransport) null);
+            taco.xp = new TacoTransport(p.getInputStream(),
+                    p.getOutputStream(), taco);
+
+            taco.importModule("java.util.ArrayList");
+
+            return (System.nanoTime() - start) / 1000000;
+        }
+        finally {
+            p.destroy();
+        }
+    }
+}
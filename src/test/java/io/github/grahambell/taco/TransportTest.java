@@ -20,12 +20,25 @@ package io.github.grahambell.taco;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
+import org.json.JSONObject;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Tests for TacoTransport.
@@ -53,4 +66,295 @@ public class TransportTest {
 
         assertEquals("{\"action\":\"response\"}\n// END\n", output);
     }
+
+    @Test
+    public void testLineEndings()
+            throws UnsupportedEncodingException, TacoException {
+        String input = "{\"action\":\"a\"}\r// END\r"
+                + "{\"action\":\r\"b\"}\r\n// END\r\n"
+                + "{\"action\":\"c\"}\n// END\r\n";
+        byte[] bytes = input.getBytes("UTF-8");
+
+        // Read in one block, and one character at a time so that line
+        // feeds are read separately from the preceding carriage return.
+        InputStream[] inStreams = new InputStream[] {
+            new ByteArrayInputStream(bytes),
+            new ByteArrayInputStream(bytes) {
+                @Override
+                public synchronized int read(byte[] b, int off, int len) {
+                    return super.read(b, off, Math.min(len, 1));
+                }
+
+                @Override
+                public synchronized int available() {
+                    return 0;
+                }
+            }
+        };
+
+        for (InputStream inStream: inStreams) {
+            TacoTransport xp = new TacoTransport(
+                    inStream, new ByteArrayOutputStream(), null);
+
+            assertEquals("a", xp.read().get("action"));
+            assertEquals("b", xp.read().get("action"));
+            assertEquals("c", xp.read().get("action"));
+            assertNull(xp.read());
+        }
+    }
+
+    @Test
+    public void testDecodeKeys() throws TacoException {
+        TacoTransport xp = new TacoTransport(null);
+
+        Map<String, Object> message = xp.jsonToMap(new JSONObject(
+                "{\"action\":\"result\",\"result\":["
+                + "{\"label\":\"a\",\"x\":1},"
+                + "{\"label\":\"b\",\"x\":2}]}"));
+
+        assertTrue(message instanceof CompactMap);
+        assertSame("action", findKey(message, "action"));
+        assertEquals("result", message.get("action"));
+
+        List<Map<String, Object>> records =
+                (List<Map<String, Object>>) message.get("result");
+        assertEquals(2, records.size());
+        assertSame(findKey(records.get(0), "label"),
+                findKey(records.get(1), "label"));
+        assertEquals(2, records.get(1).get("x"));
+    }
+
+    @Test
+    public void testCompactMap() {
+        Map<String, Object> map = new CompactMap(2);
+        Map<String, Object> expected = new HashMap<String, Object>();
+
+        for (int i = 0; i < 12; i ++) {
+            assertNull(map.put("key" + i, i));
+            expected.put("key" + i, i);
+            assertEquals(expected, map);
+            assertEquals(i, map.get(new String("key" + i)));
+        }
+
+        map = new CompactMap(4);
+        map.put("a", 1);
+        map.put("b", null);
+        map.put("c", 3);
+
+        assertTrue(map.containsKey("b"));
+        assertFalse(map.containsKey("d"));
+        assertEquals(1, map.put("a", 10));
+        assertEquals(3, map.remove("c"));
+
+        for (Iterator<Map.Entry<String, Object>> i = map.entrySet().iterator();
+                i.hasNext(); ) {
+            Map.Entry<String, Object> entry = i.next();
+
+            if (entry.getKey().equals("a")) {
+                i.remove();
+            }
+            else {
+                entry.setValue(2);
+            }
+        }
+
+        assertEquals(new HashMapC<String, Object>().putc("b", 2), map);
+    }
+
+    @Test
+    public void testLazyDecoding()
+            throws UnsupportedEncodingException, TacoException {
+        String input = "{\"action\":\"result\",\"result\":"
+                + "{\"a\":{\"b\":[1,null,{\"c\":\"d\"}]},\"e\":2}}\n"
+                + "// END\n"
+                + "{\"action\":\"result\",\"result\":"
+                + "[{\"_Taco_Object_\":1}]}\n// END\n";
+
+        final List<Map<String, Object>> filtered =
+                new ArrayList<Map<String, Object>>();
+
+        TacoTransport xp = new TacoTransport(
+                new ByteArrayInputStream(input.getBytes("UTF-8")),
+                new ByteArrayOutputStream(),
+                new TacoTransport.Filter() {
+                    public Map<String, Object> objectToMap(Object value) {
+                        return null;
+                    }
+
+                    public Object mapToObject(Map<String, Object> map) {
+                        filtered.add(map);
+                        return map;
+                    }
+                });
+
+        xp.setLazyDecoding(true);
+
+        Map<String, Object> message = xp.read();
+        assertEquals(0, filtered.size());
+
+        Map<String, Object> result =
+                (Map<String, Object>) message.get("result");
+        assertEquals(1, filtered.size());
+        assertEquals(2, result.size());
+        assertEquals(2, result.get("e"));
+        assertEquals(1, filtered.size());
+
+        List<Object> list = (List<Object>)
+                ((Map<String, Object>) result.get("a")).get("b");
+        assertEquals(2, filtered.size());
+        assertEquals(3, list.size());
+        assertNull(list.get(1));
+        assertEquals(2, filtered.size());
+
+        assertEquals(new HashMapC<String, Object>().putc("c", "d"),
+                list.get(2));
+        assertEquals(3, filtered.size());
+        assertSame(list.get(2), list.get(2));
+        assertEquals(3, filtered.size());
+
+        list.set(0, 5);
+        result.put("f", true);
+        assertEquals(Arrays.asList(5, null,
+                new HashMapC<String, Object>().putc("c", "d")), list);
+        assertEquals(3, result.size());
+        assertEquals(true, result.get("f"));
+
+        // Messages with object references are converted immediately.
+        message = xp.read();
+        assertEquals(4, filtered.size());
+        assertEquals(1, filtered.get(3).get("_Taco_Object_"));
+    }
+
+    /**
+     * Find the instance of a key stored in a map.
+     */
+    private static String findKey(Map<String, Object> map, String key) {
+        for (String stored: map.keySet()) {
+            if (stored.equals(key)) {
+                return stored;
+            }
+        }
+
+        return null;
+    }
+
+    @Test
+    public void testLoopback() throws TacoException {
+        for (boolean byReference: new boolean[] {false, true}) {
+            LoopbackTransport client = new LoopbackTransport(null, 4,
+                    byReference);
+            LoopbackTransport server = new LoopbackTransport(null, client);
+
+            client.write(new HashMapC<String, Object>()
+                    .putc("action", "test")
+                    .putc("args", Arrays.asList(1, "two", null)));
+
+            Map<String, Object> map = server.read();
+
+            assertEquals("test", map.get("action"));
+            assertEquals(Arrays.asList(1, "two", null), map.get("args"));
+
+            // The other end sees the end of input once closed.
+            client.close();
+
+            assertNull(server.read());
+        }
+    }
+
+    @Test
+    public void testLoopbackByReference() throws TacoException {
+        final Date date = new Date();
+
+        TacoTransport.Filter filter = new TacoTransport.Filter() {
+            public Map<String, Object> objectToMap(Object value) {
+                return new HashMapC<String, Object>().putc("_Date_", 1);
+            }
+
+            public Object mapToObject(Map<String, Object> map) {
+                return map.containsKey("_Date_") ? date : map;
+            }
+        };
+
+        LoopbackTransport client = new LoopbackTransport(filter, 4, true);
+        LoopbackTransport server = new LoopbackTransport(filter, client);
+
+        client.write(new HashMapC<String, Object>()
+                .putc("action", "test")
+                .putc("args", Arrays.asList(new Object(),
+                        new HashMapC<String, Object>().putc("key", "value"))));
+
+        List<Object> args = (List<Object>) server.read().get("args");
+
+        assertSame(date, args.get(0));
+        assertEquals(new HashMapC<String, Object>().putc("key", "value"),
+                args.get(1));
+    }
+
+    @Test
+    public void testLoopbackServer() throws TacoException {
+        for (boolean byReference: new boolean[] {false, true}) {
+            Taco taco = LoopbackTransport.startServer(byReference);
+
+            try {
+                assertEquals(42, ((Number) taco.callClassMethod(
+                        "java.lang.Integer", "parseInt", Arrays.asList("42"),
+                        null)).intValue());
+
+                Taco.Object sb = taco.constructObject(
+                        "java.lang.StringBuilder", Arrays.asList("abc"), null);
+                sb.callMethod("append", Arrays.asList("def"), null);
+
+                assertEquals("abcdef", sb.callMethod("toString", null, null));
+            }
+            finally {
+                taco.close();
+            }
+        }
+    }
+
+    @Test
+    public void testRecordReplay() throws TacoException, IOException {
+        String input =
+            "{\"action\":\"result\",\"id\":1,"
+                + "\"result\":{\"_Taco_Object_\":1}}\n// END\n"
+            + "{\"action\":\"result\",\"id\":2,"
+                + "\"result\":{\"_Taco_Object_\":1}}\n// END\n"
+            + "{\"action\":\"result\",\"id\":3,"
+                + "\"result\":42}\n// END\n";
+
+        Taco taco = new Taco(new TacoTransport(
+                new ByteArrayInputStream(input.getBytes("UTF-8")),
+                new ByteArrayOutputStream(), null));
+        taco.xp.filter = taco;
+
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        taco.record(log);
+
+        Taco.Object sb = taco.constructObject("java.lang.StringBuilder",
+                null, null);
+        sb.callMethod("append", Arrays.asList("x"), null);
+        assertEquals(42, taco.callClassMethod("java.lang.Integer",
+                "parseInt", Arrays.asList("42"), null));
+
+        taco.close();
+
+        List<RecordingTransport.Entry> entries = RecordingTransport.readLog(
+                new ByteArrayInputStream(log.toByteArray()));
+
+        assertEquals(6, entries.size());
+        assertEquals('W', entries.get(0).getDirection());
+        assertEquals('R', entries.get(1).getDirection());
+        assertTrue(entries.get(0).getText().contains("construct_object"));
+        assertTrue(entries.get(1).getTime() >= entries.get(0).getTime());
+
+        TacoReplay.Result result = TacoReplay.replayServer(entries, false);
+
+        assertEquals(3, result.getRequests());
+        assertEquals(0, result.getErrors());
+
+        result = TacoReplay.replayClient(entries, true);
+
+        assertEquals(3, result.getRequests());
+        assertEquals(0, result.getErrors());
+    }
 }